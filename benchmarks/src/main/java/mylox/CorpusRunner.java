@@ -0,0 +1,364 @@
+package mylox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs the Lox programs of the bench/ corpus on every engine and compares them
+ * against a stored baseline. Each program runs through the whole pipeline, from
+ * scanning the source to interpreting it, a few times to warm up and then a
+ * fixed number of measured times. The runner reports the median and p99 wall
+ * time and the allocation rate of the measured runs, and flags a regression
+ * when the median time or the bytes allocated per run grew by more than the
+ * threshold over the baseline.
+ *
+ * Like JMH, every program and engine is measured in several fresh JVMs with
+ * a fixed heap, so the JIT profile and the heap left behind by one measurement
+ * can't skew the next one. The median is the median of the forks and its error
+ * is half the spread between the forks, which is where most of the noise comes
+ * from, the bytes allocated per run get an error the same way. A time or an
+ * allocation only counts as a regression once it is past both the threshold
+ * and twice the error bars of the baseline and of the new measurement
+ * together. Half the spread of five forks is only about one standard
+ * deviation, and with fifteen comparisons a run, a margin of one would fail
+ * now and then on noise alone.
+ *
+ * Usage: CorpusRunner [--runs=N] [--warmup=N] [--forks=N] [--engine=NAME]...
+ *                     [--threshold=F] [--baseline=PATH] [--update] [--no-fork]
+ *                     [corpus directory]
+ *
+ * The exit code is 1 if anything regressed. The baseline is only meaningful on
+ * the machine it was recorded on, --update writes a new one.
+ */
+public class CorpusRunner {
+
+    private static final List<String> ENGINES = Arrays.asList("visitor", "pattern", "arena");
+    // JVM options of the forked measurements
+    private static final List<String> FORK_OPTIONS = Arrays.asList("-Xms1g", "-Xmx1g");
+
+    private int runs = 10;
+    private int warmup = 10;
+    private int forks = 5;
+    private double threshold = 0.10;
+    private List<String> engines = new ArrayList<>();
+    private Path corpus = Paths.get("bench");
+    private Path baselinePath = null;
+    private boolean update = false;
+    private boolean fork = true;
+    // set in a forked JVM, which measures one program on this engine
+    private String measureEngine = null;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * The measurements of one program on one engine.
+     */
+    private static final class Result {
+        final double medianMillis;
+        // half the spread of the medians of the forks, 0 for one measurement
+        final double errorMillis;
+        final double p99Millis;
+        final long bytesPerRun;
+        // escape analysis differs between forks, so allocations vary too
+        final long bytesError;
+        final double megabytesPerSecond;
+
+        Result(double medianMillis, double errorMillis, double p99Millis, long bytesPerRun, long bytesError,
+                double megabytesPerSecond) {
+            this.medianMillis = medianMillis;
+            this.errorMillis = errorMillis;
+            this.p99Millis = p99Millis;
+            this.bytesPerRun = bytesPerRun;
+            this.bytesError = bytesError;
+            this.megabytesPerSecond = megabytesPerSecond;
+        }
+
+        static Result fromJson(Map<?, ?> json) {
+            return new Result(((Number) json.get("median_ms")).doubleValue(),
+                    optional(json, "error_ms").doubleValue(),
+                    ((Number) json.get("p99_ms")).doubleValue(),
+                    ((Number) json.get("alloc_bytes_per_run")).longValue(),
+                    optional(json, "alloc_error_bytes").longValue(),
+                    ((Number) json.get("alloc_mb_per_s")).doubleValue());
+        }
+
+        // baselines recorded before the forks were measured have no errors
+        private static Number optional(Map<?, ?> json, String key) {
+            Object value = json.get(key);
+            return value == null ? 0 : (Number) value;
+        }
+
+        /**
+         * Combines the measurements of the forks of one program and engine.
+         */
+        static Result combine(List<Result> forks) {
+            double[] medians = forks.stream().mapToDouble(result -> result.medianMillis).sorted().toArray();
+            long[] bytes = forks.stream().mapToLong(result -> result.bytesPerRun).sorted().toArray();
+            return new Result(median(medians), (medians[medians.length - 1] - medians[0]) / 2,
+                    forks.stream().mapToDouble(result -> result.p99Millis).max().getAsDouble(),
+                    bytes[bytes.length / 2], (bytes[bytes.length - 1] - bytes[0]) / 2,
+                    forks.stream().mapToDouble(result -> result.megabytesPerSecond).average().getAsDouble());
+        }
+
+        Map<String, Object> toJson() {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("median_ms", round(medianMillis));
+            json.put("error_ms", round(errorMillis));
+            json.put("p99_ms", round(p99Millis));
+            json.put("alloc_bytes_per_run", bytesPerRun);
+            json.put("alloc_error_bytes", bytesError);
+            json.put("alloc_mb_per_s", round(megabytesPerSecond));
+            return json;
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 100) / 100.0;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        CorpusRunner runner = new CorpusRunner();
+        for (String arg : args) {
+            if (arg.startsWith("--runs=")) {
+                runner.runs = Integer.parseInt(arg.substring("--runs=".length()));
+            } else if (arg.startsWith("--forks=")) {
+                runner.forks = Integer.parseInt(arg.substring("--forks=".length()));
+            } else if (arg.startsWith("--warmup=")) {
+                runner.warmup = Integer.parseInt(arg.substring("--warmup=".length()));
+            } else if (arg.startsWith("--engine=")) {
+                runner.engines.add(arg.substring("--engine=".length()));
+            } else if (arg.startsWith("--threshold=")) {
+                runner.threshold = Double.parseDouble(arg.substring("--threshold=".length()));
+            } else if (arg.startsWith("--baseline=")) {
+                runner.baselinePath = Paths.get(arg.substring("--baseline=".length()));
+            } else if (arg.equals("--update")) {
+                runner.update = true;
+            } else if (arg.equals("--no-fork")) {
+                runner.fork = false;
+            } else if (arg.startsWith("--measure=")) {
+                runner.measureEngine = arg.substring("--measure=".length());
+            } else if (!arg.startsWith("--")) {
+                runner.corpus = Paths.get(arg);
+            } else {
+                System.err.println("Unknown option " + arg);
+                System.exit(64);
+            }
+        }
+
+        if (runner.engines.isEmpty())
+            runner.engines.addAll(ENGINES);
+        if (runner.baselinePath == null)
+            runner.baselinePath = runner.corpus.resolve("baseline.json");
+        if (runner.runs < 1 || runner.forks < 1) {
+            System.err.println("--runs and --forks must be at least 1");
+            System.exit(64);
+        }
+
+        if (runner.measureEngine != null) {
+            // forked by the runner, the corpus argument is the program
+            String source = new String(Files.readAllBytes(runner.corpus), StandardCharsets.UTF_8);
+            Result result = runner.measure(runner.measureEngine, source, runner.corpus.toString());
+            System.out.println(Json.write(result.toJson()));
+            return;
+        }
+
+        System.exit(runner.run() ? 1 : 0);
+    }
+
+    /**
+     * Runs the corpus and prints the report.
+     *
+     * @return true if a program regressed against the baseline
+     */
+    private boolean run() throws IOException {
+        List<Path> programs;
+        try (Stream<Path> files = Files.list(corpus)) {
+            programs = files.filter(file -> file.toString().endsWith(".lox")).sorted().collect(Collectors.toList());
+        }
+
+        Map<String, Object> baseline = readBaseline();
+        Map<String, Object> results = new LinkedHashMap<>();
+        boolean regressed = false;
+
+        System.out.printf("%d forks of %d runs after %d warmup runs, regression threshold %.0f%%%n%n",
+                fork ? forks : 1, runs, warmup, threshold * 100);
+        System.out.printf("%-20s %-8s %16s %10s %12s %16s %8s%n", "program", "engine", "median ms", "p99 ms",
+                "alloc MB/s", "baseline ms", "change");
+
+        for (Path program : programs) {
+            String name = program.getFileName().toString().replaceFirst("\\.lox$", "");
+            String source = new String(Files.readAllBytes(program), StandardCharsets.UTF_8);
+
+            for (String engine : engines) {
+                String key = name + "/" + engine;
+                Result result = fork ? measureInForks(program, engine) : measure(engine, source, key);
+                results.put(key, result.toJson());
+
+                String verdict = "";
+                String baselineMillis = "-";
+                String change = "-";
+                Object previous = baseline.get(key);
+                if (previous instanceof Map) {
+                    Result old = Result.fromJson((Map<?, ?>) previous);
+                    baselineMillis = String.format("%.2f +/- %.2f", old.medianMillis, old.errorMillis);
+                    change = String.format("%+.1f%%", (result.medianMillis / old.medianMillis - 1) * 100);
+
+                    // a slowdown within the noise of both measurements isn't one
+                    double margin = Math.max(old.medianMillis * threshold,
+                            2 * (old.errorMillis + result.errorMillis));
+                    if (result.medianMillis > old.medianMillis + margin) {
+                        verdict = "  REGRESSION (time)";
+                    } else if (result.bytesPerRun > old.bytesPerRun
+                            + Math.max(old.bytesPerRun * threshold, 2 * (old.bytesError + result.bytesError))) {
+                        verdict = "  REGRESSION (allocation)";
+                    }
+                }
+                if (!verdict.isEmpty())
+                    regressed = true;
+
+                String median = String.format("%.2f +/- %.2f", result.medianMillis, result.errorMillis);
+                System.out.printf("%-20s %-8s %16s %10.2f %12.1f %16s %8s%s%n", name, engine, median,
+                        result.p99Millis, result.megabytesPerSecond, baselineMillis, change, verdict);
+            }
+        }
+
+        if (update) {
+            writeBaseline(results);
+            System.out.println("\nWrote " + baselinePath);
+        } else if (baseline.isEmpty()) {
+            System.out.println("\nNo baseline at " + baselinePath + ", run with --update to record one.");
+        }
+        return regressed;
+    }
+
+    private Result measure(String engine, String source, String key) {
+        PrintStream console = System.out;
+        // the programs print their results, that's not what is measured
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        double[] millis = new double[runs];
+        long totalBytes = 0;
+        long totalNanos = 0;
+        try {
+            for (int i = 0; i < warmup; i++) {
+                runOnce(engine, source, key);
+            }
+
+            for (int i = 0; i < runs; i++) {
+                long bytes = threads.getCurrentThreadAllocatedBytes();
+                long start = System.nanoTime();
+                runOnce(engine, source, key);
+                long nanos = System.nanoTime() - start;
+                totalBytes += threads.getCurrentThreadAllocatedBytes() - bytes;
+                totalNanos += nanos;
+                millis[i] = nanos / 1e6;
+            }
+        } finally {
+            System.setOut(console);
+        }
+
+        Arrays.sort(millis);
+        // nearest rank, with few runs this is the slowest one
+        double p99 = millis[(int) Math.ceil(0.99 * runs) - 1];
+        double megabytesPerSecond = (totalBytes / 1e6) / (totalNanos / 1e9);
+        return new Result(median(millis), 0, p99, totalBytes / runs, 0, megabytesPerSecond);
+    }
+
+    // of sorted values
+    private static double median(double[] values) {
+        int n = values.length;
+        return n % 2 == 1 ? values[n / 2] : (values[n / 2 - 1] + values[n / 2]) / 2;
+    }
+
+    private Result measureInForks(Path program, String engine) throws IOException {
+        List<Result> results = new ArrayList<>();
+        for (int i = 0; i < forks; i++) {
+            results.add(measureInFork(program, engine));
+        }
+        return Result.combine(results);
+    }
+
+    private Result measureInFork(Path program, String engine) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(FORK_OPTIONS);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(CorpusRunner.class.getName());
+        command.add("--runs=" + runs);
+        command.add("--warmup=" + warmup);
+        command.add("--measure=" + engine);
+        command.add(program.toString());
+
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+        try {
+            if (process.waitFor() != 0)
+                throw new IOException("Measuring " + program + " on " + engine + " failed.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while measuring " + program + ".", e);
+        }
+
+        String[] lines = output.split("\n");
+        return Result.fromJson((Map<?, ?>) Json.parse(lines[lines.length - 1]));
+    }
+
+    private static void runOnce(String engine, String source, String key) {
+        Lox.hadError = false;
+        Lox.hadRuntimeError = false;
+
+        Interpreter interpreter = Workloads.newInterpreter(engine);
+        if (interpreter instanceof ArenaInterpreter) {
+            ((ArenaInterpreter) interpreter).run(source);
+        } else {
+            List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+            if (!Lox.hadError)
+                new Resolver(interpreter).resolve(statements);
+            if (!Lox.hadError)
+                interpreter.interpret(statements);
+        }
+
+        if (Lox.hadError || Lox.hadRuntimeError)
+            throw new IllegalStateException(key + " failed, see the errors above.");
+    }
+
+    private Map<String, Object> readBaseline() throws IOException {
+        if (!Files.exists(baselinePath))
+            return new LinkedHashMap<>();
+
+        Object json = Json.parse(new String(Files.readAllBytes(baselinePath), StandardCharsets.UTF_8));
+        if (!(json instanceof Map))
+            throw new IOException(baselinePath + " is not a JSON object.");
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> baseline = (Map<String, Object>) json;
+        return baseline;
+    }
+
+    private void writeBaseline(Map<String, Object> results) throws IOException {
+        // one entry per line so baseline updates diff nicely
+        StringBuilder json = new StringBuilder("{\n");
+        int i = 0;
+        for (Map.Entry<String, Object> entry : results.entrySet()) {
+            json.append("  ").append(Json.write(entry.getKey())).append(": ").append(Json.write(entry.getValue()));
+            json.append(++i < results.size() ? ",\n" : "\n");
+        }
+        json.append("}\n");
+        Files.write(baselinePath, json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
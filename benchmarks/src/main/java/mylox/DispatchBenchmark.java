@@ -0,0 +1,58 @@
+package mylox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the visitor based Interpreter against the PatternInterpreter, which
+ * dispatches on the sealed record AST with type patterns, and the
+ * ArenaInterpreter, which switches on the node kinds of an AstArena. All
+ * engines resolve and run the same parsed program, so the difference is the
+ * dispatch strategy (plus the one time conversion for the other engines).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    @Param({ "visitor", "pattern", "arena" })
+    public String engine;
+
+    @Param({ "fib", "loops", "methods", "strings", "closures" })
+    public String workload;
+
+    private List<Stmt> statements;
+
+    @Setup
+    public void parse() {
+        statements = Workloads.parse(Workloads.source(workload));
+        // a workload the resolver rejects or that fails at runtime would only
+        // measure the error path
+        Object result = run();
+        if (Lox.hadError || Lox.hadRuntimeError || result == null)
+            throw new IllegalStateException("Workload " + workload + " failed on " + engine);
+    }
+
+    @Benchmark
+    public Object run() {
+        Interpreter interpreter = Workloads.newInterpreter(engine);
+        new Resolver(interpreter).resolve(statements);
+        interpreter.interpret(statements);
+        return Workloads.result(interpreter);
+    }
+}
@@ -0,0 +1,85 @@
+package mylox;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs whole scripts through LoxEngine, from the source text to the result,
+ * with one engine per script as a server would. The same benchmark on one
+ * thread and on a thread per core shows how far independent engines scale.
+ * The prepared variants run one PreparedScript shared by all threads, so they
+ * leave out scanning, parsing and resolving.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EngineBenchmark {
+
+    private static final PrintStream NO_OUTPUT = new PrintStream(OutputStream.nullOutputStream());
+    private static final ErrorReporter FAIL = (line, token, where, message) -> {
+        throw new IllegalStateException("[line " + line + "] Error" + where + ": " + message);
+    };
+
+    @Param({ "fib", "methods", "strings" })
+    public String workload;
+
+    private PreparedScript prepared;
+
+    @Setup
+    public void prepare() {
+        prepared = PreparedScript.prepare(Workloads.source(workload), null, FAIL);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object oneThread() {
+        return run();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object allCores() {
+        return run();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object preparedOneThread() {
+        return runPrepared();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object preparedAllCores() {
+        return runPrepared();
+    }
+
+    private Object runPrepared() {
+        LoxEngine engine = new LoxEngine(NO_OUTPUT, FAIL);
+        engine.run(prepared);
+        return engine.get("result");
+    }
+
+    private Object run() {
+        LoxEngine engine = new LoxEngine(NO_OUTPUT, FAIL);
+        engine.eval(Workloads.source(workload));
+        return engine.get("result");
+    }
+}
@@ -0,0 +1,65 @@
+package mylox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the front end stages separately on large generated programs: the
+ * Scanner on the source text, the Parser on the scanned tokens and the
+ * Resolver on the parsed statements. Each stage gets the output of the
+ * previous one prepared in the setup, so only the stage itself is timed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrontEndBenchmark {
+
+    // declaration groups in the generated program, about 14 lines each
+    @Param({ "100", "1000" })
+    public int declarations;
+
+    private String source;
+    private List<Token> tokens;
+    private List<Stmt> statements;
+    private Interpreter interpreter;
+
+    @Setup
+    public void generate() {
+        source = Workloads.generate(declarations);
+        tokens = new Scanner(source).scanTokens();
+        statements = Workloads.parse(source);
+        // the resolver only hands distances to the interpreter, one is enough
+        interpreter = new Interpreter();
+    }
+
+    @Benchmark
+    public List<Token> scan() {
+        return new Scanner(source).scanTokens();
+    }
+
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(tokens).parse();
+    }
+
+    @Benchmark
+    public Interpreter resolve() {
+        new Resolver(interpreter).resolve(statements);
+        return interpreter;
+    }
+}
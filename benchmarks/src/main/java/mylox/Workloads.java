@@ -0,0 +1,137 @@
+package mylox;
+
+import java.util.List;
+
+/**
+ * Lox programs shared by the benchmarks. Every workload stores its result in
+ * the global "result" instead of printing it, so running it measures the
+ * interpreter and not the console.
+ */
+final class Workloads {
+
+    static final String FIB = String.join("\n",
+            "fun fib(n) {",
+            "    if (n < 2) return n;",
+            "    return fib(n - 1) + fib(n - 2);",
+            "}",
+            "var result = fib(20);");
+
+    static final String NESTED_LOOPS = String.join("\n",
+            "var result = 0;",
+            "for (var i = 0; i < 200; i = i + 1) {",
+            "    for (var j = 0; j < 200; j = j + 1) {",
+            "        result = result + i * j;",
+            "    }",
+            "}");
+
+    // calls go through LoxClass.findMethod, half of them to an inherited method
+    static final String METHOD_DISPATCH = String.join("\n",
+            "class Counter {",
+            "    init() { this.count = 0; }",
+            "    increment() { this.count = this.count + 1; }",
+            "}",
+            "class LoudCounter < Counter {",
+            "    twice() { this.increment(); this.increment(); }",
+            "}",
+            "var counter = LoudCounter();",
+            "for (var i = 0; i < 10000; i = i + 1) {",
+            "    counter.twice();",
+            "}",
+            "var result = counter.count;");
+
+    static final String STRING_CONCAT = String.join("\n",
+            "var result = \"\";",
+            "for (var i = 0; i < 2000; i = i + 1) {",
+            "    result = result + \"ab\";",
+            "}");
+
+    // every call creates a closure capturing a fresh environment
+    static final String CLOSURES = String.join("\n",
+            "fun makeCounter(start) {",
+            "    var count = start;",
+            "    fun increment() { count = count + 1; return count; }",
+            "    return increment;",
+            "}",
+            "var result = 0;",
+            "for (var i = 0; i < 5000; i = i + 1) {",
+            "    var counter = makeCounter(i);",
+            "    counter();",
+            "    result = result + counter();",
+            "}");
+
+    private Workloads() {
+    }
+
+    static String source(String name) {
+        switch (name) {
+            case "fib":
+                return FIB;
+            case "loops":
+                return NESTED_LOOPS;
+            case "methods":
+                return METHOD_DISPATCH;
+            case "strings":
+                return STRING_CONCAT;
+            case "closures":
+                return CLOSURES;
+            default:
+                throw new IllegalArgumentException("Unknown workload " + name);
+        }
+    }
+
+    /**
+     * Generates a large program for the front end benchmarks, a mix of
+     * functions, classes, loops, closures and strings.
+     *
+     * @param declarations the number of top level declaration groups
+     * @return the source text
+     */
+    static String generate(int declarations) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < declarations; i++) {
+            source.append("// declaration group ").append(i).append('\n');
+            source.append("fun f").append(i).append("(a, b) {\n");
+            source.append("    var sum = 0;\n");
+            source.append("    for (var k = 0; k < a; k = k + 1) {\n");
+            source.append("        if (k > b and sum < 1000) sum = sum + k * 2; else sum = sum - 1;\n");
+            source.append("    }\n");
+            source.append("    return sum;\n");
+            source.append("}\n");
+            source.append("class C").append(i).append(" {\n");
+            source.append("    init(x) { this.x = x; this.name = \"C").append(i).append("\"; }\n");
+            source.append("    get() { return this.x + ").append(i).append(".5; }\n");
+            source.append("}\n");
+            source.append("var v").append(i).append(" = fun (n) { return n + f").append(i)
+                    .append("(n, 2) + C").append(i).append("(n).get(); };\n");
+            source.append("while (v").append(i).append("(1) < 0) { print \"unreachable\"; }\n");
+        }
+        return source.toString();
+    }
+
+    static List<Stmt> parse(String source) {
+        List<Token> tokens = new Scanner(source).scanTokens();
+        List<Stmt> statements = new Parser(tokens).parse();
+        if (Lox.hadError) {
+            throw new IllegalStateException("Workload failed to parse");
+        }
+        return statements;
+    }
+
+    static Interpreter newInterpreter(String engine) {
+        switch (engine) {
+            case "visitor":
+                return new Interpreter();
+            case "pattern":
+                return new PatternInterpreter();
+            case "arena":
+                return new ArenaInterpreter();
+            default:
+                throw new IllegalArgumentException("Unknown engine " + engine);
+        }
+    }
+
+    // reads back the global every workload assigns its result to
+    static Object result(Interpreter interpreter) {
+        return interpreter.globals.get(new Token(TokenType.IDENTIFIER, "result", null, 0));
+    }
+}
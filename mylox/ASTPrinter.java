@@ -55,6 +55,61 @@ public class ASTPrinter implements Expr.Visitor<String> {
         return builder.toString();
     }
 
+    /**
+     * Prints an expression stored in an arena by moving a cursor over its node
+     * indices. The output is the same as printing the equivalent Expr tree.
+     * 
+     * @param arena the arena holding the expression
+     * @param node  the index of the expression node
+     * @return the printed expression
+     */
+    String print(AstArena arena, int node) {
+        switch (arena.kinds[node]) {
+            case AstArena.BINARY:
+            case AstArena.NUMBER_BINARY:
+                return parenthesize(operator(arena, node), arena, arena.a[node], arena.b[node]);
+            case AstArena.GROUPING:
+                return parenthesize("group", arena, arena.a[node]);
+            case AstArena.LITERAL:
+                Object value = arena.constants[arena.a[node]];
+                if (value == null)
+                    return "nil";
+                return value.toString();
+            case AstArena.UNARY:
+                return parenthesize(operator(arena, node), arena, arena.a[node]);
+            case AstArena.GET:
+            case AstArena.METHOD_GET:
+                return "get";
+            case AstArena.SET:
+                return "set";
+            case AstArena.THIS:
+                return "this";
+            case AstArena.SUPER:
+                return "<superclass>super";
+            default:
+                // same as the visitor methods that don't print anything yet
+                return null;
+        }
+    }
+
+    private String operator(AstArena arena, int node) {
+        return AstArena.operatorLexeme(TokenType.values()[arena.c[node]]);
+    }
+
+    private String parenthesize(String name, AstArena arena, int... nodes) {
+        StringBuilder builder = new StringBuilder();
+
+        builder.append("(");
+        for (int node : nodes) {
+            builder.append(" ");
+            builder.append(print(arena, node));
+        }
+
+        builder.append(" " + name);
+        builder.append(")");
+        return builder.toString();
+    }
+
     public static void main(String[] args) {
 
         Expr expression = new Expr.Binary(
@@ -0,0 +1,217 @@
+package mylox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is the interpreter behind --allocations. It attributes the
+ * objects the interpreter creates for a Lox program to the source line that
+ * caused them: environments for blocks, calls and bound methods, instances,
+ * bound methods, strings built by concatenation and numbers boxed by
+ * arithmetic. At exit it prints the lines and the classes that allocated the
+ * most.
+ *
+ * The interpreter doesn't know the size of the objects, so the bytes are the
+ * shallow sizes of the objects on a 64 bit JVM with compressed references.
+ * The entries environments and instances get when variables and fields are
+ * defined are not counted. Like the statistics, all of this lives in a
+ * subclass so the plain interpreter doesn't pay for it.
+ */
+class AllocationInterpreter extends Interpreter {
+
+    private static final int ENVIRONMENT = 0;
+    private static final int INSTANCE = 1;
+    private static final int BOUND_METHOD = 2;
+    private static final int STRING = 3;
+    private static final int DOUBLE = 4;
+    private static final String[] KINDS = { "environments", "instances", "bound methods", "strings", "doubles" };
+
+    // the object and its empty HashMap
+    private static final int ENVIRONMENT_BYTES = 24 + 48;
+    private static final int INSTANCE_BYTES = 24 + 48;
+    private static final int BOUND_METHOD_BYTES = 24;
+    private static final int DOUBLE_BYTES = 16;
+    private static final int STRING_BYTES = 24;
+    private static final int ARRAY_HEADER_BYTES = 16;
+
+    // counts and bytes per kind, indexed by line
+    private long[][] counts = new long[KINDS.length][256];
+    private long[][] bytes = new long[KINDS.length][256];
+    // instances and their bytes per class name
+    private final Map<String, long[]> classes = new LinkedHashMap<>();
+
+    // line of the last node with a token that was evaluated, allocations
+    // without a token of their own are charged to it
+    private int line = 0;
+
+    @Override
+    Object evaluate(Expr expr) {
+        int tokenLine = SourceLines.of(expr);
+        if (tokenLine > 0)
+            line = tokenLine;
+        return super.evaluate(expr);
+    }
+
+    @Override
+    void execute(Stmt stmt) {
+        int tokenLine = SourceLines.of(stmt);
+        if (tokenLine > 0)
+            line = tokenLine;
+        super.execute(stmt);
+    }
+
+    @Override
+    void executeBlock(List<Stmt> statements, Environment environment) {
+        // blocks and calls both hand a fresh environment in here
+        record(ENVIRONMENT, line, ENVIRONMENT_BYTES);
+        super.executeBlock(statements, environment);
+    }
+
+    @Override
+    Object binaryOp(Token operator, Object left, Object right) {
+        Object value = super.binaryOp(operator, left, right);
+        if (value instanceof Double) {
+            record(DOUBLE, operator.line, DOUBLE_BYTES);
+        } else if (value instanceof String) {
+            record(STRING, operator.line, stringBytes((String) value));
+        }
+        return value;
+    }
+
+    @Override
+    Object unaryOp(Token operator, Object right) {
+        Object value = super.unaryOp(operator, right);
+        if (value instanceof Double)
+            record(DOUBLE, operator.line, DOUBLE_BYTES);
+        return value;
+    }
+
+    @Override
+    Object callFunction(Object callee, Token paren, List<Object> arguments) {
+        if (callee instanceof LoxClass) {
+            LoxClass klass = (LoxClass) callee;
+            record(INSTANCE, paren.line, INSTANCE_BYTES);
+            long[] instances = classes.computeIfAbsent(klass.name, key -> new long[2]);
+            instances[0]++;
+            instances[1] += INSTANCE_BYTES;
+        }
+        line = paren.line;
+        return super.callFunction(callee, paren, arguments);
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        // the scope holding super
+        if (stmt.superclass != null)
+            record(ENVIRONMENT, stmt.name.line, ENVIRONMENT_BYTES);
+        return super.visitClassStmt(stmt);
+    }
+
+    @Override
+    LoxFunction newFunction(Stmt.Function declaration, Environment closure, boolean isInitializer,
+            Map<Expr, Integer> locals) {
+        return new TrackedFunction(declaration, closure, isInitializer, locals);
+    }
+
+    /**
+     * A function that charges binding it to the current line.
+     */
+    private final class TrackedFunction extends LoxFunction {
+        private final Stmt.Function declaration;
+        private final Map<Expr, Integer> locals;
+
+        TrackedFunction(Stmt.Function declaration, Environment closure, boolean isInitializer,
+                Map<Expr, Integer> locals) {
+            super(declaration, closure, isInitializer, locals);
+            this.declaration = declaration;
+            this.locals = locals;
+        }
+
+        @Override
+        LoxFunction bind(LoxInstance instance) {
+            record(BOUND_METHOD, line, BOUND_METHOD_BYTES);
+            record(ENVIRONMENT, line, ENVIRONMENT_BYTES);
+            return super.bind(instance);
+        }
+
+        @Override
+        LoxFunction withClosure(Environment closure) {
+            return new TrackedFunction(declaration, closure, isInitializer, locals);
+        }
+    }
+
+    private void record(int kind, int at, long size) {
+        if (at >= counts[kind].length) {
+            int capacity = Math.max(at + 1, counts[kind].length * 2);
+            for (int i = 0; i < KINDS.length; i++) {
+                counts[i] = Arrays.copyOf(counts[i], capacity);
+                bytes[i] = Arrays.copyOf(bytes[i], capacity);
+            }
+        }
+        counts[kind][at]++;
+        bytes[kind][at] += size;
+    }
+
+    // a Latin-1 string, the only kind Lox source produces without escapes
+    private static long stringBytes(String string) {
+        return STRING_BYTES + align(ARRAY_HEADER_BYTES + string.length());
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    /**
+     * Prints the lines and the classes that allocated the most.
+     *
+     * @param out   the stream to print to
+     * @param limit the number of lines to print at most
+     */
+    void report(PrintStream out, int limit) {
+        List<Integer> lines = new ArrayList<>();
+        long[] lineBytes = new long[counts[0].length];
+        long[] lineCounts = new long[counts[0].length];
+        long totalBytes = 0;
+        long totalCount = 0;
+        for (int at = 0; at < lineBytes.length; at++) {
+            for (int kind = 0; kind < KINDS.length; kind++) {
+                lineBytes[at] += bytes[kind][at];
+                lineCounts[at] += counts[kind][at];
+            }
+            if (lineCounts[at] > 0)
+                lines.add(at);
+            totalBytes += lineBytes[at];
+            totalCount += lineCounts[at];
+        }
+        lines.sort((a, b) -> Long.compare(lineBytes[b], lineBytes[a]));
+
+        out.println("== allocations by line ==");
+        out.printf("%6s %14s %12s", "line", "bytes", "objects");
+        for (String kind : KINDS) {
+            out.printf(" %13s", kind);
+        }
+        out.println();
+        for (int at : lines.subList(0, Math.min(limit, lines.size()))) {
+            out.printf("%6d %14d %12d", at, lineBytes[at], lineCounts[at]);
+            for (int kind = 0; kind < KINDS.length; kind++) {
+                out.printf(" %13d", counts[kind][at]);
+            }
+            out.println();
+        }
+        if (lines.size() > limit)
+            out.printf("... %d more lines%n", lines.size() - limit);
+        out.printf("%6s %14d %12d%n", "total", totalBytes, totalCount);
+
+        out.println("== instances by class ==");
+        out.printf("%-20s %14s %12s%n", "class", "bytes", "instances");
+        List<Map.Entry<String, long[]>> entries = new ArrayList<>(classes.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+        for (Map.Entry<String, long[]> entry : entries) {
+            out.printf("%-20s %14d %12d%n", entry.getKey(), entry.getValue()[1], entry.getValue()[0]);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package mylox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class lowers resolved classic AST nodes into an AstArena. Scope
+ * distances recorded by the resolver are written straight into the distance
+ * slots of the variable nodes, so the arena needs no side table for them.
+ *
+ * Names and literal values are deduplicated while building, the lookup maps
+ * for that belong to the builder so they don't outlive the compilation.
+ */
+class ArenaBuilder implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+
+    private final AstArena arena;
+    // distances recorded by the resolver for the classic nodes
+    private final Map<Expr, Integer> locals;
+    // table indices of the names and literal values added so far
+    private final Map<String, Integer> names = new HashMap<>();
+    private final Map<Object, Integer> constants = new HashMap<>();
+    private int nilConstant = AstArena.NONE;
+
+    ArenaBuilder(AstArena arena, Map<Expr, Integer> locals) {
+        this.arena = arena;
+        this.locals = locals;
+    }
+
+    int build(Stmt stmt) {
+        if (stmt == null)
+            return AstArena.NONE;
+        return stmt.accept(this);
+    }
+
+    int build(Expr expr) {
+        if (expr == null)
+            return AstArena.NONE;
+        return expr.accept(this);
+    }
+
+    int buildStatements(List<? extends Stmt> statements) {
+        int[] elements = new int[statements.size()];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = build(statements.get(i));
+        }
+        return arena.addList(elements, elements.length);
+    }
+
+    private int buildExpressions(List<Expr> exprs) {
+        int[] elements = new int[exprs.size()];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = build(exprs.get(i));
+        }
+        return arena.addList(elements, elements.length);
+    }
+
+    private int buildNames(List<Token> names) {
+        int[] elements = new int[names.size()];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = name(names.get(i));
+        }
+        return arena.addList(elements, elements.length);
+    }
+
+    private int name(Token token) {
+        Integer index = names.get(token.lexeme);
+        if (index == null) {
+            index = arena.addString(token.lexeme);
+            names.put(token.lexeme, index);
+        }
+        return index;
+    }
+
+    private int constant(Object value) {
+        // equal values share one entry, nil can't be a map key
+        if (value == null) {
+            if (nilConstant == AstArena.NONE)
+                nilConstant = arena.addConstant(null);
+            return nilConstant;
+        }
+
+        Integer index = constants.get(value);
+        if (index == null) {
+            index = arena.addConstant(value);
+            constants.put(value, index);
+        }
+        return index;
+    }
+
+    private int distance(Expr expr) {
+        Integer distance = locals.get(expr);
+        return distance == null ? AstArena.GLOBAL : distance;
+    }
+
+    @Override
+    public Integer visitBinaryExpr(Expr.Binary expr) {
+        int left = build(expr.left);
+        int right = build(expr.right);
+        return arena.addNode(AstArena.BINARY, left, right, expr.operator.type.ordinal(), expr.operator.line);
+    }
+
+    @Override
+    public Integer visitCallExpr(Expr.Call expr) {
+        int callee = build(expr.callee);
+        int arguments = buildExpressions(expr.arguments);
+        return arena.addNode(AstArena.CALL, callee, arguments, 0, expr.paren.line);
+    }
+
+    @Override
+    public Integer visitGroupingExpr(Expr.Grouping expr) {
+        return arena.addNode(AstArena.GROUPING, build(expr.expression), 0, 0, 0);
+    }
+
+    @Override
+    public Integer visitLiteralExpr(Expr.Literal expr) {
+        return arena.addNode(AstArena.LITERAL, constant(expr.value), 0, 0, 0);
+    }
+
+    @Override
+    public Integer visitLogicalExpr(Expr.Logical expr) {
+        int left = build(expr.left);
+        int right = build(expr.right);
+        return arena.addNode(AstArena.LOGICAL, left, right, expr.operator.type.ordinal(), expr.operator.line);
+    }
+
+    @Override
+    public Integer visitUnaryExpr(Expr.Unary expr) {
+        int right = build(expr.right);
+        return arena.addNode(AstArena.UNARY, right, 0, expr.operator.type.ordinal(), expr.operator.line);
+    }
+
+    @Override
+    public Integer visitVariableExpr(Expr.Variable expr) {
+        return arena.addNode(AstArena.VARIABLE, name(expr.name), distance(expr), 0, expr.name.line);
+    }
+
+    @Override
+    public Integer visitAssignExpr(Expr.Assign expr) {
+        int value = build(expr.value);
+        return arena.addNode(AstArena.ASSIGN, name(expr.name), distance(expr), value, expr.name.line);
+    }
+
+    @Override
+    public Integer visitAnonFunctionExpr(Expr.AnonFunction expr) {
+        int params = buildNames(expr.params);
+        int body = buildStatements(expr.body);
+        return arena.addNode(AstArena.ANON_FUNCTION, params, body, 0, expr.keyword.line);
+    }
+
+    @Override
+    public Integer visitGetExpr(Expr.Get expr) {
+        int object = build(expr.object);
+        return arena.addNode(AstArena.GET, object, name(expr.name), 0, expr.name.line);
+    }
+
+    @Override
+    public Integer visitSetExpr(Expr.Set expr) {
+        int object = build(expr.object);
+        int value = build(expr.value);
+        return arena.addNode(AstArena.SET, object, name(expr.name), value, expr.name.line);
+    }
+
+    @Override
+    public Integer visitThisExpr(Expr.This expr) {
+        return arena.addNode(AstArena.THIS, distance(expr), 0, 0, expr.keyword.line);
+    }
+
+    @Override
+    public Integer visitSuperExpr(Expr.Super expr) {
+        return arena.addNode(AstArena.SUPER, distance(expr), name(expr.method), 0, expr.keyword.line);
+    }
+
+    @Override
+    public Integer visitIfStmt(Stmt.If stmt) {
+        int condition = build(stmt.condition);
+        int thenBranch = build(stmt.thenBranch);
+        int elseBranch = build(stmt.elseBranch);
+        return arena.addNode(AstArena.IF, condition, thenBranch, elseBranch, stmt.keyword.line);
+    }
+
+    @Override
+    public Integer visitBlockStmt(Stmt.Block stmt) {
+        return arena.addNode(AstArena.BLOCK, buildStatements(stmt.statements), 0, 0, 0);
+    }
+
+    @Override
+    public Integer visitWhileStmt(Stmt.While stmt) {
+        int condition = build(stmt.condition);
+        int body = build(stmt.body);
+        return arena.addNode(AstArena.WHILE, condition, body, 0, stmt.keyword.line);
+    }
+
+    @Override
+    public Integer visitExpressionStmt(Stmt.Expression stmt) {
+        int expression = build(stmt.expression);
+        // the line of the expression, 0 for a lone literal or grouping
+        return arena.addNode(AstArena.EXPRESSION, expression, 0, 0, arena.lines[expression]);
+    }
+
+    @Override
+    public Integer visitFunctionStmt(Stmt.Function stmt) {
+        int params = buildNames(stmt.params);
+        int body = buildStatements(stmt.body);
+        return arena.addNode(AstArena.FUNCTION, name(stmt.name), params, body, stmt.name.line);
+    }
+
+    @Override
+    public Integer visitPrintStmt(Stmt.Print stmt) {
+        return arena.addNode(AstArena.PRINT, build(stmt.expression), 0, 0, stmt.keyword.line);
+    }
+
+    @Override
+    public Integer visitVarStmt(Stmt.Var stmt) {
+        int initializer = build(stmt.initializer);
+        return arena.addNode(AstArena.VAR, name(stmt.name), initializer, 0, stmt.name.line);
+    }
+
+    @Override
+    public Integer visitBreakStmt(Stmt.Break stmt) {
+        return arena.addNode(AstArena.BREAK, 0, 0, 0, stmt.breakToken.line);
+    }
+
+    @Override
+    public Integer visitReturnStmt(Stmt.Return stmt) {
+        return arena.addNode(AstArena.RETURN, build(stmt.value), 0, 0, stmt.keyword.line);
+    }
+
+    @Override
+    public Integer visitForStmt(Stmt.For stmt) {
+        // the initializer lives in the block the parser wraps around the loop
+        // and the increment is already the last statement of the body
+        int condition = build(stmt.condition);
+        int body = buildStatements(stmt.body);
+        return arena.addNode(AstArena.FOR, condition, body, 0, stmt.keyword.line);
+    }
+
+    @Override
+    public Integer visitClassStmt(Stmt.Class stmt) {
+        int superclass = build(stmt.superclass);
+        int methods = buildStatements(stmt.methods);
+        return arena.addNode(AstArena.CLASS, name(stmt.name), superclass, methods, stmt.name.line);
+    }
+
+    @Override
+    public Integer visitImportStmt(Stmt.Import stmt) {
+        return arena.addNode(AstArena.IMPORT, constant(stmt.path.literal), 0, 0, stmt.keyword.line);
+    }
+}
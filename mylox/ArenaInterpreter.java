@@ -0,0 +1,674 @@
+package mylox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is an alternative interpreter that runs programs stored in an
+ * AstArena. Evaluation walks node indices with an int cursor and dispatches on
+ * the kind column with a plain switch, all operands are read from the arena
+ * columns.
+ *
+ * Source is compiled one top level declaration at a time: each declaration is
+ * parsed, resolved and lowered into the arena before the next one is parsed,
+ * so the object tree and the tokens of a large script are never alive at once.
+ */
+class ArenaInterpreter extends Interpreter {
+
+    // shared operator tokens, only their type is looked at when evaluating
+    private static final Token[] OPERATORS = new Token[TokenType.values().length];
+    // stands in for the closing paren of calls when checking callees
+    private static final Token PAREN = new Token(TokenType.RIGHT_PAREN, ")", null, 0);
+
+    static {
+        for (TokenType type : TokenType.values()) {
+            OPERATORS[type.ordinal()] = new Token(type, AstArena.operatorLexeme(type), null, 0);
+        }
+    }
+
+    /**
+     * What the inline cache of a method get found: the class of the last
+     * receiver and its method. Arenas are shared with tasks, loop pieces and
+     * actors on other threads, so the pair is published as one immutable
+     * object through a single reference, a reader never sees the class of one
+     * lookup with the method of another.
+     */
+    record CachedMethod(LoxClass klass, LoxFunction method) {
+    }
+
+    // the arena statements are lowered into, and while a function runs the
+    // arena it was lowered into
+    private AstArena arena;
+    // set once a fork may run functions of the arena, the next statements
+    // are lowered into a new one
+    private boolean arenaShared = false;
+    private Environment environment = globals;
+    // distances recorded by the resolver until the statements are lowered
+    private final Map<Expr, Integer> classicLocals = new HashMap<>();
+
+    ArenaInterpreter() {
+        arena = new AstArena();
+    }
+
+    private ArenaInterpreter(Globals globals, AstArena arena) {
+        super(globals);
+        this.arena = arena;
+    }
+
+    /**
+     * Forks the interpreter. The functions defined so far keep running on the
+     * arena they were lowered into, which is frozen: both interpreters lower
+     * what comes next into arenas of their own. The arena isn't replaced
+     * here, a task may be forked while the program in it runs, and the fork
+     * only starts one when it lowers something, so forks that just call
+     * functions, like tasks and actors, stay small.
+     */
+    @Override
+    Interpreter fork(Globals globals) {
+        if (!arenaShared && arena.nodeCount() > 0)
+            arenaShared = true;
+        ArenaInterpreter fork = new ArenaInterpreter(globals, arena);
+        fork.arenaShared = true;
+        fork.out = out;
+        fork.errors = errors;
+        fork.runtime = runtime;
+        return fork;
+    }
+
+    // starts a new arena to lower into if the current one is shared
+    private void unshareArena() {
+        if (arenaShared) {
+            arena = new AstArena();
+            arenaShared = false;
+        }
+    }
+
+    AstArena arena() {
+        return arena;
+    }
+
+    @Override
+    void resolve(Expr expr, int depth) {
+        classicLocals.put(expr, depth);
+    }
+
+    /**
+     * The statements of a prepared script lowered into an arena of their own.
+     * The arena is frozen once lowered, every run of the script shares it.
+     */
+    record Lowered(AstArena arena, int program) {
+    }
+
+    static Lowered lower(List<Stmt> statements, Map<Expr, Integer> resolved) {
+        AstArena arena = new AstArena();
+        int program = new ArenaBuilder(arena, resolved).buildStatements(statements);
+        arena.trim();
+        return new Lowered(arena, program);
+    }
+
+    @Override
+    void interpret(PreparedScript script) {
+        Lowered lowered = script.lowered();
+        // the program runs in the arena of the script, which other engines
+        // share, so what is lowered next goes into a new arena
+        arena = lowered.arena();
+        arenaShared = true;
+        interpret(lowered.program());
+    }
+
+    @Override
+    void interpret(List<Stmt> statements) {
+        unshareArena();
+        int program = new ArenaBuilder(arena, classicLocals).buildStatements(statements);
+        classicLocals.clear();
+        arena.trim();
+        interpret(program);
+    }
+
+    /**
+     * Compiles the source into the arena and runs it.
+     *
+     * @param source the source text of the program
+     */
+    void run(String source) {
+        int program = compile(source);
+
+        // stop executing if there was an error encountered
+        if (Lox.hadError) return;
+
+        LoxEvents.Phase phase = new LoxEvents.Phase("interpret", Lox.sourceName());
+        interpret(program);
+        long nanos = phase.finish();
+        if (runtime != null)
+            runtime.scriptExecuted(nanos);
+    }
+
+    /**
+     * Scans the source and then parses, resolves and lowers one declaration at a
+     * time. Declarations are still parsed after an error so every syntax error
+     * gets reported, but they are no longer resolved.
+     *
+     * @param source the source text of the program
+     * @return the handle of the list of top level statements
+     */
+    int compile(String source) {
+        unshareArena();
+        LoxEvents.Phase phase = new LoxEvents.Phase("scan", Lox.sourceName());
+        List<Token> tokens = new Scanner(source).scanTokens();
+        phase.finish();
+
+        // parsing, resolving and lowering take turns, so they are one phase
+        phase = new LoxEvents.Phase("compile", Lox.sourceName());
+        Resolver resolver = new Resolver(this);
+        ArenaBuilder builder = new ArenaBuilder(arena, classicLocals);
+        List<Integer> roots = new ArrayList<>();
+
+        new Parser(tokens).parse(statement -> {
+            if (statement == null || Lox.hadError) return;
+
+            // an import brings in the statements of the modules it names
+            List<Stmt> statements = Collections.singletonList(statement);
+            if (statement instanceof Stmt.Import) {
+                statements = Lox.link(statements);
+                if (Lox.hadError) return;
+            }
+
+            resolver.resolve(statements);
+            for (Stmt linked : statements) {
+                int first = arena.nodeCount();
+                roots.add(builder.build(linked));
+                lowered(linked, first, arena.nodeCount());
+            }
+            classicLocals.clear();
+        });
+
+        int[] elements = new int[roots.size()];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = roots.get(i);
+        }
+        int program = arena.addList(elements, elements.length);
+        arena.trim();
+        phase.finish();
+        return program;
+    }
+
+    /**
+     * Called for every top level statement compile lowers into the arena.
+     * Instrumented interpreters use it to map nodes back to their source.
+     *
+     * @param statement the top level statement, it may come from a module
+     * @param from      the first node of the statement
+     * @param to        the node after the last node of the statement
+     */
+    void lowered(Stmt statement, int from, int to) {
+    }
+
+    private void interpret(int program) {
+        try {
+            for (int i = 0; i < arena.listSize(program); i++) {
+                execute(arena.listElement(program, i));
+            }
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        } catch (BreakException breakExcpt) {
+            Lox.error(breakExcpt.getBreakToken().line, "Error found break exception outside of control flow.");
+        }
+    }
+
+    /**
+     * Evaluates the expression node at the cursor.
+     *
+     * @param node the index of the expression node
+     * @return the value of the expression
+     */
+    Object evaluate(int node) {
+        AstArena arena = this.arena;
+
+        switch (arena.kinds[node]) {
+            case AstArena.VARIABLE:
+                return lookupVariable(arena.a[node], arena.b[node], node);
+            case AstArena.LITERAL:
+                return arena.constants[arena.a[node]];
+            case AstArena.BINARY: {
+                // left to right evaluation
+                Object left = evaluate(arena.a[node]);
+                Object right = evaluate(arena.b[node]);
+                Token operator = OPERATORS[arena.c[node]];
+                try {
+                    return binaryOp(operator, left, right);
+                } catch (RuntimeError error) {
+                    throw relocate(error, operator, node);
+                }
+            }
+            case AstArena.NUMBER_BINARY:
+                return evaluateNumberBinary(node);
+            case AstArena.CALL:
+                return evaluateCall(node);
+            case AstArena.GET: {
+                Object object = evaluate(arena.a[node]);
+                if (object instanceof LoxInstance) {
+                    return ((LoxInstance) object).get(arena.strings[arena.b[node]], arena.lines[node]);
+                }
+                if (object instanceof LoxActor) {
+                    return ((LoxActor) object).get(token(node, arena.b[node]));
+                }
+                throw new RuntimeError(token(node, arena.b[node]), "Only instances have properties");
+            }
+            case AstArena.ASSIGN: {
+                Object value = evaluate(arena.c[node]);
+                String name = arena.strings[arena.a[node]];
+                int distance = arena.b[node];
+                if (distance != AstArena.GLOBAL) {
+                    environment.assignAt(distance, name, value);
+                } else {
+                    int line = arena.lines[node];
+                    globals.store(globals.cell(arena.globals, arena.a[node], name, line), name, line, value);
+                }
+                return value;
+            }
+            case AstArena.LOGICAL: {
+                Object left = evaluate(arena.a[node]);
+
+                // or can short circuit if left evaluates to true
+                if (arena.c[node] == TokenType.OR.ordinal()) {
+                    if (isTruthy(left))
+                        return left;
+                } else {
+                    // and short circuits if false
+                    if (!isTruthy(left))
+                        return left;
+                }
+
+                return evaluate(arena.b[node]);
+            }
+            case AstArena.GROUPING:
+                return evaluate(arena.a[node]);
+            case AstArena.UNARY: {
+                Object right = evaluate(arena.a[node]);
+                Token operator = OPERATORS[arena.c[node]];
+                try {
+                    return unaryOp(operator, right);
+                } catch (RuntimeError error) {
+                    throw relocate(error, operator, node);
+                }
+            }
+            case AstArena.THIS:
+                return environment.getAt(arena.a[node], "this");
+            case AstArena.SET: {
+                Object object = evaluate(arena.a[node]);
+                if (!(object instanceof LoxInstance)) {
+                    throw new RuntimeError(token(node, arena.b[node]), "Only instances have fields.");
+                }
+                Object value = evaluate(arena.c[node]);
+                ((LoxInstance) object).set(arena.strings[arena.b[node]], value);
+                return value;
+            }
+            case AstArena.SUPER:
+                return evaluateSuper(node);
+            case AstArena.METHOD_GET:
+                return evaluateMethodGet(node);
+            case AstArena.ANON_FUNCTION:
+                closureCreated();
+                return new ArenaFunction(arena, node, environment, false);
+        }
+
+        // unreachable
+        throw new IllegalStateException("Node " + node + " is not an expression");
+    }
+
+    /**
+     * Executes the statement node at the cursor.
+     *
+     * @param node the index of the statement node
+     */
+    void execute(int node) {
+        AstArena arena = this.arena;
+
+        switch (arena.kinds[node]) {
+            case AstArena.EXPRESSION:
+                evaluate(arena.a[node]);
+                return;
+            case AstArena.VAR: {
+                Object value = null;
+                if (arena.b[node] != AstArena.NONE) {
+                    value = evaluate(arena.b[node]);
+                }
+                environment.define(arena.strings[arena.a[node]], value);
+                return;
+            }
+            case AstArena.IF:
+                if (isTruthy(evaluate(arena.a[node]))) {
+                    execute(arena.b[node]);
+                } else if (arena.c[node] != AstArena.NONE) {
+                    execute(arena.c[node]);
+                }
+                return;
+            case AstArena.RETURN: {
+                Object value = null;
+                if (arena.a[node] != AstArena.NONE)
+                    value = evaluate(arena.a[node]);
+                throw new Return(value);
+            }
+            case AstArena.BLOCK:
+                executeList(arena.a[node], new Environment(environment));
+                return;
+            case AstArena.PRINT:
+                out.println(stringify(evaluate(arena.a[node])));
+                return;
+            case AstArena.FOR:
+                executeFor(node);
+                return;
+            case AstArena.WHILE:
+                while (isTruthy(evaluate(arena.a[node]))) {
+                    try {
+                        execute(arena.b[node]);
+                    } catch (BreakException be) {
+                        break;
+                    }
+                }
+                return;
+            case AstArena.FUNCTION:
+                closureCreated();
+                environment.define(arena.strings[arena.a[node]], new ArenaFunction(arena, node, environment, false));
+                return;
+            case AstArena.BREAK:
+                throw new BreakException(new Token(TokenType.BREAK, "break", null, arena.lines[node]));
+            case AstArena.CLASS:
+                executeClass(node);
+                return;
+            case AstArena.IMPORT:
+                // the module loader places the imported module before this node
+                return;
+        }
+
+        // unreachable
+        throw new IllegalStateException("Node " + node + " is not a statement");
+    }
+
+    /**
+     * Executes a list of statements from the list pool in the given environment.
+     *
+     * @param list        the handle of the statement list
+     * @param environment the environment to execute the statements in
+     */
+    void executeList(int list, Environment environment) {
+        Environment previous = this.environment;
+
+        try {
+            this.environment = environment;
+            int size = arena.listSize(list);
+            for (int i = 0; i < size; i++) {
+                execute(arena.listElement(list, i));
+            }
+        } finally {
+            this.environment = previous;
+        }
+    }
+
+    private Object lookupVariable(int name, int distance, int node) {
+        if (distance != AstArena.GLOBAL) {
+            return environment.getAt(distance, arena.strings[name]);
+        } else {
+            // the name keeps the cell of the global for every site of it
+            return globals.cell(arena.globals, name, arena.strings[name], arena.lines[node]).value;
+        }
+    }
+
+    private Object evaluateCall(int node) {
+        Object callee = evaluate(arena.a[node]);
+
+        int list = arena.b[node];
+        int size = arena.listSize(list);
+        List<Object> arguments = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            arguments.add(evaluate(arena.listElement(list, i)));
+        }
+
+        try {
+            return callFunction(callee, PAREN, arguments);
+        } catch (RuntimeError error) {
+            throw relocate(error, PAREN, node);
+        }
+    }
+
+    /**
+     * Evaluates a binary node that only saw numbers. Operands that aren't
+     * numbers, division by zero and equality, which compares boxed values, go
+     * through binaryOp like any other binary node.
+     */
+    private Object evaluateNumberBinary(int node) {
+        Object left = evaluate(arena.a[node]);
+        Object right = evaluate(arena.b[node]);
+        Token operator = OPERATORS[arena.c[node]];
+
+        if (left instanceof Double && right instanceof Double) {
+            double x = (Double) left;
+            double y = (Double) right;
+            switch (operator.type) {
+                case PLUS: return x + y;
+                case MINUS: return x - y;
+                case STAR: return x * y;
+                case SLASH: if (y != 0) return x / y; break;
+                case GREATER: return x > y;
+                case GREATER_EQUAL: return x >= y;
+                case LESS: return x < y;
+                case LESS_EQUAL: return x <= y;
+                default: break;
+            }
+        }
+
+        try {
+            return binaryOp(operator, left, right);
+        } catch (RuntimeError error) {
+            throw relocate(error, operator, node);
+        }
+    }
+
+    /**
+     * Evaluates a get node that only saw instances of one class and found a
+     * method. The node caches the class and the method it found, so the
+     * superclass chain is only searched again when the class changes.
+     */
+    private Object evaluateMethodGet(int node) {
+        Object object = evaluate(arena.a[node]);
+        if (!(object instanceof LoxInstance)) {
+            if (object instanceof LoxActor)
+                return ((LoxActor) object).get(token(node, arena.b[node]));
+            throw new RuntimeError(token(node, arena.b[node]), "Only instances have properties");
+        }
+
+        LoxInstance instance = (LoxInstance) object;
+        String name = arena.strings[arena.b[node]];
+        // fields shadow methods
+        if (instance.hasField(name)) {
+            return instance.get(name, arena.lines[node]);
+        }
+
+        CachedMethod[] cache = (CachedMethod[]) arena.constants[arena.c[node]];
+        CachedMethod cached = cache[0];
+        LoxClass klass = instance.klass();
+        if (cached == null || cached.klass() != klass) {
+            if (runtime != null)
+                runtime.inlineCacheMiss();
+            LoxFunction method = klass.findMethod(name);
+            if (method == null) {
+                return instance.get(name, arena.lines[node]);
+            }
+            cached = new CachedMethod(klass, method);
+            cache[0] = cached;
+        } else if (runtime != null) {
+            runtime.inlineCacheHit();
+        }
+        return cached.method().bind(instance);
+    }
+
+    private Object evaluateSuper(int node) {
+        int distance = arena.a[node];
+        LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
+
+        LoxInstance object = (LoxInstance) environment.getAt(distance - 1, "this");
+
+        LoxFunction method = superclass.findMethod(arena.strings[arena.b[node]]);
+
+        if (method == null) {
+            String name = arena.strings[arena.b[node]];
+            throw new RuntimeError(token(node, arena.b[node]), "Undefined property '" + name + "'.");
+        }
+
+        return method.bind(object);
+    }
+
+    private void executeFor(int node) {
+        int body = arena.b[node];
+        int size = arena.listSize(body);
+
+        while (isTruthy(evaluate(arena.a[node]))) {
+            try {
+                for (int i = 0; i < size; i++) {
+                    execute(arena.listElement(body, i));
+                }
+            } catch (BreakException be) {
+                break;
+            }
+        }
+    }
+
+    private void executeClass(int node) {
+        Object superclass = null;
+        int superclassNode = arena.b[node];
+        if (superclassNode != AstArena.NONE) {
+            superclass = evaluate(superclassNode);
+            if (!(superclass instanceof LoxClass)) {
+                throw new RuntimeError(token(superclassNode, arena.a[superclassNode]), "Superclass must be a class");
+            }
+        }
+
+        String name = arena.strings[arena.a[node]];
+        environment.define(name, null);
+
+        if (superclass != null) {
+            environment = new Environment(environment);
+            environment.define("super", superclass);
+        }
+
+        Map<String, LoxFunction> methods = new HashMap<>();
+        int list = arena.c[node];
+        for (int i = 0; i < arena.listSize(list); i++) {
+            int method = arena.listElement(list, i);
+            String methodName = arena.strings[arena.a[method]];
+            methods.put(methodName, new ArenaFunction(arena, method, environment, methodName.equals("init")));
+        }
+
+        LoxClass klass = new LoxClass(name, (LoxClass) superclass, methods);
+        if (superclass != null) {
+            environment = environment.enclosing;
+        }
+
+        environment.assign(name, arena.lines[node], klass);
+    }
+
+    // builds a token for error reporting from a name in the string table
+    private Token token(int node, int name) {
+        return new Token(TokenType.IDENTIFIER, arena.strings[name], null, arena.lines[node]);
+    }
+
+    // errors raised against one of the shared tokens get the line of the node,
+    // errors from deeper in the call stack already carry their own line
+    private RuntimeError relocate(RuntimeError error, Token shared, int node) {
+        if (error.token != shared) return error;
+        Token located = new Token(shared.type, shared.lexeme, null, arena.lines[node]);
+        return new RuntimeError(located, error.getMessage());
+    }
+
+    /**
+     * Function object for FUNCTION and ANON_FUNCTION nodes of an arena. It
+     * extends LoxFunction so methods can be stored in and bound by LoxClass.
+     */
+    static class ArenaFunction extends LoxFunction {
+        private final AstArena arena;
+        private final int node;
+
+        ArenaFunction(AstArena arena, int node, Environment closure, boolean isInitializer) {
+            super(null, closure, isInitializer, null);
+            this.arena = arena;
+            this.node = node;
+        }
+
+        // the FUNCTION or ANON_FUNCTION node the function was created from
+        int node() {
+            return node;
+        }
+
+        private boolean isAnonymous() {
+            return arena.kinds[node] == AstArena.ANON_FUNCTION;
+        }
+
+        private int params() {
+            return isAnonymous() ? arena.a[node] : arena.b[node];
+        }
+
+        private int body() {
+            return isAnonymous() ? arena.b[node] : arena.c[node];
+        }
+
+        @Override
+        LoxFunction withClosure(Environment closure) {
+            return new ArenaFunction(arena, node, closure, isInitializer);
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            Environment environment = new Environment(closure);
+            int params = params();
+            int size = arena.listSize(params);
+
+            for (int i = 0; i < size; i++) {
+                environment.define(arena.strings[arena.listElement(params, i)], arguments.get(i));
+            }
+
+            ArenaInterpreter arenaInterpreter = (ArenaInterpreter) interpreter;
+            AstArena caller = arenaInterpreter.arena;
+            // functions of a forked interpreter live in the arena it was
+            // forked from
+            arenaInterpreter.arena = arena;
+            try {
+                arenaInterpreter.executeList(body(), environment);
+            } catch (Return returnValue) {
+                if (isInitializer) return closure.getAt(0, "this");
+                return returnValue.value;
+            } finally {
+                arenaInterpreter.arena = caller;
+            }
+
+            if (isInitializer) return closure.getAt(0, "this");
+            return null;
+        }
+
+        @Override
+        public int arity() {
+            return arena.listSize(params());
+        }
+
+        @Override
+        public String frameName() {
+            if (isAnonymous())
+                return "<anon>:" + arena.lines[node];
+            return arena.strings[arena.a[node]];
+        }
+
+        @Override
+        public int declarationLine() {
+            return arena.lines[node];
+        }
+
+        @Override
+        public String toString() {
+            if (isAnonymous())
+                return "<anon fn expr>";
+            return "<fn " + arena.strings[arena.a[node]] + ">";
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package mylox;
+
+import java.util.Arrays;
+
+/**
+ * This class stores a whole program as a struct of arrays instead of a tree of
+ * node objects. A node is just an index: its kind, up to three operand slots
+ * and its source line live in parallel int arrays. The operand slots hold the
+ * indices of child nodes, of lists in the shared list pool, of names in the
+ * string table, of values in the constant table, operator token types or
+ * resolved scope distances, depending on the kind of the node.
+ *
+ * Names are interned by the ArenaBuilder, so every occurrence of an
+ * identifier shares one string, and the cell of the global of that name
+ * once one was found, and no Token objects are kept alive by the program.
+ *
+ * Slot layout per kind (NONE marks an absent optional child):
+ *
+ * <pre>
+ *   BINARY, LOGICAL  a = left,        b = right,         c = operator type
+ *   UNARY            a = right,                          c = operator type
+ *   GROUPING         a = expression
+ *   LITERAL          a = constant
+ *   VARIABLE         a = name,        b = distance or GLOBAL
+ *   ASSIGN           a = name,        b = distance or GLOBAL, c = value
+ *   CALL             a = callee,      b = argument list
+ *   ANON_FUNCTION    a = param list,  b = body list
+ *   GET              a = object,      b = name
+ *   SET              a = object,      b = name,          c = value
+ *   THIS             a = distance
+ *   SUPER            a = distance,    b = method name
+ *   IF               a = condition,   b = then branch,   c = else branch
+ *   BLOCK            a = statement list
+ *   WHILE            a = condition,   b = body
+ *   EXPRESSION       a = expression
+ *   FUNCTION         a = name,        b = param list,    c = body list
+ *   PRINT            a = expression
+ *   VAR              a = name,        b = initializer
+ *   BREAK
+ *   RETURN           a = value
+ *   FOR              a = condition,   b = body list (ends with the increment)
+ *   CLASS            a = name,        b = superclass,    c = method list
+ *   IMPORT           a = path constant
+ *   NUMBER_BINARY    like BINARY
+ *   METHOD_GET       a = object,      b = name,          c = cache constant
+ * </pre>
+ *
+ * The last two kinds are never built, a node is rewritten to them when a
+ * type profile shows it only saw numbers or one class of receiver. They check
+ * the observed types before taking their fast path and fall back to the
+ * generic evaluation otherwise.
+ */
+class AstArena {
+
+    // expression kinds
+    static final int BINARY = 0;
+    static final int CALL = 1;
+    static final int GROUPING = 2;
+    static final int LITERAL = 3;
+    static final int LOGICAL = 4;
+    static final int UNARY = 5;
+    static final int VARIABLE = 6;
+    static final int ASSIGN = 7;
+    static final int ANON_FUNCTION = 8;
+    static final int GET = 9;
+    static final int SET = 10;
+    static final int THIS = 11;
+    static final int SUPER = 12;
+
+    // statement kinds
+    static final int IF = 13;
+    static final int BLOCK = 14;
+    static final int WHILE = 15;
+    static final int EXPRESSION = 16;
+    static final int FUNCTION = 17;
+    static final int PRINT = 18;
+    static final int VAR = 19;
+    static final int BREAK = 20;
+    static final int RETURN = 21;
+    static final int FOR = 22;
+    static final int CLASS = 23;
+    static final int IMPORT = 24;
+
+    // specialized expression kinds
+    static final int NUMBER_BINARY = 25;
+    static final int METHOD_GET = 26;
+
+    // marks an absent optional child
+    static final int NONE = -1;
+    // distance slot value of variables that were not resolved to a local scope
+    static final int GLOBAL = -1;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    // node columns, indexed by node
+    int[] kinds = new int[INITIAL_CAPACITY];
+    int[] a = new int[INITIAL_CAPACITY];
+    int[] b = new int[INITIAL_CAPACITY];
+    int[] c = new int[INITIAL_CAPACITY];
+    int[] lines = new int[INITIAL_CAPACITY];
+    private int nodeCount = 0;
+
+    // list pool, a list handle points at its length followed by the elements
+    int[] lists = new int[INITIAL_CAPACITY];
+    private int listsSize = 0;
+
+    // side tables for names and literal values
+    String[] strings = new String[INITIAL_CAPACITY];
+    private int stringCount = 0;
+    // the cell every name found last when it was read or assigned as a
+    // global, indexed like the names, see Globals
+    Globals.Cell[] globals = new Globals.Cell[INITIAL_CAPACITY];
+
+    Object[] constants = new Object[INITIAL_CAPACITY];
+    private int constantCount = 0;
+
+    /**
+     * Appends a node to the arena.
+     *
+     * @return the index of the new node
+     */
+    int addNode(int kind, int a, int b, int c, int line) {
+        if (nodeCount == kinds.length) {
+            int capacity = Math.max(INITIAL_CAPACITY, nodeCount * 2);
+            kinds = Arrays.copyOf(kinds, capacity);
+            this.a = Arrays.copyOf(this.a, capacity);
+            this.b = Arrays.copyOf(this.b, capacity);
+            this.c = Arrays.copyOf(this.c, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+
+        kinds[nodeCount] = kind;
+        this.a[nodeCount] = a;
+        this.b[nodeCount] = b;
+        this.c[nodeCount] = c;
+        lines[nodeCount] = line;
+        return nodeCount++;
+    }
+
+    /**
+     * Copies the elements into the list pool.
+     *
+     * @return the handle of the list
+     */
+    int addList(int[] elements, int length) {
+        ensureListCapacity(length + 1);
+        int handle = listsSize;
+        lists[listsSize++] = length;
+        System.arraycopy(elements, 0, lists, listsSize, length);
+        listsSize += length;
+        return handle;
+    }
+
+    private void ensureListCapacity(int extra) {
+        if (listsSize + extra > lists.length) {
+            lists = Arrays.copyOf(lists, Math.max(lists.length * 2, listsSize + extra));
+        }
+    }
+
+    int listSize(int list) {
+        return lists[list];
+    }
+
+    int listElement(int list, int i) {
+        return lists[list + 1 + i];
+    }
+
+    /**
+     * Appends a name to the string table.
+     *
+     * @return the index of the name
+     */
+    int addString(String string) {
+        if (stringCount == strings.length) {
+            strings = Arrays.copyOf(strings, Math.max(INITIAL_CAPACITY, stringCount * 2));
+            globals = Arrays.copyOf(globals, strings.length);
+        }
+        strings[stringCount] = string;
+        return stringCount++;
+    }
+
+    /**
+     * Appends a literal value to the constant table.
+     *
+     * @return the index of the value
+     */
+    int addConstant(Object value) {
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, Math.max(INITIAL_CAPACITY, constantCount * 2));
+        }
+        constants[constantCount] = value;
+        return constantCount++;
+    }
+
+    /**
+     * Drops the spare capacity left over from growing the arrays. Called once a
+     * program is complete, later appends simply grow the arrays again.
+     */
+    void trim() {
+        kinds = Arrays.copyOf(kinds, nodeCount);
+        a = Arrays.copyOf(a, nodeCount);
+        b = Arrays.copyOf(b, nodeCount);
+        c = Arrays.copyOf(c, nodeCount);
+        lines = Arrays.copyOf(lines, nodeCount);
+        lists = Arrays.copyOf(lists, listsSize);
+        strings = Arrays.copyOf(strings, stringCount);
+        globals = Arrays.copyOf(globals, stringCount);
+        constants = Arrays.copyOf(constants, constantCount);
+    }
+
+    int nodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Recovers the source text of an operator, the arena only keeps the token
+     * type of operators.
+     *
+     * @param type the token type stored in the operator slot
+     * @return the lexeme of the operator
+     */
+    static String operatorLexeme(TokenType type) {
+        switch (type) {
+            case MINUS: return "-";
+            case PLUS: return "+";
+            case SLASH: return "/";
+            case STAR: return "*";
+            case BANG: return "!";
+            case BANG_EQUAL: return "!=";
+            case EQUAL_EQUAL: return "==";
+            case GREATER: return ">";
+            case GREATER_EQUAL: return ">=";
+            case LESS: return "<";
+            case LESS_EQUAL: return "<=";
+            case AND: return "and";
+            case OR: return "or";
+            default: return type.name();
+        }
+    }
+}
@@ -7,14 +7,18 @@ package mylox;
  */
 public class BreakException extends RuntimeException {
 
-    private Stmt.Break myBreak;
+    private final Token breakToken;
 
     public BreakException(Stmt.Break myBreak) {
+        this(myBreak.breakToken);
+    }
+
+    public BreakException(Token breakToken) {
         super(null, null, false, false);
-        this.myBreak = myBreak;
+        this.breakToken = breakToken;
     }
 
-    public Stmt.Break getMyBreak() {
-        return myBreak;
+    public Token getBreakToken() {
+        return breakToken;
     }
 }
\ No newline at end of file
@@ -0,0 +1,221 @@
+package mylox;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class is the interpreter behind --coverage. It runs on the arena, where
+ * every node already has a number, and keeps one bit per node: a statement
+ * sets its bit when it's executed, a function when it's called. The conditions
+ * of if, while and for statements and the left operands of and and or are
+ * branch points, for them two more bits record whether they were seen true
+ * and seen false.
+ *
+ * Nodes are mapped back to their file as compile lowers every top level
+ * statement, so statements of imported modules are reported against the
+ * module. At exit the bits are written as an lcov tracefile with line,
+ * function and branch records. The bits only tell whether something ran, so
+ * every hit count in the report is 0 or 1.
+ */
+class CoverageInterpreter extends ArenaInterpreter {
+
+    // one bit per node
+    private long[] executed = new long[0];
+    private long[] conditions = new long[0];
+    private long[] seenTrue = new long[0];
+    private long[] seenFalse = new long[0];
+    private long[] called = new long[0];
+
+    // index into files of the file every node comes from
+    private int[] fileOf = new int[0];
+    private final List<Path> files = new ArrayList<>();
+    // Class.method names of the methods, by node
+    private final Map<Integer, String> methodNames = new HashMap<>();
+
+    @Override
+    void lowered(Stmt statement, int from, int to) {
+        ensureCapacity(to);
+        AstArena arena = arena();
+
+        Path source = Lox.sourceOf(statement);
+        int file = files.indexOf(source);
+        if (file < 0) {
+            file = files.size();
+            files.add(source);
+        }
+        Arrays.fill(fileOf, from, to, file);
+
+        for (int node = from; node < to; node++) {
+            switch (arena.kinds[node]) {
+                case AstArena.IF:
+                case AstArena.WHILE:
+                case AstArena.FOR:
+                case AstArena.LOGICAL:
+                    int condition = arena.a[node];
+                    conditions[condition >>> 6] |= 1L << condition;
+                    break;
+                case AstArena.CLASS:
+                    int methods = arena.c[node];
+                    for (int i = 0; i < arena.listSize(methods); i++) {
+                        int method = arena.listElement(methods, i);
+                        methodNames.put(method, arena.strings[arena.a[node]] + "." + arena.strings[arena.a[method]]);
+                    }
+                    break;
+            }
+        }
+    }
+
+    @Override
+    void execute(int node) {
+        executed[node >>> 6] |= 1L << node;
+        super.execute(node);
+    }
+
+    @Override
+    Object evaluate(int node) {
+        Object value = super.evaluate(node);
+        if ((conditions[node >>> 6] & (1L << node)) != 0) {
+            if (isTruthy(value)) {
+                seenTrue[node >>> 6] |= 1L << node;
+            } else {
+                seenFalse[node >>> 6] |= 1L << node;
+            }
+        }
+        return value;
+    }
+
+    @Override
+    Object callFunction(Object callee, Token paren, List<Object> arguments) {
+        Object function = callee;
+        // the initializer is called by the class, not through here
+        if (callee instanceof LoxClass)
+            function = ((LoxClass) callee).findMethod("init");
+        if (function instanceof ArenaFunction) {
+            int node = ((ArenaFunction) function).node();
+            called[node >>> 6] |= 1L << node;
+        }
+        return super.callFunction(callee, paren, arguments);
+    }
+
+    private void ensureCapacity(int nodes) {
+        int words = (nodes + 63) >>> 6;
+        if (words > executed.length) {
+            int capacity = Math.max(words, executed.length * 2);
+            executed = Arrays.copyOf(executed, capacity);
+            conditions = Arrays.copyOf(conditions, capacity);
+            seenTrue = Arrays.copyOf(seenTrue, capacity);
+            seenFalse = Arrays.copyOf(seenFalse, capacity);
+            called = Arrays.copyOf(called, capacity);
+        }
+        if (nodes > fileOf.length)
+            fileOf = Arrays.copyOf(fileOf, Math.max(nodes, fileOf.length * 2));
+    }
+
+    private static boolean isSet(long[] bits, int node) {
+        return (bits[node >>> 6] & (1L << node)) != 0;
+    }
+
+    private static boolean isStatement(int kind) {
+        switch (kind) {
+            case AstArena.EXPRESSION:
+            case AstArena.VAR:
+            case AstArena.PRINT:
+            case AstArena.IF:
+            case AstArena.WHILE:
+            case AstArena.FOR:
+            case AstArena.RETURN:
+            case AstArena.BREAK:
+            case AstArena.FUNCTION:
+            case AstArena.CLASS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Writes the coverage of every file the program was compiled from as an
+     * lcov tracefile.
+     *
+     * @param path the file to write to
+     */
+    void write(Path path) throws IOException {
+        AstArena arena = arena();
+        int nodeCount = arena.nodeCount();
+
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8))) {
+            for (int file = 0; file < files.size(); file++) {
+                // hit flag per line and the function and branch records
+                Map<Integer, Boolean> lines = new TreeMap<>();
+                List<String> functions = new ArrayList<>();
+                List<String> functionHits = new ArrayList<>();
+                List<String> branches = new ArrayList<>();
+                int functionsHit = 0;
+                int branchesHit = 0;
+
+                for (int node = 0; node < nodeCount && node < fileOf.length; node++) {
+                    if (fileOf[node] != file)
+                        continue;
+                    int kind = arena.kinds[node];
+                    int line = arena.lines[node];
+
+                    if (isStatement(kind) && line > 0) {
+                        // a method is never executed as a statement, only called
+                        boolean hit = isSet(executed, node) || isSet(called, node);
+                        lines.merge(line, hit, Boolean::logicalOr);
+                    }
+
+                    if (kind == AstArena.FUNCTION || kind == AstArena.ANON_FUNCTION) {
+                        String name = kind == AstArena.ANON_FUNCTION ? "<anon>:" + line
+                                : methodNames.getOrDefault(node, arena.strings[arena.a[node]]);
+                        boolean hit = isSet(called, node);
+                        functions.add("FN:" + line + "," + name);
+                        functionHits.add("FNDA:" + (hit ? 1 : 0) + "," + name);
+                        if (hit)
+                            functionsHit++;
+                    }
+
+                    if (kind == AstArena.IF || kind == AstArena.WHILE || kind == AstArena.FOR
+                            || kind == AstArena.LOGICAL) {
+                        int condition = arena.a[node];
+                        boolean onTrue = isSet(seenTrue, condition);
+                        boolean onFalse = isSet(seenFalse, condition);
+                        boolean evaluated = onTrue || onFalse;
+                        branches.add("BRDA:" + line + "," + node + ",0," + (evaluated ? onTrue ? "1" : "0" : "-"));
+                        branches.add("BRDA:" + line + "," + node + ",1," + (evaluated ? onFalse ? "1" : "0" : "-"));
+                        branchesHit += (onTrue ? 1 : 0) + (onFalse ? 1 : 0);
+                    }
+                }
+
+                Path source = files.get(file);
+                out.println("TN:");
+                out.println("SF:" + (source == null ? "<prompt>" : source.toString()));
+                functions.forEach(out::println);
+                functionHits.forEach(out::println);
+                out.println("FNF:" + functions.size());
+                out.println("FNH:" + functionsHit);
+                branches.forEach(out::println);
+                out.println("BRF:" + branches.size());
+                out.println("BRH:" + branchesHit);
+                int linesHit = 0;
+                for (Map.Entry<Integer, Boolean> line : lines.entrySet()) {
+                    out.println("DA:" + line.getKey() + "," + (line.getValue() ? 1 : 0));
+                    if (line.getValue())
+                        linesHit++;
+                }
+                out.println("LF:" + lines.size());
+                out.println("LH:" + linesHit);
+                out.println("end_of_record");
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package mylox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class is the interpreter behind --debug. It stops on statement
+ * boundaries, at breakpoints and while stepping, and hands control to a
+ * listener, which inspects the program through this class and decides how to
+ * go on before it returns.
+ *
+ * Execution arrives at a line with the first statement on it. Lines with more
+ * than one statement stop once, unless a block or a call starts in between,
+ * so a loop written on one line stops every iteration. Breakpoints are lines
+ * only, a line of an imported module is the same line as in the script.
+ *
+ * The checks live in this subclass, the plain interpreter runs without any of
+ * them when no debugger is attached.
+ */
+class DebugInterpreter extends Interpreter {
+
+    /**
+     * Called when the interpreter stops. It runs on the interpreter thread, the
+     * program continues once it returns.
+     */
+    interface Listener {
+        void paused(DebugInterpreter interpreter);
+    }
+
+    private enum Mode {
+        RUN, STEP_INTO, STEP_OVER, STEP_OUT
+    }
+
+    private Listener listener = null;
+    private boolean[] breakpoints = new boolean[64];
+    private Mode mode = Mode.RUN;
+    // call depth the step started at
+    private int stepDepth = 0;
+    // line of the statement running now, 0 after a block or call started
+    private int line = 0;
+
+    // names of the functions called and the lines they were called from
+    private final List<String> frames = new ArrayList<>();
+    private final List<Integer> callLines = new ArrayList<>();
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    void setBreakpoint(int at) {
+        if (at >= breakpoints.length)
+            breakpoints = Arrays.copyOf(breakpoints, Math.max(at + 1, breakpoints.length * 2));
+        breakpoints[at] = true;
+    }
+
+    /**
+     * @return false if there was no breakpoint on the line
+     */
+    boolean clearBreakpoint(int at) {
+        if (at < 0 || at >= breakpoints.length || !breakpoints[at])
+            return false;
+        breakpoints[at] = false;
+        return true;
+    }
+
+    List<Integer> breakpoints() {
+        List<Integer> lines = new ArrayList<>();
+        for (int at = 0; at < breakpoints.length; at++) {
+            if (breakpoints[at])
+                lines.add(at);
+        }
+        return lines;
+    }
+
+    /**
+     * Runs on to the next breakpoint.
+     */
+    void resume() {
+        mode = Mode.RUN;
+    }
+
+    /**
+     * Stops at the next line, in a function called on this one if there is.
+     */
+    void stepInto() {
+        step(Mode.STEP_INTO);
+    }
+
+    /**
+     * Stops at the next line of this function, or of its caller if it returns.
+     */
+    void stepOver() {
+        step(Mode.STEP_OVER);
+    }
+
+    /**
+     * Stops at the next line after this function returned.
+     */
+    void stepOut() {
+        step(Mode.STEP_OUT);
+    }
+
+    private void step(Mode next) {
+        mode = next;
+        stepDepth = frames.size();
+    }
+
+    /**
+     * @return the line the interpreter stopped at
+     */
+    int line() {
+        return line;
+    }
+
+    /**
+     * Describes the call stack, the innermost call first. Every frame is the
+     * function and the line running in it, the script itself is the last
+     * frame.
+     */
+    List<String> backtrace() {
+        List<String> trace = new ArrayList<>();
+        int at = line;
+        for (int frame = frames.size() - 1; frame >= 0; frame--) {
+            trace.add(frames.get(frame) + " at line " + at);
+            at = callLines.get(frame);
+        }
+        trace.add("<script> at line " + at);
+        return trace;
+    }
+
+    @Override
+    void execute(Stmt stmt) {
+        int at = SourceLines.of(stmt);
+        if (at > 0 && at != line) {
+            boolean stop = isBreakpoint(at);
+            switch (mode) {
+                case STEP_INTO:
+                    stop = true;
+                    break;
+                case STEP_OVER:
+                    stop |= frames.size() <= stepDepth;
+                    break;
+                case STEP_OUT:
+                    stop |= frames.size() < stepDepth;
+                    break;
+                default:
+                    break;
+            }
+            line = at;
+            if (stop && listener != null) {
+                mode = Mode.RUN;
+                listener.paused(this);
+            }
+        }
+        super.execute(stmt);
+    }
+
+    private boolean isBreakpoint(int at) {
+        return at < breakpoints.length && breakpoints[at];
+    }
+
+    @Override
+    void executeBlock(List<Stmt> statements, Environment environment) {
+        // the first statement of every block and function body is an arrival
+        line = 0;
+        super.executeBlock(statements, environment);
+    }
+
+    @Override
+    Object callFunction(Object callee, Token paren, List<Object> arguments) {
+        int caller = line;
+        frames.add(callee instanceof LoxCallable ? ((LoxCallable) callee).frameName() : String.valueOf(callee));
+        callLines.add(caller);
+        try {
+            return super.callFunction(callee, paren, arguments);
+        } finally {
+            frames.remove(frames.size() - 1);
+            callLines.remove(callLines.size() - 1);
+            line = caller;
+        }
+    }
+}
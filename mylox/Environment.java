@@ -1,5 +1,6 @@
 package mylox;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -18,6 +19,13 @@ public class Environment {
         this.enclosing = enclosing;
     }
 
+    /**
+     * @return a read only view of the variables of this scope alone
+     */
+    Map<String, Object> variables() {
+        return Collections.unmodifiableMap(values);
+    }
+
     // add variable name with object to map
     void define(String name, Object value) {
         values.put(name, value);
@@ -51,6 +59,22 @@ public class Environment {
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 
+    // token free variant of get(Token) for callers that don't keep tokens
+    // around, the token is only created to report an undefined variable
+    Object get(String name, int line) {
+        for (Environment environment = this; environment != null; environment = environment.enclosing) {
+            // the globals keep their variables in cells
+            if (environment instanceof Globals)
+                return environment.get(name, line);
+            if (environment.values.containsKey(name)) {
+                return environment.values.get(name);
+            }
+        }
+
+        throw new RuntimeError(new Token(TokenType.IDENTIFIER, name, null, line),
+                "Undefined variable '" + name + "'.");
+    }
+
     void assign(Token name, Object value) {
         // start in innermost scope
         if (values.containsKey(name.lexeme)) {
@@ -67,9 +91,30 @@ public class Environment {
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 
+    // token free variant of assign(Token, Object)
+    void assign(String name, int line, Object value) {
+        for (Environment environment = this; environment != null; environment = environment.enclosing) {
+            if (environment instanceof Globals) {
+                environment.assign(name, line, value);
+                return;
+            }
+            if (environment.values.containsKey(name)) {
+                environment.values.put(name, value);
+                return;
+            }
+        }
+
+        throw new RuntimeError(new Token(TokenType.IDENTIFIER, name, null, line),
+                "Undefined variable '" + name + "'.");
+    }
+
     // assign at the specific distance within the environment
     // chain the value associated with the name
     void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+        assignAt(distance, name.lexeme, value);
+    }
+
+    void assignAt(int distance, String name, Object value) {
+        ancestor(distance).values.put(name, value);
     }
 }
@@ -0,0 +1,38 @@
+package mylox;
+
+/**
+ * Receives the static errors found by the scanner, parser and resolver, and
+ * the errors of imported modules and runtime errors of the thread it's set
+ * for. Embedders implement it to collect the errors of their LoxEngine.
+ */
+public interface ErrorReporter {
+
+    /**
+     * Reports an error.
+     * 
+     * @param line    the line of the error
+     * @param token   the offending token or null for scanner errors, which only
+     *                know the line
+     * @param where   a description of the location, e.g. " at 'x'"
+     * @param message the message associated with the error
+     */
+    void report(int line, Token token, String where, String message);
+
+    /**
+     * Reports an error in an imported module.
+     * 
+     * @param error the message, already formatted with the module and the line
+     */
+    default void moduleError(String error) {
+        report(0, null, "", error);
+    }
+
+    /**
+     * Reports the runtime error that stopped a script.
+     * 
+     * @param error the error
+     */
+    default void runtimeError(RuntimeError error) {
+        report(error.token.line, error.token, "", error.getMessage());
+    }
+}
@@ -115,6 +115,7 @@ abstract class Expr {
     }
 
     final Token name;
+    final Globals.Cell[] global = new Globals.Cell[1];
   }
   static class Assign extends Expr {
     Assign(Token name, Expr value) {
@@ -129,9 +130,11 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+    final Globals.Cell[] global = new Globals.Cell[1];
   }
   static class AnonFunction extends Expr {
-    AnonFunction(List<Token> params, List<Stmt> body) {
+    AnonFunction(Token keyword, List<Token> params, List<Stmt> body) {
+      this.keyword = keyword;
       this.params = params;
       this.body = body;
     }
@@ -141,6 +144,7 @@ abstract class Expr {
       return visitor.visitAnonFunctionExpr(this);
     }
 
+    final Token keyword;
     final List<Token> params;
     final List<Stmt> body;
   }
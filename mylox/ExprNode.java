@@ -0,0 +1,38 @@
+package mylox;
+
+import java.util.List;
+
+sealed interface ExprNode {
+  record Binary(ExprNode left, Token operator, ExprNode right) implements ExprNode {
+  }
+  record Call(ExprNode callee, Token paren, List<ExprNode> arguments) implements ExprNode {
+  }
+  record Grouping(ExprNode expression) implements ExprNode {
+  }
+  record Literal(Object value) implements ExprNode {
+  }
+  record Logical(ExprNode left, Token operator, ExprNode right) implements ExprNode {
+  }
+  record Unary(Token operator, ExprNode right) implements ExprNode {
+  }
+  record Variable(Token name, Globals.Cell[] global) implements ExprNode {
+    Variable(Token name) {
+      this(name, new Globals.Cell[1]);
+    }
+  }
+  record Assign(Token name, ExprNode value, Globals.Cell[] global) implements ExprNode {
+    Assign(Token name, ExprNode value) {
+      this(name, value, new Globals.Cell[1]);
+    }
+  }
+  record AnonFunction(Token keyword, List<Token> params, List<StmtNode> body) implements ExprNode {
+  }
+  record Get(ExprNode object, Token name) implements ExprNode {
+  }
+  record Set(ExprNode object, Token name, ExprNode value) implements ExprNode {
+  }
+  record This(Token keyword) implements ExprNode {
+  }
+  record Super(Token keyword, Token method) implements ExprNode {
+  }
+}
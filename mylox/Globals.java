@@ -0,0 +1,188 @@
+package mylox;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class is the global scope of an interpreter. Every global lives in a
+ * cell of its own, and the sites that read or assign a global keep the cell
+ * they found, so after the first access from these globals a site reads the
+ * value with one volatile load, without looking the name up. Cells are never
+ * removed or replaced, defining a global again stores into its cell.
+ *
+ * Tasks, actors and the pieces of parallel loops run on forks of the globals
+ * of the interpreter that started them, on other threads. A fork starts
+ * empty and takes a cell of its own for a global the first time it uses it,
+ * with the value the global has in the scope it was forked from at that
+ * moment, so forking costs the same however many globals there are, and
+ * what a fork defines or assigns stays its own. The names are kept in a
+ * concurrent map, forks look up the globals they haven't used yet while the
+ * interpreter they came from defines new ones.
+ */
+final class Globals extends Environment {
+
+    /**
+     * The cell of one global. The globals it belongs to are kept with it, a
+     * site checks them before using the cell it kept.
+     */
+    static final class Cell {
+        final Globals owner;
+        volatile Object value;
+
+        private Cell(Globals owner, Object value) {
+            this.owner = owner;
+            this.value = value;
+        }
+    }
+
+    private final Map<String, Cell> cells = new ConcurrentHashMap<>();
+    // the globals this scope was forked from, null if it wasn't
+    private final Globals origin;
+    // why the globals can't be written to, null while they can
+    private String readOnly = null;
+
+    Globals() {
+        this.origin = null;
+    }
+
+    private Globals(Globals origin) {
+        this.origin = origin;
+    }
+
+    /**
+     * Forks the globals. The fork takes the globals it uses from these, as
+     * they are when it first uses them, and what it writes stays its own.
+     *
+     * @return the fork
+     */
+    Globals fork() {
+        return new Globals(this);
+    }
+
+    /**
+     * Copies every global into globals of their own, which nothing this scope
+     * does later changes.
+     *
+     * @return the copy
+     */
+    Globals copy() {
+        Globals copy = new Globals();
+        variables().forEach(copy::define);
+        return copy;
+    }
+
+    /**
+     * Rejects every write to these globals from now on. Forks of them can be
+     * written to again.
+     *
+     * @param reason the message of the error a write throws
+     */
+    void readOnly(String reason) {
+        readOnly = reason;
+    }
+
+    /**
+     * Finds the cell of a global, taking it over from the globals this scope
+     * was forked from the first time.
+     *
+     * @return the cell, null if the global isn't defined
+     */
+    Cell cell(String name) {
+        Cell cell = cells.get(name);
+        if (cell == null && origin != null) {
+            Cell inherited = origin.cell(name);
+            if (inherited != null) {
+                Cell own = new Cell(this, inherited.value);
+                cell = cells.putIfAbsent(name, own);
+                if (cell == null)
+                    cell = own;
+            }
+        }
+        return cell;
+    }
+
+    /**
+     * Finds the cell of a global for an access site. The site keeps the cell
+     * in its slot of the array, the next access from these globals takes it
+     * from there.
+     *
+     * @param sites the cells the sites found last
+     * @param site  the slot of the site
+     * @param name  the name of the global
+     * @param line  the line of the site, for the error
+     * @return the cell
+     */
+    Cell cell(Cell[] sites, int site, String name, int line) {
+        Cell cell = sites[site];
+        if (cell == null || cell.owner != this) {
+            cell = cell(name);
+            if (cell == null)
+                throw undefined(name, line);
+            sites[site] = cell;
+        }
+        return cell;
+    }
+
+    /**
+     * Assigns a global through the cell an access site found.
+     */
+    void store(Cell cell, String name, int line, Object value) {
+        if (readOnly != null)
+            throw new RuntimeError(new Token(TokenType.IDENTIFIER, name, null, line), readOnly);
+        cell.value = value;
+    }
+
+    /**
+     * @return the values of the globals, with the ones this scope didn't use
+     *         yet from the globals it was forked from, sorted by name
+     */
+    @Override
+    Map<String, Object> variables() {
+        Map<String, Object> variables = origin == null ? new TreeMap<>() : origin.variables();
+        cells.forEach((name, cell) -> variables.put(name, cell.value));
+        return variables;
+    }
+
+    @Override
+    void define(String name, Object value) {
+        if (readOnly != null)
+            throw new RuntimeError(null, readOnly);
+        Cell cell = cells.get(name);
+        if (cell == null)
+            cell = cells.putIfAbsent(name, new Cell(this, value));
+        if (cell != null)
+            cell.value = value;
+    }
+
+    @Override
+    Object get(Token name) {
+        return get(name.lexeme, name.line);
+    }
+
+    @Override
+    Object get(String name, int line) {
+        Cell cell = cell(name);
+        if (cell == null)
+            throw undefined(name, line);
+        return cell.value;
+    }
+
+    @Override
+    void assign(Token name, Object value) {
+        assign(name.lexeme, name.line, value);
+    }
+
+    @Override
+    void assign(String name, int line, Object value) {
+        Cell cell = cell(name);
+        if (cell == null)
+            throw undefined(name, line);
+        store(cell, name, line, value);
+    }
+
+    private static RuntimeError undefined(String name, int line) {
+        return new RuntimeError(new Token(TokenType.IDENTIFIER, name, null, line),
+                "Undefined variable '" + name + "'.");
+    }
+}
@@ -1,5 +1,6 @@
 package mylox;
 
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
@@ -29,11 +30,27 @@ import mylox.Stmt.While;
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     // interpreter has its global environment
-    final Environment globals = new Environment();
-    private Environment environment = globals;
+    final Globals globals;
+    private Environment environment;
     private Map<Expr, Integer> locals = new HashMap<>();
+    // set while locals is shared with another interpreter, the first
+    // resolve copies it
+    private boolean sharedLocals = false;
+    // records the Lox call stack when --profile is on, null otherwise
+    LoxProfiler profiler = null;
+    // live counters published over JMX when --jmx is on, null otherwise
+    LoxRuntime runtime = null;
+    // where print statements write, every engine of an embedder has its own
+    PrintStream out = System.out;
+    // receives the runtime errors of event loop callbacks for the engine
+    // that owns the interpreter, null to report them like the script's own
+    ErrorReporter errors = null;
+    // created by the first asynchronous native, see eventLoop()
+    private LoxEventLoop eventLoop = null;
 
     Interpreter() {
+        this(new Globals());
+
         // define global function for use in interpreter
         globals.define("clock", new LoxCallable() {
             public int arity() {
@@ -55,7 +72,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
 
             public Object call(Interpreter interpreter, List<Object> arguments) {
-                System.out.println(arguments.get(0));
+                interpreter.out.println(arguments.get(0));
                 return null;
             }
 
@@ -63,6 +80,79 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 return "<native fn>";
             }
         });
+
+        LoxTask.defineNatives(globals);
+        LoxChannel.defineNatives(globals);
+        LoxParallel.defineNatives(globals);
+        LoxActor.defineNatives(globals);
+        LoxPromise.defineNatives(globals);
+        LoxEventLoop.defineNatives(globals);
+        LoxSocket.defineNatives(globals);
+        TimerWheel.defineNatives(globals);
+        LoxCell.defineNatives(globals);
+    }
+
+    /**
+     * Creates an interpreter on globals that are already set up, the natives
+     * aren't defined again.
+     * 
+     * @param globals the global environment
+     */
+    Interpreter(Globals globals) {
+        this.globals = globals;
+        this.environment = globals;
+    }
+
+    /**
+     * @return the event loop of this interpreter, started on the first call
+     */
+    LoxEventLoop eventLoop() {
+        if (eventLoop == null)
+            eventLoop = new LoxEventLoop(this);
+        return eventLoop;
+    }
+
+    /**
+     * Runs the callbacks of the asynchronous natives the program called until
+     * nothing is pending anymore, if it called any.
+     */
+    void runEventLoop() {
+        if (eventLoop != null)
+            eventLoop.run();
+    }
+
+    /**
+     * Starts a new interpreter from everything this one defined and resolved
+     * so far. The fork takes the globals it uses from this interpreter the
+     * first time it uses them, see Globals, and the scope distances are shared
+     * until either interpreter resolves more, so forking takes the same time
+     * however much was defined. The fork prints to the same stream and counts
+     * into the same runtime.
+     * 
+     * @return the new interpreter
+     */
+    Interpreter fork() {
+        return fork(globals.fork());
+    }
+
+    /**
+     * Starts a new interpreter like fork(), on the given globals. Engines that
+     * lower the program into their own representation override it.
+     *
+     * @param globals the globals of the new interpreter
+     * @return the new interpreter
+     */
+    Interpreter fork(Globals globals) {
+        Interpreter fork = new Interpreter(globals);
+        fork.out = out;
+        fork.errors = errors;
+        fork.runtime = runtime;
+        fork.locals = locals;
+        fork.sharedLocals = true;
+        // a snapshot is forked by many threads, only the first fork writes
+        if (!sharedLocals)
+            sharedLocals = true;
+        return fork;
     }
 
     /**
@@ -78,11 +168,32 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
         } catch (BreakException breakExcpt) {
-            Lox.error(breakExcpt.getMyBreak().breakToken.line, "Error found break exception outside of control flow.");
+            Lox.error(breakExcpt.getBreakToken().line, "Error found break exception outside of control flow.");
+        }
+    }
+
+    /**
+     * Runs a script that was resolved ahead of time, without modifying it.
+     * 
+     * @param script the prepared script
+     */
+    void interpret(PreparedScript script) {
+        // the script runs with its own table, the functions it declares keep
+        // it, so nothing of the script stays in the table of the interpreter
+        Map<Expr, Integer> previous = locals;
+        locals = script.locals();
+        try {
+            interpret(script.statements());
+        } finally {
+            locals = previous;
         }
     }
 
     void resolve(Expr expr, int depth) {
+        if (sharedLocals) {
+            locals = new HashMap<>(locals);
+            sharedLocals = false;
+        }
         locals.put(expr, depth);
     }
 
@@ -92,7 +203,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
      * @param object the value of the expression that was evaluated
      * @return the stringified expression
      */
-    private String stringify(Object object) {
+    String stringify(Object object) {
         if (object == null)
             return "nil";
 
@@ -122,11 +233,24 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
+        return binaryOp(expr.operator, left, right);
+    }
+
+    /**
+     * Applies a binary operator to two already evaluated operands. This is shared
+     * by every interpreter variant so the operator semantics live in one place.
+     * 
+     * @param operator the operator token of the binary expression
+     * @param left     the evaluated left operand
+     * @param right    the evaluated right operand
+     * @return the value of the operation
+     */
+    Object binaryOp(Token operator, Object left, Object right) {
         // return expression based on operator type
         // also check for runtime errors based on types
-        switch (expr.operator.type) {
+        switch (operator.type) {
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left - (double) right;
             // plus operator handles addition and string concatenation
             case PLUS:
@@ -148,31 +272,31 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 }
 
                 // otherwise throw error
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
 
             // mult and division
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 if ((double) right == 0)
-                    throw new RuntimeError(expr.operator, "Division by zero.");
+                    throw new RuntimeError(operator, "Division by zero.");
 
                 return (double) left / (double) right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left * (double) right;
 
             // comparison operations
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left > (double) right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left >= (double) right;
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left < (double) right;
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left <= (double) right;
 
             // equality operations
@@ -201,7 +325,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
      * @param expr the expression to be evaluated
      * @return the value of the expression evaluated
      */
-    private Object evaluate(Expr expr) {
+    Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
@@ -210,10 +334,17 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
      * 
      * @param stmt
      */
-    private void execute(Stmt stmt) {
+    void execute(Stmt stmt) {
         stmt.accept(this);
     }
 
+    /**
+     * @return the innermost scope of the code running now
+     */
+    Environment currentEnvironment() {
+        return environment;
+    }
+
     /**
      * 
      * @param statements
@@ -237,6 +368,20 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
+    /**
+     * Runs the body of a function with the distances of the script the
+     * function was declared in, which may not be the one running now.
+     */
+    void executeBody(List<Stmt> body, Environment environment, Map<Expr, Integer> locals) {
+        Map<Expr, Integer> caller = this.locals;
+        this.locals = locals;
+        try {
+            executeBlock(body, environment);
+        } finally {
+            this.locals = caller;
+        }
+    }
+
     /**
      * Converts literal expressions into its corresponding runtime value.
      */
@@ -255,12 +400,23 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         // Post-Order traversal evaluation of tree
         Object right = evaluate(expr.right);
 
+        return unaryOp(expr.operator, right);
+    }
+
+    /**
+     * Applies a unary operator to an already evaluated operand.
+     * 
+     * @param operator the operator token of the unary expression
+     * @param right    the evaluated operand
+     * @return the value of the operation
+     */
+    Object unaryOp(Token operator, Object right) {
         // evaluate based on unary operator types
-        switch (expr.operator.type) {
+        switch (operator.type) {
             case BANG:
                 return !isTruthy(right);
             case MINUS:
-                checkNumberOperand(expr.operator, right); // error handling for double operations
+                checkNumberOperand(operator, right); // error handling for double operations
                 return -(double) right;
         }
 
@@ -305,7 +461,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
      * @param b second object to check
      * @return whether a equals b based on builtin Object method from Java
      */
-    private boolean isEqual(Object a, Object b) {
+    boolean isEqual(Object a, Object b) {
         if (a == null && b == null)
             return true;
         if (a == null)
@@ -325,7 +481,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
      * @param object the expression to be checked for truthiness
      * @return the truthiness of the object
      */
-    private boolean isTruthy(Object object) {
+    boolean isTruthy(Object object) {
         if (object == null)
             return false;
         if (object instanceof Boolean)
@@ -358,7 +514,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     public Void visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        out.println(stringify(value));
         return null;
     }
 
@@ -394,6 +550,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         Integer distance = locals.get(expr);
         if (distance != null) {
             return environment.getAt(distance, name.lexeme);
+        } else if (expr instanceof Variable) {
+            // the site keeps the cell of the global
+            return globals.cell(((Variable) expr).global, 0, name.lexeme, name.line).value;
         } else {
             return globals.get(name);
         }
@@ -407,7 +566,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         if (distance != null) {
             environment.assignAt(distance, expr.name, value);
         } else {
-            globals.assign(expr.name, value);
+            Globals.Cell cell = globals.cell(expr.global, 0, expr.name.lexeme, expr.name.line);
+            globals.store(cell, expr.name.lexeme, expr.name.line, value);
         }
         return value;
     }
@@ -491,16 +651,70 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             arguments.add(evaluate(argument));
         }
 
+        return callFunction(callee, expr.paren, arguments);
+    }
+
+    /**
+     * Checks that the callee is callable with the given number of arguments and
+     * then calls it.
+     * 
+     * @param callee    the evaluated callee expression
+     * @param paren     the closing paren of the call for error reporting
+     * @param arguments the evaluated arguments
+     * @return the return value of the call
+     */
+    Object callFunction(Object callee, Token paren, List<Object> arguments) {
         if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+            throw new RuntimeError(paren, "Can only call functions and classes.");
         }
 
         LoxCallable function = (LoxCallable) callee;
 
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected " + function.arity() + " but got " + arguments.size() + ".");
+        if (arguments.size() != function.arity() && function.arity() != LoxCallable.VARIADIC) {
+            throw new RuntimeError(paren, "Expected " + function.arity() + " but got " + arguments.size() + ".");
+        }
+
+        try {
+            // nothing watches the calls of a plain run
+            if (profiler == null && runtime == null && !LoxEvents.callsRecorded())
+                return function.call(this, arguments);
+            return observedCall(function, arguments);
+        } catch (RuntimeError error) {
+            // natives don't know where they were called from
+            if (error.token == null && paren != null)
+                throw new RuntimeError(paren, error.getMessage());
+            throw error;
+        }
+    }
+
+    /**
+     * Calls a function while a profiler, the JMX runtime or a flight
+     * recording watches the calls. --profile and --jmx work with every
+     * engine, so this isn't a subclass like the other instrumentation.
+     */
+    private Object observedCall(LoxCallable function, List<Object> arguments) {
+        // slow calls show up in flight recordings
+        LoxEvents.Call event = LoxEvents.callsRecorded() ? new LoxEvents.Call() : null;
+        if (event != null)
+            event.begin();
+        if (runtime != null)
+            runtime.callStarted();
+        try {
+            if (profiler == null)
+                return function.call(this, arguments);
+
+            profiler.enter(function);
+            try {
+                return function.call(this, arguments);
+            } finally {
+                profiler.exit();
+            }
+        } finally {
+            if (event != null)
+                LoxEvents.endCall(event, function);
+            if (runtime != null)
+                runtime.callEnded();
         }
-        return function.call(this, arguments);
     }
 
     @Override
@@ -522,11 +736,11 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
         Map<String, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
+            LoxFunction function = newFunction(method, environment, method.name.lexeme.equals("init"), locals);
             methods.put(method.name.lexeme, function);
         }
 
-        LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods);
+        LoxClass klass = newClass(stmt.name.lexeme, (LoxClass) superclass, methods);
         if (superclass != null) {
             environment = environment.enclosing;
         }
@@ -535,6 +749,22 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
+    /**
+     * Creates the function object of a function declaration or method.
+     * Instrumented interpreters override this to hand out their own.
+     */
+    LoxFunction newFunction(Stmt.Function declaration, Environment closure, boolean isInitializer,
+            Map<Expr, Integer> locals) {
+        return new LoxFunction(declaration, closure, isInitializer, locals);
+    }
+
+    /**
+     * Creates the class object of a class declaration.
+     */
+    LoxClass newClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
+        return new LoxClass(name, superclass, methods);
+    }
+
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
         int distance = locals.get(expr);
@@ -562,6 +792,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         if (object instanceof LoxInstance) {
             return ((LoxInstance) object).get(expr.name);
         }
+        if (object instanceof LoxActor) {
+            return ((LoxActor) object).get(expr.name);
+        }
 
         throw new RuntimeError(expr.name, "Only instances have properties");
     }
@@ -584,11 +817,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         // create the function object and bind it to the function stmts identifier
         // pass in the current environment of interpter to function stmt declaration for
         // closure
-        LoxFunction function = new LoxFunction(stmt, environment, false);
+        LoxFunction function = newFunction(stmt, environment, false, locals);
         environment.define(stmt.name.lexeme, function);
+        closureCreated();
         return null;
     }
 
+    // counts a function declaration or literal that ran for --jmx, methods
+    // and the bound copies of them aren't closures of their own
+    void closureCreated() {
+        if (runtime != null)
+            runtime.closureCreated();
+    }
+
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
@@ -605,6 +846,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
         // return a new Lox Anonymous Function object containing environment
         // and the params and body of function
-        return new LoxAnonFunction(expr, environment);
+        closureCreated();
+        return new LoxAnonFunction(expr, environment, locals);
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        // the module loader places the imported module before this statement
+        return null;
     }
 }
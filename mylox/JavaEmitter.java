@@ -0,0 +1,344 @@
+package mylox;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class turns a resolved program into Java source code that builds the
+ * same syntax tree and hands the scope distances found by the resolver to the
+ * interpreter. The compiled classes replace scanning, parsing and resolving at
+ * startup with plain constructor calls.
+ *
+ * Every statement gets its own small builder method so no method gets near the
+ * size limit of the class file format, and the methods are spread over several
+ * classes so no constant pool overflows either.
+ */
+class JavaEmitter implements Expr.Visitor<String>, Stmt.Visitor<String> {
+
+    static final String MAIN_CLASS = "LoxProgram";
+    private static final int METHODS_PER_CLASS = 1000;
+
+    // distances recorded by the resolver
+    private final Map<Expr, Integer> locals;
+
+    // bodies of the part classes and the top level statements each one builds
+    private final List<StringBuilder> parts = new ArrayList<>();
+    private final List<List<String>> topLevel = new ArrayList<>();
+    private int methodCount = 0;
+
+    JavaEmitter(Map<Expr, Integer> locals) {
+        this.locals = locals;
+    }
+
+    /**
+     * Generates the sources of a program.
+     *
+     * @param statements  the resolved top level statements
+     * @param interpreter the interpreter class the program runs on
+     * @return the source of every class by class name, the main class first
+     */
+    Map<String, String> emit(List<Stmt> statements, String interpreter) {
+        for (Stmt statement : statements) {
+            String call = statement(statement);
+            topLevel.get(topLevel.size() - 1).add(call);
+        }
+
+        Map<String, String> sources = new LinkedHashMap<>();
+        sources.put(MAIN_CLASS, mainClass(statements.size(), interpreter));
+        for (int i = 0; i < parts.size(); i++) {
+            sources.put(MAIN_CLASS + i, partClass(i));
+        }
+        return sources;
+    }
+
+    private String mainClass(int statementCount, String interpreter) {
+        StringBuilder source = new StringBuilder();
+        source.append("package mylox;\n\n");
+        source.append("import java.util.ArrayList;\n");
+        source.append("import java.util.List;\n\n");
+        source.append("// generated by loxc, do not edit\n");
+        source.append("public final class ").append(MAIN_CLASS).append(" {\n\n");
+        source.append("    private static Interpreter interpreter;\n\n");
+
+        source.append("    public static void main(String[] args) {\n");
+        source.append("        interpreter = new ").append(interpreter).append("();\n");
+        source.append("        List<Stmt> program = new ArrayList<>(").append(statementCount).append(");\n");
+        for (int i = 0; i < parts.size(); i++) {
+            if (!topLevel.get(i).isEmpty())
+                source.append("        ").append(MAIN_CLASS).append(i).append(".program(program);\n");
+        }
+        source.append("        interpreter.interpret(program);\n\n");
+        source.append("        if (Lox.hadError) System.exit(65);\n");
+        source.append("        if (Lox.hadRuntimeError) System.exit(70);\n");
+        source.append("    }\n\n");
+
+        source.append("    static Token t(TokenType type, String lexeme, Object literal, int line) {\n");
+        source.append("        return new Token(type, lexeme, literal, line);\n");
+        source.append("    }\n\n");
+        source.append("    static <T extends Expr> T r(T expr, int depth) {\n");
+        source.append("        interpreter.resolve(expr, depth);\n");
+        source.append("        return expr;\n");
+        source.append("    }\n");
+        source.append("}\n");
+        return source.toString();
+    }
+
+    private String partClass(int part) {
+        StringBuilder source = new StringBuilder();
+        source.append("package mylox;\n\n");
+        source.append("import static mylox.").append(MAIN_CLASS).append(".r;\n");
+        source.append("import static mylox.").append(MAIN_CLASS).append(".t;\n\n");
+        source.append("import java.util.Arrays;\n");
+        source.append("import java.util.List;\n\n");
+        source.append("// generated by loxc, do not edit\n");
+        source.append("final class ").append(MAIN_CLASS).append(part).append(" {\n\n");
+
+        List<String> statements = topLevel.get(part);
+        source.append("    static void program(List<Stmt> program) {\n");
+        for (String call : statements) {
+            source.append("        program.add(").append(call).append(");\n");
+        }
+        source.append("    }\n");
+        source.append(parts.get(part));
+        source.append("}\n");
+        return source.toString();
+    }
+
+    /**
+     * Emits a builder method for a statement.
+     *
+     * @return the call of the builder method
+     */
+    private String statement(Stmt stmt) {
+        if (stmt == null)
+            return "null";
+
+        // children first, they may open a new part class
+        String body = stmt.accept(this);
+
+        int part = methodCount / METHODS_PER_CLASS;
+        if (part == parts.size()) {
+            parts.add(new StringBuilder());
+            topLevel.add(new ArrayList<>());
+        }
+
+        String name = "s" + methodCount++;
+        String type = "Stmt." + stmt.getClass().getSimpleName();
+        parts.get(part).append("\n    static ").append(type).append(' ').append(name).append("() {\n")
+                .append("        return ").append(body).append(";\n")
+                .append("    }\n");
+        return MAIN_CLASS + part + "." + name + "()";
+    }
+
+    private String statements(List<? extends Stmt> stmts) {
+        List<String> calls = new ArrayList<>();
+        for (Stmt stmt : stmts) {
+            calls.add(statement(stmt));
+        }
+        return "Arrays.asList(" + String.join(", ", calls) + ")";
+    }
+
+    private String expression(Expr expr) {
+        if (expr == null)
+            return "null";
+
+        String code = expr.accept(this);
+        Integer depth = locals.get(expr);
+        if (depth != null)
+            return "r(" + code + ", " + depth + ")";
+        return code;
+    }
+
+    private String expressions(List<Expr> exprs) {
+        List<String> codes = new ArrayList<>();
+        for (Expr expr : exprs) {
+            codes.add(expression(expr));
+        }
+        return "Arrays.asList(" + String.join(", ", codes) + ")";
+    }
+
+    private static String token(Token token) {
+        if (token == null)
+            return "null";
+        return "t(TokenType." + token.type + ", " + literal(token.lexeme) + ", " + literal(token.literal) + ", "
+                + token.line + ")";
+    }
+
+    private static String tokens(List<Token> tokens) {
+        List<String> codes = new ArrayList<>();
+        for (Token token : tokens) {
+            codes.add(token(token));
+        }
+        return "Arrays.asList(" + String.join(", ", codes) + ")";
+    }
+
+    /**
+     * Writes a runtime value as a Java expression.
+     */
+    private static String literal(Object value) {
+        if (value == null)
+            return "null";
+        if (value instanceof Boolean)
+            return (Boolean) value ? "Boolean.TRUE" : "Boolean.FALSE";
+        if (value instanceof Double)
+            return "Double.valueOf(" + value + "d)";
+
+        String string = (String) value;
+        StringBuilder builder = new StringBuilder("\"");
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            switch (c) {
+                case '"': builder.append("\\\""); break;
+                case '\\': builder.append("\\\\"); break;
+                case '\n': builder.append("\\n"); break;
+                case '\r': builder.append("\\r"); break;
+                case '\t': builder.append("\\t"); break;
+                default:
+                    // unicode escapes are safe for everything but line breaks
+                    // and quotes, which are handled above
+                    if (c < 0x20 || c > 0x7e) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    @Override
+    public String visitBinaryExpr(Expr.Binary expr) {
+        return "new Expr.Binary(" + expression(expr.left) + ", " + token(expr.operator) + ", "
+                + expression(expr.right) + ")";
+    }
+
+    @Override
+    public String visitCallExpr(Expr.Call expr) {
+        return "new Expr.Call(" + expression(expr.callee) + ", " + token(expr.paren) + ", "
+                + expressions(expr.arguments) + ")";
+    }
+
+    @Override
+    public String visitGroupingExpr(Expr.Grouping expr) {
+        return "new Expr.Grouping(" + expression(expr.expression) + ")";
+    }
+
+    @Override
+    public String visitLiteralExpr(Expr.Literal expr) {
+        return "new Expr.Literal(" + literal(expr.value) + ")";
+    }
+
+    @Override
+    public String visitLogicalExpr(Expr.Logical expr) {
+        return "new Expr.Logical(" + expression(expr.left) + ", " + token(expr.operator) + ", "
+                + expression(expr.right) + ")";
+    }
+
+    @Override
+    public String visitUnaryExpr(Expr.Unary expr) {
+        return "new Expr.Unary(" + token(expr.operator) + ", " + expression(expr.right) + ")";
+    }
+
+    @Override
+    public String visitVariableExpr(Expr.Variable expr) {
+        return "new Expr.Variable(" + token(expr.name) + ")";
+    }
+
+    @Override
+    public String visitAssignExpr(Expr.Assign expr) {
+        return "new Expr.Assign(" + token(expr.name) + ", " + expression(expr.value) + ")";
+    }
+
+    @Override
+    public String visitAnonFunctionExpr(Expr.AnonFunction expr) {
+        return "new Expr.AnonFunction(" + token(expr.keyword) + ", " + tokens(expr.params) + ", " + statements(expr.body) + ")";
+    }
+
+    @Override
+    public String visitGetExpr(Expr.Get expr) {
+        return "new Expr.Get(" + expression(expr.object) + ", " + token(expr.name) + ")";
+    }
+
+    @Override
+    public String visitSetExpr(Expr.Set expr) {
+        return "new Expr.Set(" + expression(expr.object) + ", " + token(expr.name) + ", "
+                + expression(expr.value) + ")";
+    }
+
+    @Override
+    public String visitThisExpr(Expr.This expr) {
+        return "new Expr.This(" + token(expr.keyword) + ")";
+    }
+
+    @Override
+    public String visitSuperExpr(Expr.Super expr) {
+        return "new Expr.Super(" + token(expr.keyword) + ", " + token(expr.method) + ")";
+    }
+
+    @Override
+    public String visitIfStmt(Stmt.If stmt) {
+        return "new Stmt.If(" + token(stmt.keyword) + ", " + expression(stmt.condition) + ", " + statement(stmt.thenBranch) + ", "
+                + statement(stmt.elseBranch) + ")";
+    }
+
+    @Override
+    public String visitBlockStmt(Stmt.Block stmt) {
+        return "new Stmt.Block(" + statements(stmt.statements) + ")";
+    }
+
+    @Override
+    public String visitWhileStmt(Stmt.While stmt) {
+        return "new Stmt.While(" + token(stmt.keyword) + ", " + expression(stmt.condition) + ", " + statement(stmt.body) + ")";
+    }
+
+    @Override
+    public String visitExpressionStmt(Stmt.Expression stmt) {
+        return "new Stmt.Expression(" + expression(stmt.expression) + ")";
+    }
+
+    @Override
+    public String visitFunctionStmt(Stmt.Function stmt) {
+        return "new Stmt.Function(" + token(stmt.name) + ", " + tokens(stmt.params) + ", "
+                + statements(stmt.body) + ")";
+    }
+
+    @Override
+    public String visitPrintStmt(Stmt.Print stmt) {
+        return "new Stmt.Print(" + token(stmt.keyword) + ", " + expression(stmt.expression) + ")";
+    }
+
+    @Override
+    public String visitVarStmt(Stmt.Var stmt) {
+        return "new Stmt.Var(" + token(stmt.name) + ", " + expression(stmt.initializer) + ")";
+    }
+
+    @Override
+    public String visitBreakStmt(Stmt.Break stmt) {
+        return "new Stmt.Break(" + token(stmt.breakToken) + ")";
+    }
+
+    @Override
+    public String visitReturnStmt(Stmt.Return stmt) {
+        return "new Stmt.Return(" + token(stmt.keyword) + ", " + expression(stmt.value) + ")";
+    }
+
+    @Override
+    public String visitForStmt(Stmt.For stmt) {
+        return "new Stmt.For(" + token(stmt.keyword) + ", " + statement(stmt.initializer) + ", " + expression(stmt.condition) + ", "
+                + expression(stmt.increment) + ", " + statements(stmt.body) + ")";
+    }
+
+    @Override
+    public String visitClassStmt(Stmt.Class stmt) {
+        // the superclass variable keeps its concrete type for the constructor
+        return "new Stmt.Class(" + token(stmt.name) + ", " + expression(stmt.superclass) + ", "
+                + statements(stmt.methods) + ")";
+    }
+
+    @Override
+    public String visitImportStmt(Stmt.Import stmt) {
+        return "new Stmt.Import(" + token(stmt.keyword) + ", " + token(stmt.path) + ")";
+    }
+}
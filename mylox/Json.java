@@ -0,0 +1,261 @@
+package mylox;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON reader and writer for the tools around the interpreter, so they
+ * don't need a library. Objects are read into LinkedHashMaps, arrays into
+ * Lists, integral numbers into Longs and all other numbers into Doubles.
+ */
+final class Json {
+
+    private final String source;
+    private int current = 0;
+
+    private Json(String source) {
+        this.source = source;
+    }
+
+    /**
+     * Parses a JSON document.
+     *
+     * @param source the JSON text
+     * @return the parsed value
+     * @throws IllegalArgumentException if the text is not valid JSON
+     */
+    static Object parse(String source) {
+        Json json = new Json(source);
+        Object value = json.value();
+        json.skipWhitespace();
+        if (json.current != source.length()) {
+            throw json.error("Unexpected trailing characters");
+        }
+        return value;
+    }
+
+    /**
+     * Serializes maps, lists, strings, numbers, booleans and null.
+     *
+     * @param value the value to write
+     * @return the JSON text
+     */
+    static String write(Object value) {
+        StringBuilder builder = new StringBuilder();
+        write(builder, value);
+        return builder.toString();
+    }
+
+    private static void write(StringBuilder builder, Object value) {
+        if (value == null) {
+            builder.append("null");
+        } else if (value instanceof String) {
+            writeString(builder, (String) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            if (Double.isNaN(number) || Double.isInfinite(number)) {
+                builder.append("null");
+            } else if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+                builder.append((long) number);
+            } else {
+                builder.append(number);
+            }
+        } else if (value instanceof Number || value instanceof Boolean) {
+            builder.append(value);
+        } else if (value instanceof Map) {
+            builder.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first)
+                    builder.append(',');
+                first = false;
+                writeString(builder, String.valueOf(entry.getKey()));
+                builder.append(':');
+                write(builder, entry.getValue());
+            }
+            builder.append('}');
+        } else if (value instanceof List) {
+            builder.append('[');
+            boolean first = true;
+            for (Object element : (List<?>) value) {
+                if (!first)
+                    builder.append(',');
+                first = false;
+                write(builder, element);
+            }
+            builder.append(']');
+        } else {
+            writeString(builder, value.toString());
+        }
+    }
+
+    private static void writeString(StringBuilder builder, String string) {
+        builder.append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            switch (c) {
+                case '"': builder.append("\\\""); break;
+                case '\\': builder.append("\\\\"); break;
+                case '\n': builder.append("\\n"); break;
+                case '\r': builder.append("\\r"); break;
+                case '\t': builder.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+    }
+
+    private Object value() {
+        skipWhitespace();
+        if (current >= source.length())
+            throw error("Unexpected end of input");
+
+        char c = source.charAt(current);
+        switch (c) {
+            case '{': return object();
+            case '[': return array();
+            case '"': return string();
+            case 't': return literal("true", Boolean.TRUE);
+            case 'f': return literal("false", Boolean.FALSE);
+            case 'n': return literal("null", null);
+            default:
+                if (c == '-' || (c >= '0' && c <= '9'))
+                    return number();
+                throw error("Unexpected character '" + c + "'");
+        }
+    }
+
+    private Map<String, Object> object() {
+        Map<String, Object> object = new LinkedHashMap<>();
+        current++;
+        skipWhitespace();
+        if (match('}'))
+            return object;
+
+        do {
+            skipWhitespace();
+            if (current >= source.length() || source.charAt(current) != '"')
+                throw error("Expect string key");
+            String key = string();
+            skipWhitespace();
+            expect(':');
+            object.put(key, value());
+            skipWhitespace();
+        } while (match(','));
+
+        expect('}');
+        return object;
+    }
+
+    private List<Object> array() {
+        List<Object> array = new ArrayList<>();
+        current++;
+        skipWhitespace();
+        if (match(']'))
+            return array;
+
+        do {
+            array.add(value());
+            skipWhitespace();
+        } while (match(','));
+
+        expect(']');
+        return array;
+    }
+
+    private String string() {
+        StringBuilder builder = new StringBuilder();
+        current++;
+        while (current < source.length()) {
+            char c = source.charAt(current++);
+            if (c == '"')
+                return builder.toString();
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+
+            if (current >= source.length())
+                break;
+            char escape = source.charAt(current++);
+            switch (escape) {
+                case 'n': builder.append('\n'); break;
+                case 'r': builder.append('\r'); break;
+                case 't': builder.append('\t'); break;
+                case 'b': builder.append('\b'); break;
+                case 'f': builder.append('\f'); break;
+                case 'u':
+                    if (current + 4 > source.length())
+                        throw error("Bad unicode escape");
+                    builder.append((char) Integer.parseInt(source.substring(current, current + 4), 16));
+                    current += 4;
+                    break;
+                default: builder.append(escape);
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private Object number() {
+        int start = current;
+        boolean integral = true;
+        if (source.charAt(current) == '-')
+            current++;
+        while (current < source.length()) {
+            char c = source.charAt(current);
+            if (c >= '0' && c <= '9') {
+                current++;
+            } else if (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                integral = false;
+                current++;
+            } else {
+                break;
+            }
+        }
+
+        String text = source.substring(start, current);
+        try {
+            if (integral)
+                return Long.parseLong(text);
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            throw error("Bad number '" + text + "'");
+        }
+    }
+
+    private Object literal(String text, Object value) {
+        if (!source.startsWith(text, current))
+            throw error("Unexpected literal");
+        current += text.length();
+        return value;
+    }
+
+    private void skipWhitespace() {
+        while (current < source.length() && Character.isWhitespace(source.charAt(current)))
+            current++;
+    }
+
+    private boolean match(char expected) {
+        if (current < source.length() && source.charAt(current) == expected) {
+            current++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char expected) {
+        if (!match(expected))
+            throw error("Expect '" + expected + "'");
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at offset " + current + ".");
+    }
+}
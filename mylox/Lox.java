@@ -5,13 +5,14 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 
 
 public class Lox {
 
-    private static final Interpreter interpreter = new Interpreter();
+    private static Interpreter interpreter = new Interpreter();
 
     // error flag for error handling in run
     static boolean hadError = false;
@@ -21,6 +22,40 @@ public class Lox {
     static boolean scannerDebug = false;
     static boolean parserDebug = false;
 
+    // when set, errors of the current thread are handed to the reporter
+    // instead of printed, the language server uses it to collect diagnostics
+    // and the module loader to collect the errors of modules parsed in parallel
+    static final ThreadLocal<ErrorReporter> reporter = new ThreadLocal<>();
+
+    // loads the modules named by import declarations
+    private static final ModuleLoader modules = new ModuleLoader();
+    // the script being run, import paths are relative to its directory
+    private static Path scriptPath = null;
+
+    // serve the language server protocol on stdin and stdout instead of running
+    private static boolean languageServer = false;
+
+    // sample the Lox call stack and write it here, null if not profiling
+    private static Path profilePath = null;
+    private static long profileInterval = LoxProfiler.DEFAULT_INTERVAL_MICROS;
+    private static LoxProfiler profiler = null;
+
+    // run on the instrumented interpreter and print what it counted at exit
+    private static boolean stats = false;
+    // run on the interpreter that charges allocations to lines
+    private static boolean allocations = false;
+    // lines the allocation report shows
+    private static final int ALLOCATION_REPORT_LINES = 20;
+    // record coverage on the arena engine and write an lcov file here
+    private static Path coveragePath = null;
+    // record type feedback on the arena engine, specialize from the feedback
+    // of the last run and write it back here
+    private static Path typeProfilePath = null;
+    // stop at statements and read debugger commands from stdin
+    private static boolean debug = false;
+    // publish live counters as an MBean
+    private static boolean jmx = false;
+
     /**
      * This function runs the Lox code from a file.
      * 
@@ -30,8 +65,18 @@ public class Lox {
     private static void runFile(String path) throws IOException {
 
         byte[] bytes = Files.readAllBytes(Paths.get(path));
+        scriptPath = Paths.get(path);
+        String source = new String(bytes, Charset.defaultCharset());
+
+        if (interpreter instanceof DebugInterpreter) {
+            BufferedReader commands = new BufferedReader(new InputStreamReader(System.in));
+            new LoxDebugger(source, commands, System.out).attach((DebugInterpreter) interpreter);
+        }
 
-        run(new String(bytes, Charset.defaultCharset()));
+        run(source);
+        runEventLoop();
+        stopProfiler();
+        printReports();
 
         // if an error occurs in running a file, exit gracefully
         if (hadError) System.exit(65);
@@ -56,9 +101,12 @@ public class Lox {
             if (line == null)
                 break;
             run(line);
+            runEventLoop();
             hadError = false; // reset error flags for prompt and read new line
             hadRuntimeError = false;
         }
+        stopProfiler();
+        printReports();
     }
 
     /**
@@ -69,19 +117,34 @@ public class Lox {
      */
     private static void run(String source) {
 
+        // the arena engine compiles declaration by declaration so the tokens
+        // and the object tree of the whole script are never in memory at once
+        if (interpreter instanceof ArenaInterpreter) {
+            ((ArenaInterpreter) interpreter).run(source);
+            return;
+        }
+
         // lexically analyze source text and produce list of tokens
+        LoxEvents.Phase phase = beginPhase("scan");
         Scanner scanner = new Scanner(source);
         List<Token> tokens = scanner.scanTokens();
+        endPhase(phase);
 
         // parse tokens for statements
+        phase = beginPhase("parse");
         Parser parser = new Parser(tokens);
         List<Stmt> statements = parser.parse();
-
-        
+        endPhase(phase);
 
         // stop executing if there was an error encountered
         if (hadError) return;
 
+        // put the imported modules in front of the program
+        phase = beginPhase("link");
+        statements = link(statements);
+        endPhase(phase);
+        if (hadError) return;
+
         // For now, just print the tokens.
 
         if (scannerDebug) {
@@ -94,13 +157,108 @@ public class Lox {
         // if (parserDebug)
         //     System.out.println(new ASTPrinter().print(statements));
 
+        phase = beginPhase("resolve");
         Resolver resolver = new Resolver(interpreter);
         resolver.resolve(statements);
+        endPhase(phase);
 
         if (hadError) return;
 
         // print interpreted expression
+        phase = beginPhase("interpret");
         interpreter.interpret(statements);
+        long nanos = endPhase(phase);
+        if (interpreter.runtime != null)
+            interpreter.runtime.scriptExecuted(nanos);
+    }
+
+    // the callbacks of asynchronous natives run once the script is done
+    private static void runEventLoop() {
+        if (!hadError && !hadRuntimeError)
+            interpreter.runEventLoop();
+    }
+
+    // the script for runtime tools, null for code typed at the prompt
+    static String sourceName() {
+        return scriptPath == null ? null : scriptPath.toString();
+    }
+
+    /**
+     * Starts timing a phase of run for the flight recorder and the statistics.
+     * 
+     * @param name the name of the phase
+     * @return the event of the phase
+     */
+    private static LoxEvents.Phase beginPhase(String name) {
+        return new LoxEvents.Phase(name, sourceName());
+    }
+
+    private static long endPhase(LoxEvents.Phase phase) {
+        long nanos = phase.finish();
+        if (interpreter instanceof StatsInterpreter)
+            ((StatsInterpreter) interpreter).phase(phase.phase, nanos);
+        return nanos;
+    }
+
+    private static void printReports() throws IOException {
+        if (interpreter instanceof StatsInterpreter)
+            ((StatsInterpreter) interpreter).report(System.err);
+        if (interpreter instanceof AllocationInterpreter)
+            ((AllocationInterpreter) interpreter).report(System.err, ALLOCATION_REPORT_LINES);
+        if (interpreter instanceof CoverageInterpreter) {
+            ((CoverageInterpreter) interpreter).write(coveragePath);
+            System.err.println("Wrote coverage to " + coveragePath);
+        }
+        if (interpreter instanceof TypeFeedbackInterpreter) {
+            ((TypeFeedbackInterpreter) interpreter).write();
+            System.err.println("Wrote type profile to " + typeProfilePath);
+        }
+    }
+
+    /**
+     * Places the modules imported by the statements in front of them, in
+     * dependency order. Modules already imported before are left out.
+     * 
+     * @param statements the top level statements to link
+     * @return the statements with the imported modules in front
+     */
+    static List<Stmt> link(List<Stmt> statements) {
+        Path directory = scriptPath == null ? Paths.get("") : scriptPath.toAbsolutePath().getParent();
+        return modules.link(statements, directory, scriptPath);
+    }
+
+    /**
+     * Attaches a profiler to the interpreter and starts sampling.
+     */
+    private static void startProfiler() {
+        profiler = new LoxProfiler(profileInterval);
+        interpreter.profiler = profiler;
+        profiler.start();
+    }
+
+    /**
+     * Stops the profiler, if there is one, and writes the sampled stacks.
+     */
+    private static void stopProfiler() throws IOException {
+        if (profiler == null)
+            return;
+
+        profiler.stop();
+        profiler.write(profilePath);
+        System.err.println("Wrote " + profiler.sampleCount() + " samples to " + profilePath);
+        profiler = null;
+    }
+
+    /**
+     * Finds the file a top level statement of the running program comes from.
+     * 
+     * @param statement a top level statement of the program
+     * @return the module or script path, null for code typed at the prompt
+     */
+    static Path sourceOf(Stmt statement) {
+        Path module = modules.originOf(statement);
+        if (module != null) return module;
+        return scriptPath == null ? null : scriptPath.toAbsolutePath().normalize();
     }
 
     /**
@@ -110,7 +268,7 @@ public class Lox {
      * @param message
      */
     static void error(int line, String message) {
-        report(line, "", message);
+        report(line, null, "", message);
     }
 
     /**
@@ -122,9 +280,9 @@ public class Lox {
      */
     static void error(Token token, String message) {
         if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
+            report(token.line, token, " at end", message);
         } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+            report(token.line, token, " at '" + token.lexeme + "'", message);
         }
     }
 
@@ -133,20 +291,149 @@ public class Lox {
      * and the message associated with it.
      * 
      * @param line
+     * @param token the offending token or null for scanner errors
      * @param where
      * @param message
      */
-    private static void report(int line, String where, String message) {
+    private static void report(int line, Token token, String where, String message) {
+        ErrorReporter threadReporter = reporter.get();
+        if (threadReporter != null) {
+            threadReporter.report(line, token, where, message);
+            return;
+        }
+
         System.err.println("[line " + line + "] Error" + where + ": " + message);
+        hadError = true;
+    }
 
+    /**
+     * Reports an error found in an imported module.
+     * 
+     * @param error the message, already formatted with the module and the line
+     */
+    static void moduleError(String error) {
+        ErrorReporter threadReporter = reporter.get();
+        if (threadReporter != null) {
+            threadReporter.moduleError(error);
+            return;
+        }
+
+        System.err.println(error);
         hadError = true;
     }
 
     static void runtimeError(RuntimeError error) {
+        LoxEvents.runtimeError(error);
+
+        // an engine counts the errors of its own interpreter
+        ErrorReporter threadReporter = reporter.get();
+        if (threadReporter != null) {
+            threadReporter.runtimeError(error);
+            return;
+        }
+
+        if (interpreter.runtime != null)
+            interpreter.runtime.runtimeError(error);
         System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
         hadRuntimeError = true;
     }
 
+    /**
+     * Applies a command line option. Options come before the script path.
+     * 
+     * @param option the option including its leading dashes
+     * @return false if the option is unknown
+     */
+    private static boolean parseOption(String option) {
+        if (option.equals("--profile")) {
+            profilePath = Paths.get("profile.collapsed");
+            return true;
+        }
+        if (option.startsWith("--profile=")) {
+            profilePath = Paths.get(option.substring("--profile=".length()));
+            return true;
+        }
+        if (option.equals("--coverage")) {
+            coveragePath = Paths.get("coverage.info");
+            return true;
+        }
+        if (option.startsWith("--coverage=")) {
+            coveragePath = Paths.get(option.substring("--coverage=".length()));
+            return true;
+        }
+        if (option.equals("--type-profile")) {
+            typeProfilePath = Paths.get("type.profile");
+            return true;
+        }
+        if (option.startsWith("--type-profile=")) {
+            typeProfilePath = Paths.get(option.substring("--type-profile=".length()));
+            return true;
+        }
+        if (option.startsWith("--profile-interval=")) {
+            try {
+                profileInterval = Long.parseLong(option.substring("--profile-interval=".length()));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            return profileInterval > 0;
+        }
+
+        switch (option) {
+            case "--engine=visitor":
+                interpreter = new Interpreter();
+                return true;
+            case "--engine=pattern":
+                interpreter = new PatternInterpreter();
+                return true;
+            case "--engine=arena":
+                interpreter = new ArenaInterpreter();
+                return true;
+            case "--lsp":
+                languageServer = true;
+                return true;
+            case "--stats":
+                stats = true;
+                return true;
+            case "--allocations":
+                allocations = true;
+                return true;
+            case "--debug":
+                debug = true;
+                return true;
+            case "--jmx":
+                jmx = true;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage: mylox <options> [script]");
+        System.out.println("Options:");
+        System.out.println("  --engine=visitor|pattern|arena   AST representation and dispatch of the interpreter");
+        System.out.println("  --lsp                            run as a language server on stdin and stdout");
+        System.out.println("  --stats                          count what the interpreter does and print it at exit,");
+        System.out.println("                                   only with the visitor engine");
+        System.out.println("  --allocations                    charge allocations to source lines and print the");
+        System.out.println("                                   lines and classes allocating most at exit, only");
+        System.out.println("                                   with the visitor engine");
+        System.out.println("  --coverage[=path]                record statement, branch and function coverage on the");
+        System.out.println("                                   arena engine and write an lcov file, default path is");
+        System.out.println("                                   coverage.info");
+        System.out.println("  --type-profile[=path]            record operand and receiver types on the arena engine,");
+        System.out.println("                                   specialize nodes from the profile of the last run of");
+        System.out.println("                                   the script and write it back, default path is");
+        System.out.println("                                   type.profile, only with a script");
+        System.out.println("  --debug                          stop at the first statement and read debugger commands");
+        System.out.println("                                   from stdin, only with the visitor engine and a script");
+        System.out.println("  --jmx                            publish live counters as the MBean mylox:type=LoxRuntime");
+        System.out.println("  --profile[=path]                 sample the Lox call stack and write collapsed stacks,");
+        System.out.println("                                   default path is profile.collapsed");
+        System.out.println("  --profile-interval=<us>          microseconds between samples, default 1000");
+        System.exit(64);
+    }
+
     /**
      * 
      * @param args
@@ -154,13 +441,85 @@ public class Lox {
      */
     public static void main(String[] args) throws IOException {
 
-        if (args.length > 1) {
-            System.out.println("Usage: mylox <options> [script]");
-            System.exit(64);
+        int optionCount = 0;
+        while (optionCount < args.length && args[optionCount].startsWith("--")) {
+            if (!parseOption(args[optionCount])) {
+                usage();
+            }
+            optionCount++;
+        }
+
+        if (languageServer) {
+            if (args.length > optionCount) usage();
+            System.exit(new LoxLanguageServer(System.in, System.out, System.err).serve());
+        }
+
+        if (stats || allocations) {
+            // the counters live in subclasses of the visitor interpreter
+            if (interpreter.getClass() != Interpreter.class) {
+                System.err.println("--stats and --allocations only work with the visitor engine.");
+                System.exit(64);
+            }
+            if (stats && allocations) {
+                System.err.println("--stats and --allocations can't be combined.");
+                System.exit(64);
+            }
+            interpreter = stats ? new StatsInterpreter() : new AllocationInterpreter();
+        }
+
+        if (coveragePath != null) {
+            // the bitmaps are indexed by the node numbers of the arena
+            if (interpreter instanceof PatternInterpreter || stats || allocations) {
+                System.err.println("--coverage runs on the arena engine and can't be combined with --stats"
+                        + " or --allocations.");
+                System.exit(64);
+            }
+            interpreter = new CoverageInterpreter();
+        }
+
+        if (typeProfilePath != null) {
+            // the profile is keyed by node numbers of the arena
+            if (interpreter instanceof PatternInterpreter || stats || allocations || coveragePath != null
+                    || debug) {
+                System.err.println("--type-profile runs on the arena engine and can't be combined with --stats,"
+                        + " --allocations, --coverage or --debug.");
+                System.exit(64);
+            }
+            if (args.length - optionCount != 1) {
+                System.err.println("--type-profile needs a script.");
+                System.exit(64);
+            }
+            interpreter = new TypeFeedbackInterpreter(typeProfilePath);
+        }
+
+        if (debug) {
+            // the debugger reads its commands where the prompt reads code
+            if (interpreter.getClass() != Interpreter.class || coveragePath != null) {
+                System.err.println("--debug only works with the visitor engine and can't be combined with --stats,"
+                        + " --allocations or --coverage.");
+                System.exit(64);
+            }
+            if (args.length - optionCount != 1) {
+                System.err.println("--debug needs a script.");
+                System.exit(64);
+            }
+            interpreter = new DebugInterpreter();
+        }
+
+        if (jmx) {
+            LoxRuntime.register().attach(interpreter);
+        }
+
+        if (profilePath != null) {
+            startProfiler();
+        }
+
+        if (args.length - optionCount > 1) {
+            usage();
         }
 
-        else if (args.length == 1) {
-            runFile(args[0]);
+        else if (args.length - optionCount == 1) {
+            runFile(args[optionCount]);
         }
 
         else {
@@ -0,0 +1,150 @@
+package mylox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class turns an instance into an actor, the native actor(object)
+ * returns one. Calling a method on the actor doesn't run it but puts a
+ * message in the mailbox of the actor and returns a task, await gives the
+ * value the method returned. The messages of an actor are processed one at a
+ * time in the order they arrived, so its methods never run concurrently and
+ * its fields need no locks, while different actors run in parallel.
+ *
+ * An actor isn't a thread: when a message arrives in an empty mailbox the
+ * actor is scheduled on the common ForkJoinPool and processes what is in its
+ * mailbox, a bounded batch at a time so busy actors take turns with the
+ * others. An idle actor is just its object, its mailbox and an interpreter
+ * forked when it was created, which is how a program can have hundreds of
+ * thousands of them. Awaiting in a method blocks the worker in a way the
+ * pool compensates for, so actors can await each other.
+ *
+ * Only methods can be called on an actor, its fields are private to it. The
+ * object should not be used directly after it became an actor, and a method
+ * returning this hands out the plain object.
+ */
+final class LoxActor {
+
+    // messages processed before the actor lets the others run
+    private static final int BATCH = 64;
+
+    private static final Executor scheduler = ForkJoinPool.commonPool();
+
+    private final LoxInstance instance;
+    // runs the methods, only ever on one thread at a time
+    private final Interpreter interpreter;
+    private final ConcurrentLinkedQueue<Message> mailbox = new ConcurrentLinkedQueue<>();
+    // set from the first message in an empty mailbox until the mailbox is
+    // empty again, so the actor is scheduled at most once at a time
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private static final class Message {
+        final LoxFunction method;
+        final List<Object> arguments;
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        Message(LoxFunction method, List<Object> arguments) {
+            this.method = method;
+            this.arguments = arguments;
+        }
+    }
+
+    private LoxActor(LoxInstance instance, Interpreter interpreter) {
+        this.instance = instance;
+        this.interpreter = interpreter;
+    }
+
+    /**
+     * Defines the native actor.
+     *
+     * @param globals the global environment of an interpreter
+     */
+    static void defineNatives(Environment globals) {
+        globals.define("actor", new LoxCallable() {
+            public int arity() {
+                return 1;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                if (!(arguments.get(0) instanceof LoxInstance))
+                    throw new RuntimeError(null, "Only instances can become actors.");
+                // forked on the creating thread, like a task
+                return new LoxActor((LoxInstance) arguments.get(0), interpreter.fork());
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+    }
+
+    /**
+     * Looks up a method of the actor. The methods of a class never change,
+     * so this is safe on any thread, the fields are left alone.
+     *
+     * @param name the name of the method
+     * @return a callable that sends the method a message
+     */
+    Object get(Token name) {
+        LoxFunction method = instance.klass().findMethod(name.lexeme);
+        if (method == null)
+            throw new RuntimeError(name, "Undefined method '" + name.lexeme + "' of actor.");
+
+        return new LoxCallable() {
+            public int arity() {
+                return method.arity();
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return new LoxTask(send(method, arguments));
+            }
+
+            public String toString() {
+                return "<message " + name.lexeme + ">";
+            }
+        };
+    }
+
+    private CompletableFuture<Object> send(LoxFunction method, List<Object> arguments) {
+        Message message = new Message(method, new ArrayList<>(arguments));
+        mailbox.add(message);
+        if (scheduled.compareAndSet(false, true))
+            scheduler.execute(this::process);
+        return message.result;
+    }
+
+    private void process() {
+        try {
+            for (int i = 0; i < BATCH; i++) {
+                Message message = mailbox.poll();
+                if (message == null)
+                    break;
+
+                try {
+                    Object value = interpreter.callFunction(message.method.bind(instance), null, message.arguments);
+                    message.result.complete(value);
+                } catch (Throwable e) {
+                    // a stack overflow in a method fails its message, not
+                    // the actor
+                    message.result.completeExceptionally(e);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            // a message that arrived after the last poll but before the flag
+            // was cleared found the actor scheduled, so it is picked up here
+            if (!mailbox.isEmpty() && scheduled.compareAndSet(false, true))
+                scheduler.execute(this::process);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<actor " + instance.klass().name + ">";
+    }
+}
@@ -1,6 +1,7 @@
 package mylox;
 
 import java.util.List;
+import java.util.Map;
 
 public class LoxAnonFunction implements LoxCallable {
     // declaration stores the function statements to be executed
@@ -8,10 +9,13 @@ public class LoxAnonFunction implements LoxCallable {
     // closure stores any enclosing scope of outer functions or global scope by
     // default
     private final Environment closure;
+    // the scope distances of the script the function was declared in
+    private final Map<Expr, Integer> locals;
 
-    LoxAnonFunction(Expr.AnonFunction functionExpression, Environment closure) {
+    LoxAnonFunction(Expr.AnonFunction functionExpression, Environment closure, Map<Expr, Integer> locals) {
         this.functionExpression = functionExpression;
         this.closure = closure;
+        this.locals = locals;
     }
 
     @Override
@@ -29,7 +33,7 @@ public class LoxAnonFunction implements LoxCallable {
         // execute the function body
         // and return the return value from call or null
         try {
-            interpreter.executeBlock(functionExpression.body, environment);
+            interpreter.executeBody(functionExpression.body, environment, locals);
         } catch (Return returnValue) {
             return returnValue.value;
         }
@@ -42,6 +46,16 @@ public class LoxAnonFunction implements LoxCallable {
         return functionExpression.params.size();
     }
 
+    @Override
+    public String frameName() {
+        return "<anon>:" + functionExpression.keyword.line;
+    }
+
+    @Override
+    public int declarationLine() {
+        return functionExpression.keyword.line;
+    }
+
     @Override
     public String toString() {
         return "<anon fn expr>";
@@ -3,9 +3,22 @@ package mylox;
 import java.util.List;
 
 public interface LoxCallable {
+    // arity of natives that take any number of arguments
+    int VARIADIC = -1;
+
     // prints the number of args for this callable object
     int arity();
 
     // executes the call of this function or class object
     Object call(Interpreter interpreter, List<Object> arguments);
+
+    // names this callable in the stacks recorded by the profiler
+    default String frameName() {
+        return toString();
+    }
+
+    // line of the declaration for runtime tools, 0 if there is none
+    default int declarationLine() {
+        return 0;
+    }
 }
@@ -0,0 +1,149 @@
+package mylox;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.List;
+
+/**
+ * This class is a cell holding one value that tasks and the pieces of parallel
+ * loops share. Their globals are copies, but a cell stored in a global or
+ * captured by a closure is the same object in all of them, so it is where
+ * state that every thread sees lives. Reading a cell is a volatile load and
+ * never waits, writing it is a volatile store, and compareAndSet and
+ * addAndGet update it atomically without a lock.
+ *
+ * compareAndSet compares with Lox equality, not identity, so numbers and
+ * strings compare by value: the current value is checked with equals and
+ * then swapped only if the cell still holds that very object, retrying when
+ * another thread got in between.
+ */
+final class LoxCell {
+
+    private static final VarHandle VALUE;
+
+    static {
+        try {
+            VALUE = MethodHandles.lookup().findVarHandle(LoxCell.class, "value", Object.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile Object value;
+
+    LoxCell(Object value) {
+        this.value = value;
+    }
+
+    /**
+     * Defines the natives cell, load, store, compareAndSet and addAndGet.
+     *
+     * @param globals the global environment of an interpreter
+     */
+    static void defineNatives(Environment globals) {
+        globals.define("cell", new LoxCallable() {
+            public int arity() {
+                return 1;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return new LoxCell(arguments.get(0));
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+
+        globals.define("load", new LoxCallable() {
+            public int arity() {
+                return 1;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return cell(arguments.get(0)).value;
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+
+        globals.define("store", new LoxCallable() {
+            public int arity() {
+                return 2;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                cell(arguments.get(0)).value = arguments.get(1);
+                return null;
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+
+        globals.define("compareAndSet", new LoxCallable() {
+            public int arity() {
+                return 3;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return cell(arguments.get(0)).compareAndSet(interpreter, arguments.get(1), arguments.get(2));
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+
+        globals.define("addAndGet", new LoxCallable() {
+            public int arity() {
+                return 2;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                if (!(arguments.get(1) instanceof Double))
+                    throw new RuntimeError(null, "Can only add a number to a cell.");
+                return cell(arguments.get(0)).addAndGet((double) arguments.get(1));
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+    }
+
+    private static LoxCell cell(Object value) {
+        if (!(value instanceof LoxCell))
+            throw new RuntimeError(null, "Expected a cell.");
+        return (LoxCell) value;
+    }
+
+    boolean compareAndSet(Interpreter interpreter, Object expected, Object update) {
+        while (true) {
+            Object current = value;
+            if (!interpreter.isEqual(current, expected))
+                return false;
+            if (VALUE.compareAndSet(this, current, update))
+                return true;
+        }
+    }
+
+    double addAndGet(double delta) {
+        while (true) {
+            Object current = value;
+            if (!(current instanceof Double))
+                throw new RuntimeError(null, "Can only add to a cell holding a number.");
+            Double sum = (double) current + delta;
+            if (VALUE.compareAndSet(this, current, sum))
+                return sum;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<cell>";
+    }
+}
@@ -0,0 +1,311 @@
+package mylox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class is a channel tasks send values over instead of sharing variables.
+ * A channel buffers a fixed number of values, or any number if it's unbounded.
+ * Sending on a full channel waits until there is room, receiving from an empty
+ * one waits for a value. Closing a channel lets the receivers take what is
+ * left, after that they receive nil, and sending on it is a runtime error. nil
+ * can't be sent, so a nil from recv always means the channel is closed.
+ *
+ * Waiting parks the thread with the j.u.c locks, which a virtual thread does
+ * without holding on to its carrier. select receives from whichever of
+ * several channels has a value first: it registers its thread with all of
+ * them and parks once, the first send to any of them wakes it. A send wakes
+ * one receiver, a receiver that ends up taking its value elsewhere passes the
+ * wakeup on when it unregisters.
+ */
+final class LoxChannel {
+
+    // what select returns, the channel a value came from and the value
+    private static final LoxClass SELECTED = new LoxClass("Selected", null, Collections.emptyMap());
+    // poll result of an open channel without values
+    private static final Object EMPTY = new Object();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<Object> buffer = new ArrayDeque<>();
+    private final int capacity;
+    private boolean closed = false;
+    // threads parked in recv or select until a value arrives or it's closed
+    private final List<Receiver> receivers = new ArrayList<>();
+
+    /**
+     * @param capacity the number of values the channel buffers,
+     *                 Integer.MAX_VALUE for an unbounded channel
+     */
+    LoxChannel(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Defines the natives chan, send, recv, close and select. close also
+     * closes sockets.
+     *
+     * @param globals the global environment of an interpreter
+     */
+    static void defineNatives(Environment globals) {
+        globals.define("chan", new LoxCallable() {
+            public int arity() {
+                return 1;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                Object capacity = arguments.get(0);
+                if (capacity == null)
+                    return new LoxChannel(Integer.MAX_VALUE);
+                if (!(capacity instanceof Double) || (double) capacity < 1 || (double) capacity % 1 != 0)
+                    throw new RuntimeError(null, "Channel capacity must be a positive integer or nil.");
+                return new LoxChannel((int) Math.min((double) capacity, Integer.MAX_VALUE));
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+
+        globals.define("send", new LoxCallable() {
+            public int arity() {
+                return 2;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                if (arguments.get(1) == null)
+                    throw new RuntimeError(null, "Can't send nil on a channel.");
+                channel(arguments.get(0)).send(arguments.get(1));
+                return null;
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+
+        globals.define("recv", new LoxCallable() {
+            public int arity() {
+                return 1;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return receive(Collections.singletonList(channel(arguments.get(0))), null);
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+
+        globals.define("close", new LoxCallable() {
+            public int arity() {
+                return 1;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                // sockets and servers of the event loop are closed the same way
+                if (!LoxSocket.close(arguments.get(0)))
+                    channel(arguments.get(0)).close();
+                return null;
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+
+        globals.define("select", new LoxCallable() {
+            public int arity() {
+                return VARIADIC;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                if (arguments.isEmpty())
+                    throw new RuntimeError(null, "Can only select from one or more channels.");
+                List<LoxChannel> channels = new ArrayList<>(arguments.size());
+                for (Object argument : arguments) {
+                    channels.add(channel(argument));
+                }
+
+                LoxChannel[] from = new LoxChannel[1];
+                Object value = receive(channels, from);
+                if (value == null)
+                    return null;
+                LoxInstance selected = new LoxInstance(SELECTED);
+                selected.set("channel", from[0]);
+                selected.set("value", value);
+                return selected;
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+    }
+
+    private static LoxChannel channel(Object value) {
+        if (!(value instanceof LoxChannel))
+            throw new RuntimeError(null, "Expected a channel.");
+        return (LoxChannel) value;
+    }
+
+    void send(Object value) {
+        lock.lock();
+        try {
+            while (!closed && buffer.size() == capacity) {
+                notFull.await();
+            }
+            if (closed)
+                throw new RuntimeError(null, "Can't send on a closed channel.");
+
+            buffer.add(value);
+            wakeReceiver();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeError(null, "Interrupted while sending on a channel.");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notFull.signalAll();
+            wakeReceivers();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the lock is held
+    private void wakeReceiver() {
+        if (!receivers.isEmpty())
+            receivers.remove(0).wake();
+    }
+
+    // the lock is held
+    private void wakeReceivers() {
+        for (Receiver receiver : receivers) {
+            receiver.wake();
+        }
+        receivers.clear();
+    }
+
+    /**
+     * Takes the next value. If there is none the receiver is registered to be
+     * woken by the next send or the close, in the same step, so neither is
+     * missed.
+     *
+     * @return the value, EMPTY if the channel is open and empty, null if it's
+     *         closed and empty
+     */
+    private Object pollOrRegister(Receiver receiver) {
+        lock.lock();
+        try {
+            Object value = buffer.poll();
+            if (value != null) {
+                notFull.signal();
+                return value;
+            }
+            if (closed)
+                return null;
+            if (!receivers.contains(receiver))
+                receivers.add(receiver);
+            return EMPTY;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void unregister(Receiver receiver) {
+        lock.lock();
+        try {
+            // the wakeup of a value this thread didn't take goes to the next
+            if (!receivers.remove(receiver) && !buffer.isEmpty())
+                wakeReceiver();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A thread waiting in recv or select. Parking alone could miss a wakeup,
+     * the locks of the channels consume unpark permits while they wait, so
+     * the flag is what tells the thread it was woken.
+     */
+    private static final class Receiver {
+        final Thread thread = Thread.currentThread();
+        volatile boolean woken = false;
+
+        void wake() {
+            woken = true;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Receives from the first of the channels that has a value. The channels
+     * are tried from a random one on, so a busy channel doesn't starve the
+     * others.
+     *
+     * @param channels the channels to receive from
+     * @param from     gets the channel the value came from, or null
+     * @return the value, nil once all channels are closed and empty
+     */
+    static Object receive(List<LoxChannel> channels, LoxChannel[] from) {
+        Receiver receiver = new Receiver();
+        int count = channels.size();
+        int first = count == 1 ? 0 : ThreadLocalRandom.current().nextInt(count);
+        boolean registered = false;
+
+        try {
+            while (true) {
+                // cleared before polling, a send after the poll sets it again
+                receiver.woken = false;
+                boolean open = false;
+                for (int i = 0; i < count; i++) {
+                    LoxChannel channel = channels.get((first + i) % count);
+                    Object value = channel.pollOrRegister(receiver);
+                    if (value == EMPTY) {
+                        open = registered = true;
+                    } else if (value != null) {
+                        if (from != null)
+                            from[0] = channel;
+                        return value;
+                    }
+                }
+                if (!open)
+                    return null;
+
+                while (!receiver.woken) {
+                    LockSupport.park(channels);
+                    if (Thread.interrupted()) {
+                        receiver.thread.interrupt();
+                        throw new RuntimeError(null, "Interrupted while receiving from a channel.");
+                    }
+                }
+            }
+        } finally {
+            // a send may have woken the thread and unregistered it already
+            if (registered) {
+                for (LoxChannel channel : channels) {
+                    channel.unregister(receiver);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return capacity == Integer.MAX_VALUE ? "<channel>" : "<channel " + capacity + ">";
+    }
+}
@@ -7,6 +7,8 @@ class LoxClass implements LoxCallable {
     final String name;
     private final Map<String, LoxFunction> methods;
     final LoxClass superclass;
+    // instances left until the next one is reported to the flight recorder
+    private int untilSample = LoxEvents.ALLOCATION_SAMPLE_INTERVAL;
 
     LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
         this.name = name;
@@ -28,6 +30,12 @@ class LoxClass implements LoxCallable {
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
         LoxInstance instance = new LoxInstance(this);
+        if (--untilSample == 0) {
+            untilSample = LoxEvents.ALLOCATION_SAMPLE_INTERVAL;
+            LoxEvents.instancesAllocated(this, LoxEvents.ALLOCATION_SAMPLE_INTERVAL);
+        }
+        if (interpreter.runtime != null)
+            interpreter.runtime.instanceCreated();
         LoxFunction initializer = findMethod("init");
         if (initializer != null) {
             initializer.bind(instance).call(interpreter, arguments);
@@ -43,6 +51,12 @@ class LoxClass implements LoxCallable {
         return initializer.arity();
     }
 
+    @Override
+    public String frameName() {
+        // the initializer runs inside this frame
+        return name;
+    }
+
     @Override
     public String toString() {
         return name;
@@ -0,0 +1,314 @@
+package mylox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/**
+ * This class is the loxc ahead of time compiler. It scans, parses and resolves
+ * a script and its imports, emits Java code that rebuilds the resolved tree,
+ * compiles that code and packs it into a runnable jar together with the
+ * interpreter classes. Startup of the jar skips the whole front end.
+ *
+ * To also cut class loading and verification out of the startup, --cds runs
+ * the jar once to record a dynamic AppCDS archive of every class the run
+ * loaded. That training run is the whole program with all its side effects,
+ * files it writes, connections it opens and timers it waits for, so it only
+ * happens when asked for. The archive can only be passed to the JVM on the
+ * command line, so a small launcher script is written next to the jar.
+ */
+class LoxCompiler {
+
+    // a training run that takes longer than this is stopped without an archive
+    private static final long TRAINING_TIMEOUT_SECONDS = 60;
+
+    private String interpreterClass = "Interpreter";
+    private boolean archive = false;
+    private Path output = null;
+
+    public static void main(String[] args) throws IOException {
+        LoxCompiler compiler = new LoxCompiler();
+        Path script = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--engine=visitor":
+                    compiler.interpreterClass = "Interpreter";
+                    break;
+                case "--engine=pattern":
+                    compiler.interpreterClass = "PatternInterpreter";
+                    break;
+                case "--engine=arena":
+                    compiler.interpreterClass = "ArenaInterpreter";
+                    break;
+                case "--cds":
+                    compiler.archive = true;
+                    break;
+                case "--no-cds":
+                    compiler.archive = false;
+                    break;
+                case "-o":
+                    if (++i == args.length)
+                        usage();
+                    compiler.output = Paths.get(args[i]);
+                    break;
+                default:
+                    if (args[i].startsWith("-") || script != null)
+                        usage();
+                    script = Paths.get(args[i]);
+            }
+        }
+
+        if (script == null)
+            usage();
+        System.exit(compiler.compile(script));
+    }
+
+    private static void usage() {
+        System.out.println("Usage: loxc <options> script");
+        System.out.println("Options:");
+        System.out.println("  -o <path>                        output path without extension, default is the");
+        System.out.println("                                   script name in the current directory");
+        System.out.println("  --engine=visitor|pattern|arena   interpreter the program runs on");
+        System.out.println("  --cds                            run the program once at compile time to record a class");
+        System.out.println("                                   data archive and write a launcher that uses it. The run");
+        System.out.println("                                   has all the side effects of the program, its output is");
+        System.out.println("                                   discarded and it is stopped after " + TRAINING_TIMEOUT_SECONDS + "s");
+        System.out.println("  --no-cds                         don't record an archive, the default");
+        System.exit(64);
+    }
+
+    /**
+     * Compiles a script into <output>.jar, and with --cds the archive
+     * <output>.jsa and the launcher <output>.
+     *
+     * @param script the path of the script
+     * @return the exit code, 65 for errors in the script
+     */
+    int compile(Path script) throws IOException {
+        if (output == null) {
+            String name = script.getFileName().toString();
+            int dot = name.lastIndexOf('.');
+            output = Paths.get(dot > 0 ? name.substring(0, dot) : name + ".out");
+        }
+        output = output.toAbsolutePath();
+
+        List<Stmt> program = frontEnd(script);
+        if (program == null)
+            return 65;
+
+        Map<Expr, Integer> locals = new HashMap<>();
+        Resolver resolver = new Resolver(locals::put);
+        resolver.resolve(program);
+        if (Lox.hadError)
+            return 65;
+
+        Map<String, String> sources = new JavaEmitter(locals).emit(program, interpreterClass);
+
+        Path work = Files.createTempDirectory("loxc");
+        try {
+            Path classes = javac(sources, work);
+            Path jar = Paths.get(output + ".jar");
+            writeJar(jar, classes);
+            System.out.println("Wrote " + jar);
+
+            if (archive) {
+                Path jsa = Paths.get(output + ".jsa");
+                if (recordArchive(jar, jsa)) {
+                    System.out.println("Wrote " + jsa);
+                }
+                writeLauncher(jar, jsa);
+            }
+        } finally {
+            deleteRecursively(work);
+        }
+        return 0;
+    }
+
+    private List<Stmt> frontEnd(Path script) throws IOException {
+        String source = new String(Files.readAllBytes(script), Charset.defaultCharset());
+        List<Token> tokens = new Scanner(source).scanTokens();
+        List<Stmt> statements = new Parser(tokens).parse();
+        if (Lox.hadError)
+            return null;
+
+        Path directory = script.toAbsolutePath().getParent();
+        statements = new ModuleLoader().link(statements, directory, script);
+        return Lox.hadError ? null : statements;
+    }
+
+    private Path javac(Map<String, String> sources, Path work) throws IOException {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null)
+            throw new IOException("loxc needs a JDK, no Java compiler was found.");
+
+        Path sourceDirectory = Files.createDirectories(work.resolve("src").resolve("mylox"));
+        Path classes = Files.createDirectories(work.resolve("classes"));
+        List<String> arguments = new ArrayList<>();
+        arguments.add("-nowarn");
+        arguments.add("-classpath");
+        arguments.add(runtimeLocation().toString());
+        arguments.add("-d");
+        arguments.add(classes.toString());
+
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            Path file = sourceDirectory.resolve(source.getKey() + ".java");
+            Files.write(file, source.getValue().getBytes(StandardCharsets.UTF_8));
+            arguments.add(file.toString());
+        }
+
+        if (javac.run(null, null, null, arguments.toArray(new String[0])) != 0)
+            throw new IOException("Compiling the generated code failed.");
+        return classes;
+    }
+
+    /**
+     * Writes the generated classes and the interpreter classes into a jar that
+     * runs the program.
+     */
+    private void writeJar(Path jar, Path classes) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, "mylox." + JavaEmitter.MAIN_CLASS);
+
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+            out.putNextEntry(new JarEntry("mylox/"));
+            out.closeEntry();
+
+            List<String> written = new ArrayList<>();
+            try (Stream<Path> files = Files.list(classes.resolve("mylox"))) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    addEntry(out, "mylox/" + file.getFileName(), Files.newInputStream(file));
+                    written.add("mylox/" + file.getFileName());
+                }
+            }
+
+            // the interpreter classes, from the directory or the jar they run from
+            Path runtime = runtimeLocation();
+            if (Files.isDirectory(runtime)) {
+                try (Stream<Path> files = Files.list(runtime.resolve("mylox"))) {
+                    for (Path file : (Iterable<Path>) files::iterator) {
+                        String name = "mylox/" + file.getFileName();
+                        if (name.endsWith(".class") && !written.contains(name))
+                            addEntry(out, name, Files.newInputStream(file));
+                    }
+                }
+            } else {
+                try (JarFile runtimeJar = new JarFile(runtime.toFile())) {
+                    Enumeration<JarEntry> entries = runtimeJar.entries();
+                    while (entries.hasMoreElements()) {
+                        JarEntry entry = entries.nextElement();
+                        String name = entry.getName();
+                        if (name.startsWith("mylox/") && name.endsWith(".class") && !written.contains(name))
+                            addEntry(out, name, runtimeJar.getInputStream(entry));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void addEntry(JarOutputStream out, String name, InputStream in) throws IOException {
+        try (InputStream input = in) {
+            out.putNextEntry(new JarEntry(name));
+            input.transferTo(out);
+            out.closeEntry();
+        }
+    }
+
+    /**
+     * Runs the jar once and lets the JVM dump the classes it loaded into a
+     * dynamic AppCDS archive when it exits.
+     *
+     * @return true if the archive was written
+     */
+    private boolean recordArchive(Path jar, Path jsa) throws IOException {
+        Files.deleteIfExists(jsa);
+        Path java = Paths.get(System.getProperty("java.home"), "bin", "java");
+        ProcessBuilder training = new ProcessBuilder(java.toString(), "-XX:ArchiveClassesAtExit=" + jsa, "-jar",
+                jar.toString());
+        // the program's own output is not interesting here
+        training.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        training.redirectError(ProcessBuilder.Redirect.DISCARD);
+
+        Process process = training.start();
+        try {
+            if (!process.waitFor(TRAINING_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                System.err.println("Training run took longer than " + TRAINING_TIMEOUT_SECONDS
+                        + "s, skipping the class data archive.");
+                return false;
+            }
+            if (process.exitValue() != 0) {
+                // the archive of a run that failed early misses classes, but
+                // it is still valid
+                System.err.println("Training run exited with status " + process.exitValue() + ".");
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        if (!Files.exists(jsa)) {
+            System.err.println("The JVM did not write a class data archive.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes a shell script that starts the jar with the archive. The archive
+     * records the absolute path of the jar, so both are located relative to the
+     * script and keep working as long as they stay together in the directory
+     * they were compiled to.
+     */
+    private void writeLauncher(Path jar, Path jsa) throws IOException {
+        Path launcher = output;
+        String script = "#!/bin/sh\n"
+                + "# generated by loxc, runs " + jar.getFileName() + " with its class data archive\n"
+                + "dir=$(cd \"$(dirname \"$0\")\" && pwd)\n"
+                + "exec java -XX:SharedArchiveFile=\"$dir/" + jsa.getFileName() + "\" -Xshare:auto -jar \"$dir/"
+                + jar.getFileName() + "\" \"$@\"\n";
+        Files.write(launcher, script.getBytes(StandardCharsets.UTF_8));
+        launcher.toFile().setExecutable(true);
+        System.out.println("Wrote " + launcher);
+    }
+
+    /**
+     * Finds the directory or jar the interpreter classes are loaded from.
+     */
+    private static Path runtimeLocation() throws IOException {
+        try {
+            return Paths.get(Lox.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException("Can't locate the interpreter classes.", e);
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted((a, b) -> b.compareTo(a)).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
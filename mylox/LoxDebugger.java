@@ -0,0 +1,194 @@
+package mylox;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is the command line debugger of --debug. It stops before the
+ * first statement of the script and then reads commands, one per line, until
+ * one of them continues the program. An empty line repeats the last command.
+ * When the commands run out the program runs to the end.
+ */
+class LoxDebugger implements DebugInterpreter.Listener {
+
+    private final String[] source;
+    private final BufferedReader in;
+    private final PrintStream out;
+    private String lastCommand = "step";
+
+    /**
+     * @param source the script, to show the line stopped at
+     * @param in     where the commands come from
+     * @param out    where the answers go
+     */
+    LoxDebugger(String source, BufferedReader in, PrintStream out) {
+        this.source = source.split("\r?\n", -1);
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * Attaches the debugger to the interpreter, it stops at the first statement.
+     */
+    void attach(DebugInterpreter interpreter) {
+        interpreter.setListener(this);
+        interpreter.stepInto();
+    }
+
+    @Override
+    public void paused(DebugInterpreter interpreter) {
+        int line = interpreter.line();
+        String text = line <= source.length ? source[line - 1].trim() : "";
+        out.println("[line " + line + "] " + text);
+
+        for (;;) {
+            out.print("(loxdb) ");
+            out.flush();
+            String command;
+            try {
+                command = in.readLine();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (command == null) {
+                // no more commands, let the program finish
+                for (int at : interpreter.breakpoints()) {
+                    interpreter.clearBreakpoint(at);
+                }
+                interpreter.resume();
+                return;
+            }
+
+            command = command.trim();
+            if (command.isEmpty())
+                command = lastCommand;
+            lastCommand = command;
+            if (run(interpreter, command))
+                return;
+        }
+    }
+
+    /**
+     * Runs one command.
+     *
+     * @return true if the program continues
+     */
+    private boolean run(DebugInterpreter interpreter, String command) {
+        String[] words = command.split("\\s+", 2);
+        String argument = words.length > 1 ? words[1] : null;
+
+        switch (words[0]) {
+            case "c":
+            case "continue":
+                interpreter.resume();
+                return true;
+            case "s":
+            case "step":
+                interpreter.stepInto();
+                return true;
+            case "n":
+            case "next":
+                interpreter.stepOver();
+                return true;
+            case "f":
+            case "finish":
+                interpreter.stepOut();
+                return true;
+            case "b":
+            case "break":
+                if (argument == null) {
+                    out.println("Breakpoints: " + interpreter.breakpoints());
+                } else {
+                    int at = parseLine(argument);
+                    if (at > 0) {
+                        interpreter.setBreakpoint(at);
+                        out.println("Breakpoint at line " + at + ".");
+                    }
+                }
+                return false;
+            case "d":
+            case "delete":
+                int at = argument == null ? -1 : parseLine(argument);
+                if (at > 0 && !interpreter.clearBreakpoint(at))
+                    out.println("No breakpoint at line " + at + ".");
+                return false;
+            case "p":
+            case "print":
+                if (argument == null) {
+                    out.println("Usage: print <variable>");
+                } else {
+                    print(interpreter, argument);
+                }
+                return false;
+            case "l":
+            case "locals":
+                for (Environment scope = interpreter.currentEnvironment(); scope != interpreter.globals;
+                        scope = scope.enclosing) {
+                    for (Map.Entry<String, Object> variable : scope.variables().entrySet()) {
+                        out.println(variable.getKey() + " = " + interpreter.stringify(variable.getValue()));
+                    }
+                }
+                return false;
+            case "bt":
+            case "backtrace":
+                List<String> trace = interpreter.backtrace();
+                for (int frame = 0; frame < trace.size(); frame++) {
+                    out.println("#" + frame + " " + trace.get(frame));
+                }
+                return false;
+            case "q":
+            case "quit":
+                System.exit(0);
+                return true;
+            case "h":
+            case "help":
+                help();
+                return false;
+            default:
+                out.println("Unknown command '" + words[0] + "', try help.");
+                return false;
+        }
+    }
+
+    // the innermost variable of the name, like the program would see it
+    private void print(DebugInterpreter interpreter, String name) {
+        for (Environment scope = interpreter.currentEnvironment(); scope != null; scope = scope.enclosing) {
+            Map<String, Object> variables = scope.variables();
+            if (variables.containsKey(name)) {
+                out.println(name + " = " + interpreter.stringify(variables.get(name)));
+                return;
+            }
+        }
+        out.println("No variable '" + name + "'.");
+    }
+
+    private int parseLine(String argument) {
+        try {
+            int at = Integer.parseInt(argument);
+            if (at > 0)
+                return at;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        out.println("Not a line: " + argument);
+        return -1;
+    }
+
+    private void help() {
+        out.println("c, continue        run to the next breakpoint");
+        out.println("s, step            stop at the next line, in called functions too");
+        out.println("n, next            stop at the next line of this function");
+        out.println("f, finish          stop after this function returns");
+        out.println("b, break [line]    set a breakpoint, or list them");
+        out.println("d, delete <line>   delete a breakpoint");
+        out.println("p, print <name>    print a variable");
+        out.println("l, locals          print the variables of the local scopes");
+        out.println("bt, backtrace      print the call stack");
+        out.println("q, quit            stop the program");
+        out.println("an empty line repeats the last command");
+    }
+}
@@ -0,0 +1,343 @@
+package mylox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class keeps an open source file as a persistent model for the language
+ * server. The text is split into chunks, one per top level declaration, and
+ * every chunk owns its tokens, its parsed declaration and its diagnostics.
+ *
+ * Tokens and diagnostics are stored relative to the offset and line the chunk
+ * was scanned from, so an edit only has to shift the positions of the chunks
+ * after it. Only the chunks the edit touches are scanned, parsed and resolved
+ * again. Top level declarations are resolved independently of each other
+ * because globals are not tracked by the resolver, so re-resolving the damaged
+ * declarations is all that's needed.
+ */
+class LoxDocument {
+
+    private final StringBuilder text;
+    // offset of the first character of every line
+    private int[] lineStarts;
+    // chunks in source order, they cover the whole text without gaps
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    // size of the last reparse, for logging
+    int lastChunksParsed = 0;
+    int lastCharsParsed = 0;
+
+    LoxDocument(String text) {
+        this.text = new StringBuilder(text);
+        computeLineStarts();
+        chunks.addAll(parseRegion(0, text.length()));
+    }
+
+    /**
+     * A top level declaration together with the whitespace and comments
+     * leading up to it.
+     */
+    private static final class Chunk {
+        // absolute offsets of the chunk text, end is exclusive
+        int start;
+        int end;
+        // absolute offset and zero based line the tokens are relative to
+        int origin;
+        int originLine;
+
+        final List<Token> tokens;
+        // null for chunks without a declaration or with a syntax error
+        final Stmt declaration;
+        final List<Problem> problems;
+        // a chunk with a syntax error may be part of a larger declaration once
+        // its neighbours are parsed with it, and an unterminated string may
+        // reach into them
+        boolean unstable;
+
+        Chunk(List<Token> tokens, Stmt declaration, List<Problem> problems, boolean unstable) {
+            this.tokens = tokens;
+            this.declaration = declaration;
+            this.problems = problems;
+            this.unstable = unstable;
+        }
+
+        void shift(int delta, int lineDelta) {
+            start += delta;
+            end += delta;
+            origin += delta;
+            originLine += lineDelta;
+        }
+    }
+
+    /**
+     * An error reported while building a chunk, relative to the chunk origin.
+     */
+    private static final class Problem {
+        // one based line as counted by the scanner from the origin
+        final int line;
+        // offset and length of the offending token, offset is -1 if unknown
+        final int offset;
+        final int length;
+        final String message;
+
+        Problem(int line, int offset, int length, String message) {
+            this.line = line;
+            this.offset = offset;
+            this.length = length;
+            this.message = message;
+        }
+    }
+
+    /**
+     * A diagnostic in absolute document coordinates.
+     */
+    static final class Diagnostic {
+        final int startLine;
+        final int startCharacter;
+        final int endLine;
+        final int endCharacter;
+        final String message;
+
+        Diagnostic(int startLine, int startCharacter, int endLine, int endCharacter, String message) {
+            this.startLine = startLine;
+            this.startCharacter = startCharacter;
+            this.endLine = endLine;
+            this.endCharacter = endCharacter;
+            this.message = message;
+        }
+    }
+
+    String text() {
+        return text.toString();
+    }
+
+    int chunkCount() {
+        return chunks.size();
+    }
+
+    /**
+     * Replaces the text between two positions and reparses the damaged part of
+     * the document.
+     *
+     * @param startLine      zero based line of the start of the replaced range
+     * @param startCharacter character of the start of the replaced range
+     * @param endLine        zero based line of the end of the replaced range
+     * @param endCharacter   character of the end of the replaced range
+     * @param newText        the replacement text
+     */
+    void edit(int startLine, int startCharacter, int endLine, int endCharacter, String newText) {
+        int start = offset(startLine, startCharacter);
+        int end = offset(endLine, endCharacter);
+        int delta = newText.length() - (end - start);
+        int lineDelta = countLines(newText, 0, newText.length()) - countLines(text, start, end);
+
+        text.replace(start, end, newText);
+        computeLineStarts();
+
+        // the chunks touching the replaced range, in the old coordinates
+        int first = 0;
+        while (first < chunks.size() - 1 && chunks.get(first).end < start)
+            first++;
+        int last = first;
+        while (last < chunks.size() - 1 && chunks.get(last + 1).start <= end)
+            last++;
+
+        // an unfinished declaration before the edit may be completed by it
+        while (first > 0 && chunks.get(first - 1).unstable)
+            first--;
+
+        for (int i = last + 1; i < chunks.size(); i++) {
+            chunks.get(i).shift(delta, lineDelta);
+        }
+
+        int regionStart = chunks.get(first).start;
+        int regionEnd = chunks.get(last).end + delta;
+        lastChunksParsed = 0;
+        lastCharsParsed = 0;
+
+        List<Chunk> replacement = parseRegion(regionStart, regionEnd);
+        // an unfinished declaration at the end of the region may swallow the
+        // chunks after it, keep growing the region until it parses cleanly.
+        // The growth doubles so an unclosed brace costs a few passes, not one
+        // pass per remaining declaration
+        int growth = 1;
+        while (replacement.get(replacement.size() - 1).unstable && last < chunks.size() - 1) {
+            last = Math.min(last + growth, chunks.size() - 1);
+            growth *= 2;
+            regionEnd = chunks.get(last).end;
+            replacement = parseRegion(regionStart, regionEnd);
+        }
+
+        List<Chunk> damaged = chunks.subList(first, last + 1);
+        damaged.clear();
+        damaged.addAll(replacement);
+    }
+
+    /**
+     * Replaces the whole text and reparses the document.
+     *
+     * @param newText the new content of the document
+     */
+    void replace(String newText) {
+        text.setLength(0);
+        text.append(newText);
+        computeLineStarts();
+        lastChunksParsed = 0;
+        lastCharsParsed = 0;
+        chunks.clear();
+        chunks.addAll(parseRegion(0, newText.length()));
+    }
+
+    /**
+     * Collects the diagnostics of all chunks in document coordinates.
+     *
+     * @return the diagnostics in source order
+     */
+    List<Diagnostic> diagnostics() {
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        for (Chunk chunk : chunks) {
+            for (Problem problem : chunk.problems) {
+                if (problem.offset >= 0) {
+                    int from = chunk.origin + problem.offset;
+                    int to = Math.min(from + Math.max(problem.length, 1), text.length());
+                    int fromLine = lineOf(from);
+                    int toLine = lineOf(to);
+                    diagnostics.add(new Diagnostic(fromLine, from - lineStarts[fromLine], toLine,
+                            to - lineStarts[toLine], problem.message));
+                } else {
+                    // scanner errors only know their line, mark the whole line
+                    int line = Math.min(chunk.originLine + problem.line - 1, lineStarts.length - 1);
+                    diagnostics.add(new Diagnostic(line, 0, line, lineLength(line), problem.message));
+                }
+            }
+        }
+        return diagnostics;
+    }
+
+    /**
+     * Scans, parses and resolves the text between two offsets into chunks.
+     *
+     * @param start the absolute offset to start at, must be a chunk boundary
+     * @param end   the absolute offset to stop at, must be a chunk boundary
+     * @return the chunks covering the region, at least one
+     */
+    private List<Chunk> parseRegion(int start, int end) {
+        String source = text.substring(start, end);
+        List<Problem> pending = new ArrayList<>();
+        List<Chunk> result = new ArrayList<>();
+
+        ErrorReporter previousReporter = Lox.reporter.get();
+        Lox.reporter.set((line, token, where, message) -> {
+            int offset = token == null ? -1 : token.offset;
+            int length = token == null ? 0 : token.lexeme.length();
+            pending.add(new Problem(line, offset, length, "Error" + where + ": " + message));
+        });
+
+        try {
+            List<Token> tokens = new Scanner(source).scanTokens();
+            List<Problem> scanProblems = new ArrayList<>(pending);
+            pending.clear();
+
+            Parser parser = new Parser(tokens);
+            // only the errors of the resolver matter here
+            Resolver resolver = new Resolver((expr, depth) -> {
+            });
+
+            int[] from = { 0 };
+            parser.parse(declaration -> {
+                int to = parser.position();
+                // like Lox.run, only declarations without syntax errors are
+                // resolved, the parser leaves holes in the others
+                boolean unstable = declaration == null || !pending.isEmpty();
+                if (!unstable) {
+                    resolver.resolve(Collections.singletonList(declaration));
+                }
+
+                List<Token> own = new ArrayList<>(tokens.subList(from[0], to));
+                result.add(new Chunk(own, declaration, new ArrayList<>(pending), unstable));
+                pending.clear();
+                from[0] = to;
+            });
+
+            if (result.isEmpty()) {
+                result.add(new Chunk(Collections.emptyList(), null, new ArrayList<>(), false));
+            }
+
+            // lay the chunks out over the region, each one ends with its last
+            // token except the last one, which also takes the trailing text
+            int chunkStart = start;
+            int originLine = lineOf(start);
+            for (Chunk chunk : result) {
+                chunk.origin = start;
+                chunk.originLine = originLine;
+                chunk.start = chunkStart;
+                if (chunk.tokens.isEmpty()) {
+                    chunk.end = chunkStart;
+                } else {
+                    Token lastToken = chunk.tokens.get(chunk.tokens.size() - 1);
+                    chunk.end = start + lastToken.offset + lastToken.lexeme.length();
+                }
+                chunkStart = chunk.end;
+            }
+            result.get(result.size() - 1).end = end;
+
+            // scanner errors go to the chunk that contains their line
+            for (Problem problem : scanProblems) {
+                Chunk owner = result.get(0);
+                for (Chunk chunk : result) {
+                    if (!chunk.tokens.isEmpty() && chunk.tokens.get(0).line <= problem.line)
+                        owner = chunk;
+                }
+                owner.problems.add(problem);
+                owner.unstable = true;
+            }
+        } finally {
+            Lox.reporter.set(previousReporter);
+        }
+
+        lastChunksParsed += result.size();
+        lastCharsParsed += source.length();
+        return result;
+    }
+
+    private void computeLineStarts() {
+        int[] starts = new int[16];
+        int count = 0;
+        starts[count++] = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                if (count == starts.length)
+                    starts = Arrays.copyOf(starts, count * 2);
+                starts[count++] = i + 1;
+            }
+        }
+        lineStarts = Arrays.copyOf(starts, count);
+    }
+
+    private int offset(int line, int character) {
+        if (line >= lineStarts.length)
+            return text.length();
+        return Math.min(lineStarts[line] + character, text.length());
+    }
+
+    private int lineOf(int offset) {
+        int line = Arrays.binarySearch(lineStarts, offset);
+        return line >= 0 ? line : -line - 2;
+    }
+
+    private int lineLength(int line) {
+        int end = line + 1 < lineStarts.length ? lineStarts[line + 1] - 1 : text.length();
+        return end - lineStarts[line];
+    }
+
+    private static int countLines(CharSequence sequence, int start, int end) {
+        int lines = 0;
+        for (int i = start; i < end; i++) {
+            if (sequence.charAt(i) == '\n')
+                lines++;
+        }
+        return lines;
+    }
+}
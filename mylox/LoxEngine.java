@@ -0,0 +1,235 @@
+package mylox;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * This class runs Lox code embedded in a Java program. Every engine is an
+ * execution context of its own: it owns an interpreter with its globals, the
+ * stream print statements write to and the reporter its errors go to, and it
+ * leaves the static state of Lox alone. Scripts run in parallel by giving every
+ * thread, or every task of a pool, an engine of its own. One engine runs one
+ * script at a time.
+ *
+ * The globals stay between the scripts an engine runs, like at the prompt.
+ * An engine that ran a prelude can be snapshotted, and engines started from
+ * the snapshot begin with everything the prelude defined without running it.
+ * Values handed in and out are Lox values: Double, String, Boolean, null or
+ * a LoxCallable.
+ */
+public class LoxEngine {
+
+    private final Interpreter interpreter;
+    private final ErrorReporter errors;
+    // modules already imported by the scripts of this engine
+    private final ModuleLoader modules;
+
+    // set when the script in progress reported an error
+    private boolean failed = false;
+
+    // passes the errors on and remembers that there was one, it's the
+    // reporter of the thread while a script runs
+    private final ErrorReporter sink = new ErrorReporter() {
+        @Override
+        public void report(int line, Token token, String where, String message) {
+            failed = true;
+            errors.report(line, token, where, message);
+        }
+
+        @Override
+        public void moduleError(String error) {
+            failed = true;
+            errors.moduleError(error);
+        }
+
+        @Override
+        public void runtimeError(RuntimeError error) {
+            failed = true;
+            if (interpreter.runtime != null)
+                interpreter.runtime.runtimeError(error);
+            errors.runtimeError(error);
+        }
+    };
+
+    /**
+     * Creates an engine on the visitor interpreter.
+     *
+     * @param out    the stream print statements write to
+     * @param errors receives the static and runtime errors of the scripts
+     */
+    public LoxEngine(PrintStream out, ErrorReporter errors) {
+        this("visitor", out, errors);
+    }
+
+    /**
+     * @param engine visitor, pattern or arena, like --engine
+     * @param out    the stream print statements write to
+     * @param errors receives the static and runtime errors of the scripts
+     */
+    public LoxEngine(String engine, PrintStream out, ErrorReporter errors) {
+        switch (engine) {
+            case "visitor":
+                interpreter = new Interpreter();
+                break;
+            case "pattern":
+                interpreter = new PatternInterpreter();
+                break;
+            case "arena":
+                interpreter = new ArenaInterpreter();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown engine " + engine);
+        }
+        interpreter.out = out;
+        interpreter.errors = sink;
+        this.errors = errors;
+        this.modules = new ModuleLoader();
+    }
+
+    private LoxEngine(Interpreter interpreter, ModuleLoader modules, PrintStream out, ErrorReporter errors) {
+        interpreter.out = out;
+        interpreter.errors = sink;
+        this.interpreter = interpreter;
+        this.modules = modules;
+        this.errors = errors;
+    }
+
+    /**
+     * Runs a script that doesn't come from a file, imports are relative to the
+     * working directory.
+     *
+     * @param source the source text of the script
+     * @return false if the script reported an error
+     */
+    public boolean eval(String source) {
+        return eval(source, null);
+    }
+
+    /**
+     * Runs a script. Nothing runs if it has a static error.
+     *
+     * @param source the source text of the script
+     * @param path   the file of the script, imports are relative to it, or null
+     * @return false if the script reported an error
+     */
+    public boolean eval(String source, Path path) {
+        ErrorReporter previousReporter = Lox.reporter.get();
+        Lox.reporter.set(sink);
+        failed = false;
+        try {
+            List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+            if (failed) return false;
+
+            Path directory = path == null ? Paths.get("") : path.toAbsolutePath().getParent();
+            statements = modules.link(statements, directory, path);
+            if (failed) return false;
+
+            new Resolver(interpreter).resolve(statements);
+            if (failed) return false;
+
+            long started = System.nanoTime();
+            interpreter.interpret(statements);
+            if (!failed)
+                interpreter.runEventLoop();
+            if (interpreter.runtime != null)
+                interpreter.runtime.scriptExecuted(System.nanoTime() - started);
+            return !failed;
+        } finally {
+            Lox.reporter.set(previousReporter);
+        }
+    }
+
+    /**
+     * Runs a prepared script. Other engines may run the same script at the
+     * same time.
+     *
+     * @param script the script
+     * @return false if the script reported a runtime error
+     */
+    public boolean run(PreparedScript script) {
+        ErrorReporter previousReporter = Lox.reporter.get();
+        Lox.reporter.set(sink);
+        failed = false;
+        try {
+            long started = System.nanoTime();
+            interpreter.interpret(script);
+            if (!failed)
+                interpreter.runEventLoop();
+            if (interpreter.runtime != null)
+                interpreter.runtime.scriptExecuted(System.nanoTime() - started);
+            return !failed;
+        } finally {
+            Lox.reporter.set(previousReporter);
+        }
+    }
+
+    /**
+     * Defines a global variable, native functions are LoxCallables.
+     */
+    public void define(String name, Object value) {
+        interpreter.globals.define(name, value);
+    }
+
+    /**
+     * @return the value of a global variable, null if it isn't defined
+     */
+    public Object get(String name) {
+        Globals.Cell cell = interpreter.globals.cell(name);
+        return cell == null ? null : cell.value;
+    }
+
+    /**
+     * Takes a snapshot of the globals, the functions and classes defined so far
+     * and the modules already imported. Taking it copies the globals once, an
+     * engine started from it takes the globals it uses from the snapshot the
+     * first time it uses them, so it starts in constant time however big the
+     * prelude was. This engine can go on running scripts, they don't change
+     * the snapshot.
+     *
+     * Only the global scope is copied: an instance or a closure the prelude
+     * created is the same object in every engine, so a prelude meant to be
+     * shared by threads shouldn't keep state in them.
+     *
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(interpreter.fork(interpreter.globals.copy()), new ModuleLoader(modules));
+    }
+
+    /**
+     * The state of an engine at the time of a snapshot. Any number of threads
+     * can start engines from one snapshot at the same time.
+     */
+    public static final class Snapshot {
+        // never runs anything, so forking it writes nothing
+        private final Interpreter template;
+        private final ModuleLoader modules;
+
+        private Snapshot(Interpreter template, ModuleLoader modules) {
+            this.template = template;
+            this.modules = modules;
+        }
+
+        /**
+         * Starts an engine from the snapshot, on the engine the snapshot was
+         * taken of.
+         *
+         * @param out    the stream print statements write to
+         * @param errors receives the static and runtime errors of the scripts
+         * @return the new engine
+         */
+        public LoxEngine newEngine(PrintStream out, ErrorReporter errors) {
+            return new LoxEngine(template.fork(), new ModuleLoader(modules), out, errors);
+        }
+    }
+
+    /**
+     * Counts what this engine does in the MBean of --jmx, registering it if
+     * no engine did yet. The MBean doesn't keep the engine reachable.
+     */
+    public void publishMetrics() {
+        LoxRuntime.register().attach(interpreter);
+    }
+}
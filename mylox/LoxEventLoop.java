@@ -0,0 +1,326 @@
+package mylox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This class is the event loop of an interpreter, created by the first
+ * asynchronous native the interpreter calls. Sockets are non-blocking channels
+ * registered with one NIO selector, so one thread serves any number of
+ * connections. Files are read and written with AsynchronousFileChannel,
+ * whose completion handlers post the result back to the loop. Timers live
+ * in a timer wheel, the loop sleeps in the selector until the next one is
+ * due.
+ *
+ * Everything that runs Lox code, the callbacks of promises and of servers,
+ * runs on the thread of the interpreter: the loop runs after the script is
+ * done, until nothing is pending anymore, and while await waits for a
+ * promise. So callbacks never run concurrently with each other or with the
+ * script.
+ */
+final class LoxEventLoop {
+
+    /**
+     * A channel registered with the selector, the attachment of its key.
+     */
+    interface Selectable {
+        void ready(SelectionKey key) throws IOException;
+    }
+
+    private final Interpreter interpreter;
+    private final Selector selector;
+    // callbacks to run on the loop, only touched by the interpreter thread
+    private final ArrayDeque<Runnable> jobs = new ArrayDeque<>();
+    // jobs posted by other threads, moved to jobs by the loop
+    private final ConcurrentLinkedQueue<Runnable> posted = new ConcurrentLinkedQueue<>();
+    private final TimerWheel timers = new TimerWheel(this);
+    // operations, servers and timers the loop waits for, it ends at zero
+    private int pending = 0;
+
+    LoxEventLoop(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new RuntimeError(null, "Could not start the event loop: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Defines the natives readFile and writeFile.
+     *
+     * @param globals the global environment of an interpreter
+     */
+    static void defineNatives(Environment globals) {
+        globals.define("readFile", new LoxCallable() {
+            public int arity() {
+                return 1;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return interpreter.eventLoop().readFile(path(arguments.get(0)));
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+
+        globals.define("writeFile", new LoxCallable() {
+            public int arity() {
+                return 2;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                if (!(arguments.get(1) instanceof String))
+                    throw new RuntimeError(null, "Can only write strings to a file.");
+                return interpreter.eventLoop().writeFile(path(arguments.get(0)), (String) arguments.get(1));
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+    }
+
+    private static Path path(Object value) {
+        if (!(value instanceof String))
+            throw new RuntimeError(null, "Expected a file name.");
+        return Paths.get((String) value);
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    TimerWheel timers() {
+        return timers;
+    }
+
+    // an operation started, the loop waits for it
+    void begin() {
+        pending++;
+    }
+
+    // an operation ended
+    void end() {
+        pending--;
+    }
+
+    /**
+     * Queues a job to run on the loop, on the interpreter thread.
+     */
+    void schedule(Runnable job) {
+        jobs.add(job);
+    }
+
+    /**
+     * Queues a job to run on the loop from any thread.
+     */
+    void post(Runnable job) {
+        posted.add(job);
+        selector.wakeup();
+    }
+
+    /**
+     * Calls a Lox callback on the interpreter of the loop.
+     */
+    Object call(LoxCallable callback, Object... arguments) {
+        List<Object> list = new ArrayList<>(arguments.length);
+        for (Object argument : arguments) {
+            list.add(argument);
+        }
+        return interpreter.callFunction(callback, null, list);
+    }
+
+    /**
+     * Runs the loop until nothing is pending. A runtime error in a callback
+     * is reported and the loop goes on with the others.
+     */
+    void run() {
+        while (runOnce()) {
+        }
+    }
+
+    /**
+     * Runs the jobs that are queued and the timers that are due, or waits for
+     * the next channel to become ready, the next timer or the next job to be
+     * posted and handles it.
+     *
+     * @return false if there was nothing left to do or to wait for
+     */
+    boolean runOnce() {
+        movePosted();
+        timers.advance();
+        if (!jobs.isEmpty()) {
+            // jobs queued by these jobs wait for the next turn, and a job that
+            // awaits runs the loop itself and may take the rest of them
+            for (int count = jobs.size(); count > 0; count--) {
+                Runnable job = jobs.poll();
+                if (job == null)
+                    break;
+                try {
+                    job.run();
+                } catch (RuntimeError error) {
+                    report(error);
+                }
+            }
+            return true;
+        }
+
+        if (pending == 0)
+            return false;
+
+        try {
+            long timeout = timers.timeout();
+            if (timeout < 0)
+                selector.select();
+            else if (timeout == 0)
+                selector.selectNow();
+            else
+                selector.select(timeout);
+        } catch (IOException e) {
+            throw new RuntimeError(null, "Event loop failed: " + e.getMessage());
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            try {
+                if (key.isValid())
+                    ((Selectable) key.attachment()).ready(key);
+            } catch (IOException e) {
+                // the channel reports its own failures, see LoxSocket
+                key.cancel();
+            } catch (RuntimeError error) {
+                report(error);
+            }
+        }
+        return true;
+    }
+
+    private void movePosted() {
+        Runnable job;
+        while ((job = posted.poll()) != null) {
+            jobs.add(job);
+        }
+    }
+
+    // reports to the engine of the interpreter, a task runs its loop on a
+    // thread the reporter of the engine isn't set for
+    private void report(RuntimeError error) {
+        if (error.token == null)
+            error = new RuntimeError(new Token(TokenType.IDENTIFIER, "callback", null, 0), error.getMessage());
+        if (interpreter.errors == null) {
+            Lox.runtimeError(error);
+            return;
+        }
+        LoxEvents.runtimeError(error);
+        interpreter.errors.runtimeError(error);
+    }
+
+    /**
+     * @return true if this is the loop of the interpreter
+     */
+    boolean belongsTo(Interpreter interpreter) {
+        return this.interpreter == interpreter;
+    }
+
+    private LoxPromise readFile(Path path) {
+        LoxPromise promise = new LoxPromise(this);
+        begin();
+        try {
+            AsynchronousFileChannel file = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+            long size = file.size();
+            if (size > Integer.MAX_VALUE - 8)
+                throw new IOException("too large");
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            file.read(buffer, 0, buffer, new CompletionHandler<Integer, ByteBuffer>() {
+                @Override
+                public void completed(Integer read, ByteBuffer buffer) {
+                    // read on until the buffer is full or the file ends
+                    if (read >= 0 && buffer.hasRemaining()) {
+                        file.read(buffer, buffer.position(), buffer, this);
+                        return;
+                    }
+                    closeQuietly(file);
+                    String text = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+                    settle(promise, text, null);
+                }
+
+                @Override
+                public void failed(Throwable failure, ByteBuffer buffer) {
+                    closeQuietly(file);
+                    settle(promise, null, "Could not read " + path + ": " + failure.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            settle(promise, null, "Could not read " + path + ": " + e.getMessage());
+        }
+        return promise;
+    }
+
+    private LoxPromise writeFile(Path path, String text) {
+        LoxPromise promise = new LoxPromise(this);
+        begin();
+        try {
+            AsynchronousFileChannel file = AsynchronousFileChannel.open(path, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+            file.write(buffer, 0, buffer, new CompletionHandler<Integer, ByteBuffer>() {
+                @Override
+                public void completed(Integer written, ByteBuffer buffer) {
+                    if (buffer.hasRemaining()) {
+                        file.write(buffer, buffer.position(), buffer, this);
+                        return;
+                    }
+                    closeQuietly(file);
+                    settle(promise, null, null);
+                }
+
+                @Override
+                public void failed(Throwable failure, ByteBuffer buffer) {
+                    closeQuietly(file);
+                    settle(promise, null, "Could not write " + path + ": " + failure.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            settle(promise, null, "Could not write " + path + ": " + e.getMessage());
+        }
+        return promise;
+    }
+
+    // settles a file promise on the loop, from the thread of the handler
+    private void settle(LoxPromise promise, Object value, String error) {
+        post(() -> {
+            end();
+            if (error == null) {
+                promise.resolve(value);
+            } else {
+                promise.reject(new RuntimeError(null, error));
+            }
+        });
+    }
+
+    private static void closeQuietly(AsynchronousFileChannel file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            // the data is already read or written
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package mylox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.Threshold;
+
+/**
+ * This class holds the Java Flight Recorder events of the interpreter, so a
+ * recording shows what the Lox program did next to the GC and CPU events of
+ * the JVM. The events are recorded whenever a recording with them enabled is
+ * running, like one started with -XX:StartFlightRecording, and are enabled by
+ * default.
+ *
+ * Calls are the hottest path of the interpreter, so a call only creates its
+ * event while a recording has the event enabled. A listener updates a flag
+ * whenever a recording starts or stops, and calls check the flag. The other
+ * events are rare enough to be created unconditionally.
+ */
+final class LoxEvents {
+
+    // one in this many instances of a class is recorded
+    static final int ALLOCATION_SAMPLE_INTERVAL = 64;
+
+    // set while a running recording has the call event enabled
+    private static volatile boolean callsRecorded = false;
+
+    static {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recorderInitialized(FlightRecorder recorder) {
+                update();
+            }
+
+            @Override
+            public void recordingStateChanged(Recording recording) {
+                update();
+            }
+
+            private void update() {
+                callsRecorded = EventType.getEventType(Call.class).isEnabled();
+            }
+        });
+    }
+
+    private LoxEvents() {
+    }
+
+    /**
+     * @return true if calls should create their events
+     */
+    static boolean callsRecorded() {
+        return callsRecorded;
+    }
+
+    @Name("mylox.Phase")
+    @Label("Lox Phase")
+    @Category("Lox")
+    @Description("A phase of running a script: scanning, parsing, linking imports, resolving, compiling to"
+            + " the arena or interpreting")
+    static final class Phase extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Source")
+        @Description("The script or module, empty for code typed at the prompt")
+        String source;
+
+        // start of the phase for the statistics, which don't see the event
+        private transient long started;
+
+        Phase(String phase, String source) {
+            this.phase = phase;
+            this.source = source == null ? "" : source;
+            this.started = System.nanoTime();
+            begin();
+        }
+
+        /**
+         * Ends the phase and commits the event.
+         *
+         * @return the duration of the phase in nanoseconds
+         */
+        long finish() {
+            end();
+            if (shouldCommit())
+                commit();
+            return System.nanoTime() - started;
+        }
+    }
+
+    @Name("mylox.Call")
+    @Label("Lox Call")
+    @Category("Lox")
+    @Description("A call of a Lox function, method or class that took longer than the threshold")
+    @Threshold("10 ms")
+    static final class Call extends Event {
+        @Label("Function")
+        String function;
+
+        @Label("Line")
+        @Description("The line the function is declared on, 0 for classes and native functions")
+        int line;
+    }
+
+    @Name("mylox.InstanceAllocation")
+    @Label("Lox Instance Allocation")
+    @Category("Lox")
+    @Description("A sampled creation of a class instance, it stands for weight instances of the class")
+    static final class InstanceAllocation extends Event {
+        @Label("Class")
+        String className;
+
+        @Label("Weight")
+        @Description("The number of instances this sample stands for")
+        int weight;
+    }
+
+    @Name("mylox.RuntimeError")
+    @Label("Lox Runtime Error")
+    @Category("Lox")
+    @Description("A runtime error that stopped the script")
+    static final class ScriptError extends Event {
+        @Label("Message")
+        String message;
+
+        @Label("Line")
+        int line;
+    }
+
+    /**
+     * Ends the event of a call and commits it if the call was slow enough.
+     */
+    static void endCall(Call event, LoxCallable function) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.function = function.frameName();
+            event.line = function.declarationLine();
+            event.commit();
+        }
+    }
+
+    static void instancesAllocated(LoxClass klass, int weight) {
+        InstanceAllocation event = new InstanceAllocation();
+        if (event.shouldCommit()) {
+            event.className = klass.name;
+            event.weight = weight;
+            event.commit();
+        }
+    }
+
+    static void runtimeError(RuntimeError error) {
+        ScriptError event = new ScriptError();
+        if (event.shouldCommit()) {
+            event.message = error.getMessage();
+            event.line = error.token.line;
+            event.commit();
+        }
+    }
+}
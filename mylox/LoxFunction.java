@@ -1,25 +1,36 @@
 package mylox;
 
 import java.util.List;
+import java.util.Map;
 
 public class LoxFunction implements LoxCallable {
     // declaration stores the function statements to be executed
     private final Stmt.Function declaration;
     // closure stores any enclosing scope of outer functions or global scope by
     // default
-    private final Environment closure;
-    private final boolean isInitializer;
+    final Environment closure;
+    final boolean isInitializer;
+    // the scope distances of the script the function was declared in
+    private final Map<Expr, Integer> locals;
 
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer,
+            Map<Expr, Integer> locals) {
         this.declaration = declaration;
         this.closure = closure;
         this.isInitializer = isInitializer;
+        this.locals = locals;
     }
 
     LoxFunction bind(LoxInstance instance) {
         Environment environment = new Environment(closure);
         environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return withClosure(environment);
+    }
+
+    // copies this function over a different closure, subclasses for other
+    // AST representations override this so binding keeps their body
+    LoxFunction withClosure(Environment closure) {
+        return new LoxFunction(declaration, closure, isInitializer, locals);
     }
 
     @Override
@@ -37,7 +48,7 @@ public class LoxFunction implements LoxCallable {
         // execute the function body
         // and return the return value from call or null
         try {
-            interpreter.executeBlock(declaration.body, environment);
+            interpreter.executeBody(declaration.body, environment, locals);
         } catch (Return returnValue) {
             if (isInitializer) return closure.getAt(0, "this");
             return returnValue.value;
@@ -53,6 +64,16 @@ public class LoxFunction implements LoxCallable {
         return declaration.params.size();
     }
 
+    @Override
+    public String frameName() {
+        return declaration.name.lexeme;
+    }
+
+    @Override
+    public int declarationLine() {
+        return declaration.name.line;
+    }
+
     @Override
     public String toString() {
         return "<fn " + declaration.name.lexeme + ">";
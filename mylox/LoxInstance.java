@@ -22,10 +22,37 @@ class LoxInstance {
         throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
     }
 
+    // token free variant of get(Token), the token is only created to report
+    // an undefined property
+    Object get(String name, int line) {
+        if (fields.containsKey(name)) {
+            return fields.get(name);
+        }
+
+        LoxFunction method = klass.findMethod(name);
+        if (method != null) return method.bind(this);
+
+        throw new RuntimeError(new Token(TokenType.IDENTIFIER, name, null, line),
+                "Undefined property '" + name + "'.");
+    }
+
+    // the class and field check of the method caches of the arena interpreter
+    LoxClass klass() {
+        return klass;
+    }
+
+    boolean hasField(String name) {
+        return fields.containsKey(name);
+    }
+
     void set(Token name, Object value) {
         fields.put(name.lexeme, value);
     }
 
+    void set(String name, Object value) {
+        fields.put(name, value);
+    }
+
     @Override
     public String toString() {
         return klass.name + " instance";
@@ -0,0 +1,310 @@
+package mylox;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is a language server speaking LSP over stdin and stdout. Open
+ * documents are kept as LoxDocuments, so a change only re-lexes, re-parses and
+ * re-resolves the declarations it touches before the diagnostics are published
+ * again.
+ */
+class LoxLanguageServer {
+
+    // JSON-RPC error codes
+    private static final int PARSE_ERROR = -32700;
+    private static final int INVALID_REQUEST = -32600;
+    private static final int METHOD_NOT_FOUND = -32601;
+    private static final int INTERNAL_ERROR = -32603;
+
+    // LSP diagnostic severity
+    private static final int SEVERITY_ERROR = 1;
+    // LSP text document sync kind
+    private static final int SYNC_INCREMENTAL = 2;
+
+    private final InputStream in;
+    private final OutputStream out;
+    // log messages go to stderr, stdout belongs to the protocol
+    private final PrintStream log;
+    private final Map<String, LoxDocument> documents = new HashMap<>();
+
+    private boolean shutdown = false;
+    private boolean exit = false;
+
+    LoxLanguageServer(InputStream in, OutputStream out, PrintStream log) {
+        this.in = new BufferedInputStream(in);
+        this.out = out;
+        this.log = log;
+    }
+
+    /**
+     * Serves requests until the client sends exit or closes the stream.
+     *
+     * @return the process exit code, 0 if the client shut the server down first
+     * @throws IOException if reading or writing the streams fails
+     */
+    int serve() throws IOException {
+        while (!exit) {
+            String content = readMessage();
+            if (content == null)
+                break;
+
+            Object request;
+            try {
+                request = Json.parse(content);
+            } catch (IllegalArgumentException e) {
+                sendError(null, PARSE_ERROR, e.getMessage());
+                continue;
+            }
+
+            if (!(request instanceof Map)) {
+                sendError(null, INVALID_REQUEST, "Expect a JSON object.");
+                continue;
+            }
+            Map<String, Object> message = asMap(request);
+            try {
+                handle(message);
+            } catch (RuntimeException e) {
+                // a bad message must not take the server down
+                log.println("Failed to handle " + message.get("method") + ": " + e);
+                if (message.get("id") != null)
+                    sendError(message.get("id"), INTERNAL_ERROR, String.valueOf(e.getMessage()));
+            }
+        }
+        return shutdown ? 0 : 1;
+    }
+
+    private void handle(Map<String, Object> request) throws IOException {
+        Object id = request.get("id");
+        String method = (String) request.get("method");
+        Map<String, Object> params = asMap(request.get("params"));
+
+        if (method == null) {
+            // a response to a request we never send
+            return;
+        }
+
+        switch (method) {
+            case "initialize":
+                sendResult(id, capabilities());
+                break;
+            case "initialized":
+                break;
+            case "shutdown":
+                shutdown = true;
+                sendResult(id, null);
+                break;
+            case "exit":
+                exit = true;
+                break;
+            case "textDocument/didOpen":
+                didOpen(params);
+                break;
+            case "textDocument/didChange":
+                didChange(params);
+                break;
+            case "textDocument/didClose":
+                didClose(params);
+                break;
+            default:
+                // notifications we don't know are ignored, requests get an error
+                if (id != null)
+                    sendError(id, METHOD_NOT_FOUND, "Unsupported method " + method + ".");
+        }
+    }
+
+    private Map<String, Object> capabilities() {
+        Map<String, Object> sync = new LinkedHashMap<>();
+        sync.put("openClose", true);
+        sync.put("change", SYNC_INCREMENTAL);
+
+        Map<String, Object> capabilities = new LinkedHashMap<>();
+        capabilities.put("textDocumentSync", sync);
+
+        Map<String, Object> serverInfo = new LinkedHashMap<>();
+        serverInfo.put("name", "mylox");
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("capabilities", capabilities);
+        result.put("serverInfo", serverInfo);
+        return result;
+    }
+
+    private void didOpen(Map<String, Object> params) throws IOException {
+        Map<String, Object> textDocument = asMap(params.get("textDocument"));
+        String uri = (String) textDocument.get("uri");
+        LoxDocument document = new LoxDocument((String) textDocument.get("text"));
+        documents.put(uri, document);
+        publishDiagnostics(uri, document);
+    }
+
+    private void didChange(Map<String, Object> params) throws IOException {
+        String uri = (String) asMap(params.get("textDocument")).get("uri");
+        LoxDocument document = documents.get(uri);
+        if (document == null)
+            return;
+
+        long start = System.nanoTime();
+        int chunksParsed = 0;
+        int charsParsed = 0;
+        for (Object element : (List<?>) params.get("contentChanges")) {
+            Map<String, Object> change = asMap(element);
+            String text = (String) change.get("text");
+            Map<String, Object> range = asMap(change.get("range"));
+
+            if (range.isEmpty()) {
+                document.replace(text);
+            } else {
+                Map<String, Object> from = asMap(range.get("start"));
+                Map<String, Object> to = asMap(range.get("end"));
+                document.edit(number(from, "line"), number(from, "character"),
+                        number(to, "line"), number(to, "character"), text);
+            }
+            chunksParsed += document.lastChunksParsed;
+            charsParsed += document.lastCharsParsed;
+        }
+
+        log.printf("%s: reparsed %d of %d declarations (%d chars) in %.2f ms%n", uri, chunksParsed,
+                document.chunkCount(), charsParsed, (System.nanoTime() - start) / 1e6);
+        publishDiagnostics(uri, document);
+    }
+
+    private void didClose(Map<String, Object> params) throws IOException {
+        String uri = (String) asMap(params.get("textDocument")).get("uri");
+        documents.remove(uri);
+
+        // clear the diagnostics of the closed document in the client
+        Map<String, Object> notification = new LinkedHashMap<>();
+        notification.put("uri", uri);
+        notification.put("diagnostics", new ArrayList<>());
+        sendNotification("textDocument/publishDiagnostics", notification);
+    }
+
+    private void publishDiagnostics(String uri, LoxDocument document) throws IOException {
+        List<Object> diagnostics = new ArrayList<>();
+        for (LoxDocument.Diagnostic diagnostic : document.diagnostics()) {
+            Map<String, Object> range = new LinkedHashMap<>();
+            range.put("start", position(diagnostic.startLine, diagnostic.startCharacter));
+            range.put("end", position(diagnostic.endLine, diagnostic.endCharacter));
+
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("range", range);
+            entry.put("severity", SEVERITY_ERROR);
+            entry.put("source", "mylox");
+            entry.put("message", diagnostic.message);
+            diagnostics.add(entry);
+        }
+
+        Map<String, Object> notification = new LinkedHashMap<>();
+        notification.put("uri", uri);
+        notification.put("diagnostics", diagnostics);
+        sendNotification("textDocument/publishDiagnostics", notification);
+    }
+
+    private static Map<String, Object> position(int line, int character) {
+        Map<String, Object> position = new LinkedHashMap<>();
+        position.put("line", line);
+        position.put("character", character);
+        return position;
+    }
+
+    private void sendResult(Object id, Object result) throws IOException {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("jsonrpc", "2.0");
+        response.put("id", id);
+        response.put("result", result);
+        send(response);
+    }
+
+    private void sendError(Object id, int code, String message) throws IOException {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("code", code);
+        error.put("message", message);
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("jsonrpc", "2.0");
+        response.put("id", id);
+        response.put("error", error);
+        send(response);
+    }
+
+    private void sendNotification(String method, Object params) throws IOException {
+        Map<String, Object> notification = new LinkedHashMap<>();
+        notification.put("jsonrpc", "2.0");
+        notification.put("method", method);
+        notification.put("params", params);
+        send(notification);
+    }
+
+    private void send(Map<String, Object> message) throws IOException {
+        byte[] content = Json.write(message).getBytes(StandardCharsets.UTF_8);
+        byte[] header = ("Content-Length: " + content.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        out.write(header);
+        out.write(content);
+        out.flush();
+    }
+
+    /**
+     * Reads the next message framed by LSP base protocol headers.
+     *
+     * @return the content of the message or null at the end of the stream
+     */
+    private String readMessage() throws IOException {
+        int length = -1;
+        for (;;) {
+            String header = readHeaderLine();
+            if (header == null)
+                return null;
+            if (header.isEmpty())
+                break;
+
+            int colon = header.indexOf(':');
+            if (colon > 0 && header.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+                length = Integer.parseInt(header.substring(colon + 1).trim());
+            }
+        }
+
+        if (length < 0)
+            throw new IOException("Missing Content-Length header.");
+
+        byte[] content = in.readNBytes(length);
+        if (content.length < length)
+            return null;
+        return new String(content, StandardCharsets.UTF_8);
+    }
+
+    private String readHeaderLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (;;) {
+            int c = in.read();
+            if (c == -1)
+                return line.size() == 0 ? null : line.toString(StandardCharsets.US_ASCII);
+            if (c == '\n')
+                break;
+            if (c != '\r')
+                line.write(c);
+        }
+        return line.toString(StandardCharsets.US_ASCII);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(Object value) {
+        if (value instanceof Map)
+            return (Map<String, Object>) value;
+        return new HashMap<>();
+    }
+
+    private static int number(Map<String, Object> object, String key) {
+        return ((Number) object.get(key)).intValue();
+    }
+}
@@ -0,0 +1,168 @@
+package mylox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * This class runs the natives parallelFor and parallelReduce, data parallel
+ * loops over a range of integers. The range is split in halves on the common
+ * ForkJoinPool until the pieces are small enough for every core to get
+ * several, idle workers steal the halves that are still waiting, and the
+ * calling thread works on the loop too.
+ *
+ * Every piece runs the body on an interpreter of its own, forked from a
+ * template that was forked from the caller before the loop started, so the
+ * pieces have their own frames and forked globals like the tasks of
+ * spawn. The globals of a piece are read only, and the Resolver rejects
+ * assignments from the body, or the functions it calls, to any variable
+ * declared outside of it. Results are combined by
+ * parallelReduce instead: the values the body returns are folded with the
+ * combining function, first along every piece and then across the halves,
+ * which needs the function to be associative.
+ */
+final class LoxParallel {
+
+    // the loops the Resolver checks the bodies of
+    static final String FOR = "parallelFor";
+    static final String REDUCE = "parallelReduce";
+
+    // pieces per worker, more pieces balance uneven iterations better
+    private static final int PIECES_PER_WORKER = 8;
+
+    private LoxParallel() {
+    }
+
+    /**
+     * Defines the natives parallelFor and parallelReduce.
+     *
+     * @param globals the global environment of an interpreter
+     */
+    static void defineNatives(Environment globals) {
+        globals.define(FOR, new LoxCallable() {
+            public int arity() {
+                return 3;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                run(interpreter, arguments.get(0), arguments.get(1), arguments.get(2), null);
+                return null;
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+
+        globals.define(REDUCE, new LoxCallable() {
+            public int arity() {
+                return 4;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                LoxCallable combine = callable(arguments.get(3), 2, "The combining function must take 2 arguments.");
+                return run(interpreter, arguments.get(0), arguments.get(1), arguments.get(2), combine);
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+    }
+
+    private static LoxCallable callable(Object value, int arity, String message) {
+        if (!(value instanceof LoxCallable) || ((LoxCallable) value).arity() != arity)
+            throw new RuntimeError(null, message);
+        return (LoxCallable) value;
+    }
+
+    private static long index(Object value) {
+        if (!(value instanceof Double) || (double) value % 1 != 0)
+            throw new RuntimeError(null, "Loop bounds must be integers.");
+        return (long) (double) value;
+    }
+
+    /**
+     * Runs the body for every index from start up to but not including end.
+     *
+     * @param combine folds the values of the body, null to drop them
+     * @return the folded values, nil for an empty range or without combine
+     */
+    private static Object run(Interpreter interpreter, Object start, Object end, Object body, LoxCallable combine) {
+        long from = index(start);
+        long to = index(end);
+        LoxCallable function = callable(body, 1, "The loop body must take 1 argument.");
+        if (from >= to)
+            return null;
+
+        // forked on the calling thread, forking the template writes nothing
+        Interpreter template = interpreter.fork();
+        long pieces = (long) ForkJoinPool.getCommonPoolParallelism() * PIECES_PER_WORKER;
+        long threshold = Math.max(1, (to - from) / pieces);
+        return ForkJoinPool.commonPool().invoke(new Piece(template, function, combine, from, to, threshold));
+    }
+
+    /**
+     * A part of the range, split in halves while it's above the threshold.
+     */
+    // pieces are never serialized, they hold interpreters
+    @SuppressWarnings("serial")
+    private static final class Piece extends RecursiveTask<Object> {
+        private final Interpreter template;
+        private final LoxCallable body;
+        private final LoxCallable combine;
+        private final long from;
+        private final long to;
+        private final long threshold;
+        // forked from the template when the piece first calls a function
+        private Interpreter interpreter = null;
+
+        Piece(Interpreter template, LoxCallable body, LoxCallable combine, long from, long to, long threshold) {
+            this.template = template;
+            this.body = body;
+            this.combine = combine;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected Object compute() {
+            if (to - from > threshold) {
+                long middle = from + (to - from) / 2;
+                Piece left = new Piece(template, body, combine, from, middle, threshold);
+                Piece right = new Piece(template, body, combine, middle, to, threshold);
+                right.fork();
+                Object value = left.compute();
+                Object rightValue = right.join();
+                return combine == null ? null : call(left.interpreter(), combine, value, rightValue);
+            }
+
+            Interpreter interpreter = interpreter();
+            Object value = null;
+            for (long i = from; i < to; i++) {
+                Object result = call(interpreter, body, (double) i);
+                if (combine != null)
+                    value = i == from ? result : call(interpreter, combine, value, result);
+            }
+            return value;
+        }
+
+        private Interpreter interpreter() {
+            if (interpreter == null) {
+                interpreter = template.fork();
+                interpreter.globals.readOnly("Can't assign a global variable in a parallel loop body, return the value instead.");
+            }
+            return interpreter;
+        }
+
+        private static Object call(Interpreter interpreter, LoxCallable function, Object... arguments) {
+            List<Object> list = new ArrayList<>(arguments.length);
+            for (Object argument : arguments) {
+                list.add(argument);
+            }
+            return interpreter.callFunction(function, null, list);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package mylox;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is a sampling profiler for Lox code. The interpreter pushes every
+ * callable it calls on a shadow stack, and a background thread looks at that
+ * stack at a fixed interval and counts how often it saw every stack. The
+ * counts are written in the collapsed stack format, one stack per line with
+ * the frames separated by semicolons, that flame graph tools render.
+ *
+ * The interpreter thread only stores a reference and moves the depth on every
+ * call, naming the frames and counting the stacks is left to the sampler. The
+ * sampler reads the stack without stopping the interpreter, so a sample taken
+ * in the middle of a call or a return may mix two neighbouring stacks, which
+ * doesn't matter with enough samples.
+ */
+class LoxProfiler {
+
+    static final long DEFAULT_INTERVAL_MICROS = 1000;
+    // root of every stack, samples of top level code have no other frame
+    private static final String ROOT = "<script>";
+
+    private static final VarHandle DEPTH;
+
+    static {
+        try {
+            DEPTH = MethodHandles.lookup().findVarHandle(LoxProfiler.class, "depth", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final long intervalNanos;
+
+    // the shadow stack of callables, written by the interpreter thread only.
+    // An Object array skips the store check an array of an interface needs
+    private Object[] frames = new Object[64];
+    // stored with release semantics after the frame below it, so the sampler
+    // sees every frame up to the depth it reads. Unlike a volatile store that
+    // costs no fence on the interpreter thread
+    private int depth = 0;
+
+    // samples per collapsed stack, only touched by the sampler thread
+    private final Map<String, Long> samples = new HashMap<>();
+    private long sampleCount = 0;
+
+    private volatile boolean running = false;
+    private Thread sampler;
+
+    LoxProfiler(long intervalMicros) {
+        this.intervalNanos = TimeUnit.MICROSECONDS.toNanos(intervalMicros);
+    }
+
+    /**
+     * Pushes a frame, called by the interpreter before it calls a callable.
+     */
+    void enter(LoxCallable callable) {
+        int top = depth;
+        if (top == frames.length)
+            frames = Arrays.copyOf(frames, top * 2);
+        frames[top] = callable;
+        DEPTH.setRelease(this, top + 1);
+    }
+
+    /**
+     * Pops the frame pushed last, called by the interpreter when a call
+     * returns or throws.
+     */
+    void exit() {
+        int top = depth - 1;
+        DEPTH.setRelease(this, top);
+        // don't keep the closure of a finished call alive
+        frames[top] = null;
+    }
+
+    /**
+     * Starts the sampler thread.
+     */
+    void start() {
+        running = true;
+        sampler = new Thread(this::sample, "lox-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    /**
+     * Stops the sampler thread and waits for it to finish.
+     */
+    void stop() {
+        running = false;
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sample() {
+        List<String> names = new ArrayList<>();
+        StringBuilder stack = new StringBuilder();
+
+        while (running) {
+            LockSupport.parkNanos(intervalNanos);
+
+            int top = (int) DEPTH.getAcquire(this);
+            Object[] current = frames;
+            names.clear();
+            for (int i = 0; i < top && i < current.length; i++) {
+                Object callable = current[i];
+                // popped since the depth was read
+                if (callable == null)
+                    break;
+                names.add(((LoxCallable) callable).frameName());
+            }
+
+            stack.setLength(0);
+            stack.append(ROOT);
+            for (String name : names) {
+                stack.append(';').append(name);
+            }
+            samples.merge(stack.toString(), 1L, Long::sum);
+            sampleCount++;
+        }
+    }
+
+    long sampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Writes the counted stacks in the collapsed stack format, the stacks
+     * sampled most often first. Must only be called after stop.
+     *
+     * @param path the file to write to
+     */
+    void write(Path path) throws IOException {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(samples.entrySet());
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, Long> entry : entries) {
+                out.println(entry.getKey() + " " + entry.getValue());
+            }
+        }
+    }
+}
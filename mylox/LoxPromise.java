@@ -0,0 +1,190 @@
+package mylox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class is the result of an asynchronous native, a value that arrives
+ * later. A promise is fulfilled with a value or rejected with a runtime error
+ * once, and every promise belongs to the event loop of one interpreter: it is
+ * settled and its callbacks run on the thread of that interpreter, never
+ * concurrently with the script.
+ *
+ * then(promise, fn) and onError(promise, fn) run fn with the value or the
+ * error message once the promise is settled and return a promise of what fn
+ * returns, a promise returned by fn is waited for. A callback raising an error
+ * rejects the promise then or onError returned, a rejection nobody handles is
+ * dropped like the error of a task nobody awaits. await(promise) runs the
+ * event loop until the promise is settled.
+ */
+final class LoxPromise {
+
+    private static final int PENDING = 0;
+    private static final int FULFILLED = 1;
+    private static final int REJECTED = 2;
+
+    private final LoxEventLoop loop;
+    private int state = PENDING;
+    // the value, or the RuntimeError once rejected
+    private Object value = null;
+    // run by the loop once the promise is settled
+    private List<Runnable> reactions = null;
+
+    LoxPromise(LoxEventLoop loop) {
+        this.loop = loop;
+    }
+
+    /**
+     * Defines the natives then and onError.
+     *
+     * @param globals the global environment of an interpreter
+     */
+    static void defineNatives(Environment globals) {
+        globals.define("then", new LoxCallable() {
+            public int arity() {
+                return 2;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return promise(interpreter, arguments.get(0)).then(callable(arguments.get(1)), null);
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+
+        globals.define("onError", new LoxCallable() {
+            public int arity() {
+                return 2;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return promise(interpreter, arguments.get(0)).then(null, callable(arguments.get(1)));
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+    }
+
+    private static LoxPromise promise(Interpreter interpreter, Object value) {
+        if (!(value instanceof LoxPromise))
+            throw new RuntimeError(null, "Expected a promise.");
+        LoxPromise promise = (LoxPromise) value;
+        promise.checkOwner(interpreter);
+        return promise;
+    }
+
+    // the loop of a promise isn't thread safe, only its own interpreter
+    // may wait on it or add callbacks
+    private void checkOwner(Interpreter interpreter) {
+        if (!loop.belongsTo(interpreter))
+            throw new RuntimeError(null, "A promise can only be used by the task that created it.");
+    }
+
+    private static LoxCallable callable(Object value) {
+        if (!(value instanceof LoxCallable) || ((LoxCallable) value).arity() != 1)
+            throw new RuntimeError(null, "Expected a function of 1 argument.");
+        return (LoxCallable) value;
+    }
+
+    /**
+     * Fulfills the promise, or waits for a promise it's resolved with. Does
+     * nothing if the promise is already settled.
+     */
+    void resolve(Object value) {
+        if (state != PENDING)
+            return;
+        if (value instanceof LoxPromise) {
+            LoxPromise other = (LoxPromise) value;
+            other.whenSettled(() -> {
+                if (other.state == FULFILLED) {
+                    resolve(other.value);
+                } else {
+                    reject((RuntimeError) other.value);
+                }
+            });
+            return;
+        }
+        settle(FULFILLED, value);
+    }
+
+    void reject(RuntimeError error) {
+        if (state == PENDING)
+            settle(REJECTED, error);
+    }
+
+    private void settle(int state, Object value) {
+        this.state = state;
+        this.value = value;
+        if (reactions != null) {
+            for (Runnable reaction : reactions) {
+                loop.schedule(reaction);
+            }
+            reactions = null;
+        }
+    }
+
+    private void whenSettled(Runnable reaction) {
+        if (state != PENDING) {
+            loop.schedule(reaction);
+            return;
+        }
+        if (reactions == null)
+            reactions = new ArrayList<>(1);
+        reactions.add(reaction);
+    }
+
+    /**
+     * @param onFulfilled called with the value, or null to pass it on
+     * @param onRejected  called with the error message, or null to pass the
+     *                    error on
+     * @return a promise of what the callback returned
+     */
+    LoxPromise then(LoxCallable onFulfilled, LoxCallable onRejected) {
+        LoxPromise next = new LoxPromise(loop);
+        whenSettled(() -> {
+            LoxCallable callback = state == FULFILLED ? onFulfilled : onRejected;
+            if (callback == null) {
+                if (state == FULFILLED) {
+                    next.resolve(value);
+                } else {
+                    next.reject((RuntimeError) value);
+                }
+                return;
+            }
+
+            Object argument = state == FULFILLED ? value : ((RuntimeError) value).getMessage();
+            try {
+                next.resolve(loop.call(callback, argument));
+            } catch (RuntimeError error) {
+                next.reject(error);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Runs the event loop until the promise is settled.
+     *
+     * @param interpreter the interpreter that awaits, the one of the loop
+     * @return the value
+     */
+    Object await(Interpreter interpreter) {
+        checkOwner(interpreter);
+        while (state == PENDING) {
+            if (!loop.runOnce())
+                throw new RuntimeError(null, "Awaited a promise that can never be settled.");
+        }
+        if (state == REJECTED)
+            throw (RuntimeError) value;
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "<promise>";
+    }
+}
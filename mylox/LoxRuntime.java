@@ -0,0 +1,251 @@
+package mylox;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.regex.Pattern;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class keeps the live counters behind --jmx. Interpreters attached to it
+ * count into LongAdders, which every interpreter thread updates in a cell of
+ * its own, so reading the counters over JMX never makes the interpreters wait.
+ *
+ * Interpreters that aren't attached have a null runtime and skip the counting.
+ * There is one runtime per process. It only holds the interpreters weakly, for
+ * the globals count, so an engine attached for one request can still be
+ * collected when the request is done.
+ */
+final class LoxRuntime implements LoxRuntimeMXBean {
+
+    static final String OBJECT_NAME = "mylox:type=LoxRuntime";
+
+    private static LoxRuntime registered = null;
+
+    // kinds of runtime errors counted on their own, the others count as one
+    static final int MAX_ERROR_KINDS = 64;
+    static final String OTHER_ERRORS = "(other)";
+    // quoted names and strings, and numbers
+    private static final Pattern QUOTED = Pattern.compile("'[^']*'");
+    private static final Pattern NUMBER = Pattern.compile("\\d+(\\.\\d+)?");
+
+    private final LongAdder scripts = new LongAdder();
+    private final LongAdder interpretNanos = new LongAdder();
+    // incremented when a call starts and decremented when it ends
+    private final LongAdder callDepth = new LongAdder();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder instances = new LongAdder();
+    private final LongAdder closures = new LongAdder();
+    // method lookups of the arena engine answered by an inline cache
+    private final LongAdder inlineCacheHits = new LongAdder();
+    private final LongAdder inlineCacheMisses = new LongAdder();
+    // by kind, the message without the names and values in it, so a script
+    // can't make the map grow without bound
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    // guarded by itself
+    private final Set<Interpreter> interpreters = Collections.newSetFromMap(new WeakHashMap<>());
+
+    private LoxRuntime() {
+    }
+
+    /**
+     * Registers the runtime with the platform MBean server, the first call
+     * creates it.
+     *
+     * @return the runtime of the process
+     */
+    static synchronized LoxRuntime register() {
+        if (registered == null) {
+            LoxRuntime runtime = new LoxRuntime();
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.registerMBean(runtime, new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                throw new IllegalStateException("Could not register " + OBJECT_NAME, e);
+            }
+            registered = runtime;
+        }
+        return registered;
+    }
+
+    /**
+     * Makes the interpreter count into this runtime.
+     */
+    void attach(Interpreter interpreter) {
+        interpreter.runtime = this;
+        synchronized (interpreters) {
+            interpreters.add(interpreter);
+        }
+    }
+
+    /**
+     * Stops the interpreter from counting into this runtime. The counts it
+     * added so far stay.
+     */
+    void detach(Interpreter interpreter) {
+        interpreter.runtime = null;
+        synchronized (interpreters) {
+            interpreters.remove(interpreter);
+        }
+    }
+
+    void scriptExecuted(long nanos) {
+        scripts.increment();
+        interpretNanos.add(nanos);
+    }
+
+    void callStarted() {
+        calls.increment();
+        callDepth.increment();
+    }
+
+    void callEnded() {
+        callDepth.decrement();
+    }
+
+    void instanceCreated() {
+        instances.increment();
+    }
+
+    void inlineCacheHit() {
+        inlineCacheHits.increment();
+    }
+
+    void inlineCacheMiss() {
+        inlineCacheMisses.increment();
+    }
+
+    void closureCreated() {
+        closures.increment();
+    }
+
+    void runtimeError(RuntimeError error) {
+        String kind = kindOf(error.getMessage());
+        LongAdder count = errors.get(kind);
+        if (count == null) {
+            // two threads may both pass the check, the cap is approximate
+            if (errors.size() >= MAX_ERROR_KINDS)
+                kind = OTHER_ERRORS;
+            count = errors.computeIfAbsent(kind, key -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    /**
+     * The kind of a runtime error, its message with the names and values in
+     * it replaced: "Undefined variable 'x'." is "Undefined variable '_'.",
+     * numbers become N, and what follows a colon, like the path and the cause
+     * in "Could not read f: denied", is dropped.
+     */
+    static String kindOf(String message) {
+        int colon = message.indexOf(": ");
+        if (colon >= 0)
+            message = message.substring(0, colon) + ".";
+        message = QUOTED.matcher(message).replaceAll("'_'");
+        return NUMBER.matcher(message).replaceAll("N");
+    }
+
+    @Override
+    public long getScriptsExecuted() {
+        return scripts.sum();
+    }
+
+    @Override
+    public long getInterpretTimeNanos() {
+        return interpretNanos.sum();
+    }
+
+    @Override
+    public long getActiveCallDepth() {
+        return callDepth.sum();
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getRuntimeErrorCount() {
+        long count = 0;
+        for (LongAdder error : errors.values()) {
+            count += error.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public Map<String, Long> getRuntimeErrors() {
+        Map<String, Long> counts = new TreeMap<>();
+        errors.forEach((message, count) -> counts.put(message, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public int getGlobalsCount() {
+        List<Interpreter> attached;
+        synchronized (interpreters) {
+            attached = new ArrayList<>(interpreters);
+        }
+        // read without a lock while the interpreters run, so it may be stale
+        int count = 0;
+        for (Interpreter interpreter : attached) {
+            count += interpreter.globals.variables().size();
+        }
+        return count;
+    }
+
+    @Override
+    public long getModuleCacheHits() {
+        return ModuleLoader.cacheHits();
+    }
+
+    @Override
+    public long getModuleCacheMisses() {
+        return ModuleLoader.cacheMisses();
+    }
+
+    @Override
+    public double getModuleCacheHitRate() {
+        long hits = ModuleLoader.cacheHits();
+        long loads = hits + ModuleLoader.cacheMisses();
+        return loads == 0 ? 0.0 : (double) hits / loads;
+    }
+
+    @Override
+    public long getInlineCacheHits() {
+        return inlineCacheHits.sum();
+    }
+
+    @Override
+    public long getInlineCacheMisses() {
+        return inlineCacheMisses.sum();
+    }
+
+    @Override
+    public double getInlineCacheHitRate() {
+        long hits = inlineCacheHits.sum();
+        long lookups = hits + inlineCacheMisses.sum();
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    @Override
+    public long getInstancesCreated() {
+        return instances.sum();
+    }
+
+    @Override
+    public long getClosuresCreated() {
+        return closures.sum();
+    }
+}
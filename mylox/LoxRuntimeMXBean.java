@@ -0,0 +1,54 @@
+package mylox;
+
+import java.util.Map;
+
+/**
+ * The management interface of the interpreter, registered as
+ * mylox:type=LoxRuntime in the platform MBean server. The counters cover every
+ * interpreter attached to it since it was registered. JMX only exposes public
+ * interfaces, which is why this one is public.
+ */
+public interface LoxRuntimeMXBean {
+
+    // scripts interpreted, every line typed at the prompt is one
+    long getScriptsExecuted();
+
+    // nanoseconds spent interpreting, without scanning, parsing and resolving
+    long getInterpretTimeNanos();
+
+    // calls of functions, methods and classes in progress
+    long getActiveCallDepth();
+
+    long getCalls();
+
+    long getRuntimeErrorCount();
+
+    // runtime errors by kind, see LoxRuntime.kindOf, at most
+    // LoxRuntime.MAX_ERROR_KINDS of them and the rest as "(other)"
+    Map<String, Long> getRuntimeErrors();
+
+    // variables defined in the global environments, natives included
+    int getGlobalsCount();
+
+    // imports answered by the parsed module cache and imports that parsed
+    long getModuleCacheHits();
+
+    long getModuleCacheMisses();
+
+    // hits per import, 0 before the first import
+    double getModuleCacheHitRate();
+
+    // method lookups the inline caches of the arena engine answered and ones
+    // that had to search the class, specialized by --type-profile
+    long getInlineCacheHits();
+
+    long getInlineCacheMisses();
+
+    // hits per lookup, 0 before the first lookup
+    double getInlineCacheHitRate();
+
+    long getInstancesCreated();
+
+    // function declarations and function literals that ran
+    long getClosuresCreated();
+}
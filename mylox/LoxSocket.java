@@ -0,0 +1,423 @@
+package mylox;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * This class is a loopback TCP connection on the event loop, with the server
+ * that accepts them as a nested class. Both are non-blocking channels
+ * registered with the selector of the loop, a connection is only interested
+ * in the operations a promise waits for, so idle connections cost the
+ * selector nothing.
+ *
+ * Only one read can wait at a time, it gets the text that arrived next, nil
+ * once the other side closed the connection. Writes are queued and written
+ * as the socket takes them, the promise of a write is fulfilled when all of
+ * its text was written, and closing a connection writes what is queued
+ * first. Sockets only bind to and connect to the loopback address.
+ */
+final class LoxSocket implements LoxEventLoop.Selectable {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    // connections the kernel queues until the loop accepts them, the
+    // default of 50 drops connections of a burst of clients
+    private static final int BACKLOG = 4096;
+
+    private final LoxEventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    // what was read and not decoded yet, the bytes of a character split
+    // between two reads wait here for the rest of it
+    private final ByteBuffer received = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private LoxPromise connecting = null;
+    private LoxPromise reading = null;
+    private final ArrayDeque<ByteBuffer> writes = new ArrayDeque<>();
+    private final ArrayDeque<LoxPromise> written = new ArrayDeque<>();
+    // set by close while writes are queued, it closes once they're written
+    private boolean closing = false;
+    private boolean closed = false;
+
+    private LoxSocket(LoxEventLoop loop, SocketChannel channel) throws IOException {
+        this.loop = loop;
+        this.channel = channel;
+        channel.configureBlocking(false);
+        this.key = channel.register(loop.selector(), 0, this);
+    }
+
+    /**
+     * Defines the natives listen, connect, read, write and localPort. close
+     * closes sockets too.
+     *
+     * @param globals the global environment of an interpreter
+     */
+    static void defineNatives(Environment globals) {
+        globals.define("listen", new LoxCallable() {
+            public int arity() {
+                return 2;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                if (!(arguments.get(1) instanceof LoxCallable) || ((LoxCallable) arguments.get(1)).arity() != 1)
+                    throw new RuntimeError(null, "The connection handler must take 1 argument.");
+                return new Server(interpreter.eventLoop(), port(arguments.get(0)), (LoxCallable) arguments.get(1));
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+
+        globals.define("connect", new LoxCallable() {
+            public int arity() {
+                return 1;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return connect(interpreter.eventLoop(), port(arguments.get(0)));
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+
+        globals.define("read", new LoxCallable() {
+            public int arity() {
+                return 1;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return socket(arguments.get(0)).read();
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+
+        globals.define("write", new LoxCallable() {
+            public int arity() {
+                return 2;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                if (!(arguments.get(1) instanceof String))
+                    throw new RuntimeError(null, "Can only write strings to a connection.");
+                return socket(arguments.get(0)).write((String) arguments.get(1));
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+
+        globals.define("localPort", new LoxCallable() {
+            public int arity() {
+                return 1;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                if (!(arguments.get(0) instanceof Server))
+                    throw new RuntimeError(null, "Expected a server.");
+                return (double) ((Server) arguments.get(0)).port();
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+    }
+
+    private static int port(Object value) {
+        if (!(value instanceof Double) || (double) value % 1 != 0 || (double) value < 0 || (double) value > 65535)
+            throw new RuntimeError(null, "Expected a port number.");
+        return (int) (double) value;
+    }
+
+    private static LoxSocket socket(Object value) {
+        if (!(value instanceof LoxSocket))
+            throw new RuntimeError(null, "Expected a connection.");
+        return (LoxSocket) value;
+    }
+
+    /**
+     * Closes a connection or a server, for the native close.
+     *
+     * @return false if the value is neither
+     */
+    static boolean close(Object value) {
+        if (value instanceof LoxSocket) {
+            LoxSocket socket = (LoxSocket) value;
+            if (socket.writes.isEmpty()) {
+                socket.close();
+            } else {
+                socket.closing = true;
+            }
+            return true;
+        }
+        if (value instanceof Server) {
+            ((Server) value).close();
+            return true;
+        }
+        return false;
+    }
+
+    private static LoxPromise connect(LoxEventLoop loop, int port) {
+        LoxPromise promise = new LoxPromise(loop);
+        LoxSocket socket = null;
+        try {
+            socket = new LoxSocket(loop, SocketChannel.open());
+            loop.begin();
+            socket.connecting = promise;
+            if (socket.channel.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port))) {
+                socket.connected();
+            } else {
+                socket.updateInterest();
+            }
+        } catch (IOException e) {
+            if (socket != null) {
+                socket.fail(e.getMessage());
+            } else {
+                promise.reject(new RuntimeError(null, "Could not connect to port " + port + ": " + e.getMessage()));
+            }
+        }
+        return promise;
+    }
+
+    private void connected() {
+        LoxPromise promise = connecting;
+        connecting = null;
+        loop.end();
+        updateInterest();
+        promise.resolve(this);
+    }
+
+    private LoxPromise read() {
+        LoxPromise promise = new LoxPromise(loop);
+        if (closed) {
+            promise.resolve(null);
+        } else if (reading != null) {
+            throw new RuntimeError(null, "A read is already waiting on this connection.");
+        } else {
+            loop.begin();
+            reading = promise;
+            updateInterest();
+        }
+        return promise;
+    }
+
+    private LoxPromise write(String text) {
+        if (closed || closing)
+            throw new RuntimeError(null, "Can't write to a closed connection.");
+
+        LoxPromise promise = new LoxPromise(loop);
+        loop.begin();
+        writes.add(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+        written.add(promise);
+        updateInterest();
+        return promise;
+    }
+
+    @Override
+    public void ready(SelectionKey key) {
+        try {
+            if (key.isConnectable() && channel.finishConnect())
+                connected();
+            if (key.isValid() && key.isReadable() && reading != null)
+                readAvailable();
+            if (key.isValid() && key.isWritable())
+                writeQueued();
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    private void readAvailable() throws IOException {
+        int count = channel.read(received);
+        if (count == 0)
+            return;
+
+        LoxPromise promise = reading;
+        if (count < 0) {
+            reading = null;
+            loop.end();
+            // the other side is done, reads from now on get nil too
+            close();
+            promise.resolve(null);
+            return;
+        }
+
+        received.flip();
+        CharBuffer text = CharBuffer.allocate(received.remaining());
+        decoder.decode(received, text, false);
+        received.compact();
+        // only the start of a character arrived, the read waits for the rest
+        if (text.position() == 0)
+            return;
+
+        reading = null;
+        loop.end();
+        text.flip();
+        updateInterest();
+        promise.resolve(text.toString());
+    }
+
+    private void writeQueued() throws IOException {
+        while (!writes.isEmpty()) {
+            ByteBuffer bytes = writes.peek();
+            channel.write(bytes);
+            if (bytes.hasRemaining())
+                break;
+            writes.poll();
+            loop.end();
+            written.poll().resolve(null);
+        }
+        if (closing && writes.isEmpty()) {
+            close();
+            return;
+        }
+        updateInterest();
+    }
+
+    private void updateInterest() {
+        if (closed)
+            return;
+        int ops = 0;
+        if (connecting != null)
+            ops |= SelectionKey.OP_CONNECT;
+        if (reading != null)
+            ops |= SelectionKey.OP_READ;
+        if (!writes.isEmpty())
+            ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+
+    // rejects everything that waits on the connection and closes it
+    private void fail(String message) {
+        RuntimeError error = new RuntimeError(null, "Connection failed: " + message);
+        if (connecting != null) {
+            loop.end();
+            connecting.reject(error);
+            connecting = null;
+        }
+        if (reading != null) {
+            loop.end();
+            reading.reject(error);
+            reading = null;
+        }
+        while (!written.isEmpty()) {
+            loop.end();
+            written.poll().reject(error);
+        }
+        writes.clear();
+        close();
+    }
+
+    private void close() {
+        if (closed)
+            return;
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing is waiting on it anymore
+        }
+        // a read waiting when this side closes gets nil, writes fail
+        if (reading != null) {
+            loop.end();
+            reading.resolve(null);
+            reading = null;
+        }
+        RuntimeError error = new RuntimeError(null, "Connection closed.");
+        while (!written.isEmpty()) {
+            loop.end();
+            written.poll().reject(error);
+        }
+        writes.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "<connection>";
+    }
+
+    /**
+     * A listening socket that calls its handler with every connection it
+     * accepts. It keeps the loop running until it's closed.
+     */
+    static final class Server implements LoxEventLoop.Selectable {
+        private final LoxEventLoop loop;
+        private final ServerSocketChannel channel;
+        private final LoxCallable handler;
+        private boolean closed = false;
+
+        Server(LoxEventLoop loop, int port, LoxCallable handler) {
+            this.loop = loop;
+            this.handler = handler;
+            ServerSocketChannel opened = null;
+            try {
+                opened = ServerSocketChannel.open();
+                opened.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+                opened.configureBlocking(false);
+                opened.register(loop.selector(), SelectionKey.OP_ACCEPT, this);
+            } catch (IOException e) {
+                // a port that is taken mustn't leak the channel
+                if (opened != null)
+                    closeQuietly(opened);
+                throw new RuntimeError(null, "Could not listen on port " + port + ": " + e.getMessage());
+            }
+            channel = opened;
+            loop.begin();
+        }
+
+        int port() {
+            return channel.socket().getLocalPort();
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            SocketChannel accepted;
+            while ((accepted = channel.accept()) != null) {
+                LoxSocket connection = new LoxSocket(loop, accepted);
+                loop.schedule(() -> loop.call(handler, connection));
+            }
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            loop.end();
+            closeQuietly(channel);
+        }
+
+        private static void closeQuietly(ServerSocketChannel channel) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // the port is released either way
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "<server " + port() + ">";
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package mylox;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class is the handle the native spawn returns for a Lox callable it runs
+ * concurrently, await joins it. Tasks run on virtual threads where the JVM has
+ * them, so a script can start thousands of tasks that mostly wait on slow
+ * natives. Older JVMs run every task on a daemon thread of a cached pool.
+ *
+ * Every task gets an interpreter of its own, forked from the one that spawned
+ * it, so it has its own frames. The globals are forked, see Globals: a task
+ * takes a global from the interpreter that spawned it the first time it uses
+ * it, and what it defines or assigns globally stays its own. Closures are
+ * not copied, a local variable captured by the spawned function is shared
+ * with the code that spawned it, so the Resolver rejects assignments to
+ * captured locals from the function passed to spawn, and tasks hand their
+ * results back through await. A task that fails throws its runtime error
+ * again in every await on it, a task nobody awaits fails silently. Tasks
+ * still running when the program ends are stopped.
+ */
+final class LoxTask {
+
+    // the native the Resolver checks the functions of
+    static final String SPAWN = "spawn";
+
+    private final Future<Object> future;
+
+    LoxTask(Future<Object> future) {
+        this.future = future;
+    }
+
+    /**
+     * Defines the natives spawn and await.
+     *
+     * @param globals the global environment of an interpreter
+     */
+    static void defineNatives(Environment globals) {
+        globals.define(SPAWN, new LoxCallable() {
+            public int arity() {
+                return 1;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return spawn(interpreter, arguments.get(0));
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+
+        globals.define("await", new LoxCallable() {
+            public int arity() {
+                return 1;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                if (arguments.get(0) instanceof LoxPromise)
+                    return ((LoxPromise) arguments.get(0)).await(interpreter);
+                if (!(arguments.get(0) instanceof LoxTask))
+                    throw new RuntimeError(null, "Can only await a task or a promise.");
+                return ((LoxTask) arguments.get(0)).join();
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+    }
+
+    private static LoxTask spawn(Interpreter interpreter, Object callee) {
+        if (!(callee instanceof LoxCallable) || ((LoxCallable) callee).arity() != 0)
+            throw new RuntimeError(null, "Can only spawn functions without parameters.");
+
+        // forked on the spawning thread, before the task can run
+        Interpreter task = interpreter.fork();
+        return new LoxTask(Tasks.executor.submit(() -> {
+            Object value = task.callFunction(callee, null, new ArrayList<>());
+            // callbacks of the asynchronous natives the task called
+            task.runEventLoop();
+            return value;
+        }));
+    }
+
+    /**
+     * Waits for the task to end.
+     *
+     * @return the return value of the task
+     */
+    Object join() {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeError)
+                throw (RuntimeError) cause;
+            throw new RuntimeError(null, "Task failed with " + cause + ".");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeError(null, "Interrupted while awaiting a task.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<task>";
+    }
+
+    // created on the first spawn, so scripts that don't spawn start no threads
+    private static final class Tasks {
+        static final ExecutorService executor = newExecutor();
+
+        private static ExecutorService newExecutor() {
+            try {
+                // looked up by name, it only exists from JDK 21 on
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+                return Executors.newCachedThreadPool(runnable -> {
+                    Thread thread = new Thread(runnable, "lox-task");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package mylox;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class loads the modules named by import declarations. Imported files
+ * are scanned and parsed in parallel on a ForkJoinPool: as soon as a module is
+ * parsed the loading of its own imports is started, so the whole import graph
+ * is read concurrently while the program waits for the first module.
+ *
+ * Linking then walks the graph depth first on the calling thread and places
+ * the statements of every module before the program that imports it, so the
+ * resolver and the interpreter see the modules in dependency order. Every
+ * module is linked only once per loader, a second import of it does nothing.
+ *
+ * Parsed modules are cached for the whole process, a module shared by several
+ * programs is scanned and parsed only once.
+ */
+class ModuleLoader {
+
+    // parsed modules by normalized absolute path
+    private static final Map<Path, ForkJoinTask<Module>> cache = new ConcurrentHashMap<>();
+    private static final ForkJoinPool pool = ForkJoinPool.commonPool();
+    // loads answered from the cache and loads that had to parse, for JMX
+    private static final LongAdder cacheHits = new LongAdder();
+    private static final LongAdder cacheMisses = new LongAdder();
+
+    // modules already placed in the program of this loader
+    private final Set<Path> linked = new HashSet<>();
+    // the module every top level statement placed by this loader comes from
+    private final Map<Stmt, Path> origins = new IdentityHashMap<>();
+
+    ModuleLoader() {
+    }
+
+    /**
+     * Creates a loader that already linked the modules the given one did, for
+     * an interpreter forked from one that ran its program.
+     *
+     * @param loader the loader to copy
+     */
+    ModuleLoader(ModuleLoader loader) {
+        linked.addAll(loader.linked);
+        origins.putAll(loader.origins);
+    }
+
+    /**
+     * A parsed source file and the errors found while scanning and parsing it.
+     */
+    static final class Module {
+        final Path path;
+        final List<Stmt> statements;
+        final List<Stmt.Import> imports;
+        // formatted error messages, the same format Lox prints
+        final List<String> errors;
+        // set instead of the others if the file couldn't be read
+        final IOException failure;
+
+        Module(Path path, List<Stmt> statements, List<String> errors) {
+            this.path = path;
+            this.statements = statements;
+            this.imports = importsOf(statements);
+            this.errors = errors;
+            this.failure = null;
+        }
+
+        Module(Path path, IOException failure) {
+            this.path = path;
+            this.statements = new ArrayList<>();
+            this.imports = new ArrayList<>();
+            this.errors = new ArrayList<>();
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * Places the modules imported by the statements, and the modules they
+     * import in turn, in front of the statements. Errors in the modules are
+     * reported through Lox.moduleError.
+     *
+     * @param statements the top level statements of the program
+     * @param directory  the directory import paths of the program are relative to
+     * @param source     the path of the program, null if it doesn't come from a file
+     * @return the statements of the program with the modules in front
+     */
+    List<Stmt> link(List<Stmt> statements, Path directory, Path source) {
+        List<Stmt.Import> imports = importsOf(statements);
+        if (imports.isEmpty())
+            return statements;
+
+        // start every import before waiting on the first one
+        for (Stmt.Import declaration : imports) {
+            load(resolve(directory, declaration));
+        }
+
+        Set<Path> visiting = new HashSet<>();
+        if (source != null)
+            visiting.add(normalize(source));
+
+        List<Stmt> program = new ArrayList<>();
+        for (Stmt.Import declaration : imports) {
+            link(declaration, directory, null, program, visiting);
+        }
+        program.addAll(statements);
+        return program;
+    }
+
+    private void link(Stmt.Import declaration, Path directory, Module importer, List<Stmt> program,
+            Set<Path> visiting) {
+        Path path = resolve(directory, declaration);
+        if (linked.contains(path))
+            return;
+
+        if (!visiting.add(path)) {
+            error(importer, declaration.path, "Import cycle through module " + declaration.path.lexeme + ".");
+            return;
+        }
+
+        Module module = load(path).join();
+        if (module.failure != null) {
+            error(importer, declaration.path, "Can't read module " + declaration.path.lexeme + ".");
+            // don't keep the failure, the file may exist by the next import
+            cache.remove(path);
+            visiting.remove(path);
+            return;
+        }
+
+        for (Stmt.Import nested : module.imports) {
+            link(nested, path.getParent(), module, program, visiting);
+        }
+        visiting.remove(path);
+
+        if (!module.errors.isEmpty()) {
+            for (String error : module.errors) {
+                Lox.moduleError(error);
+            }
+            cache.remove(path);
+            return;
+        }
+
+        linked.add(path);
+        program.addAll(module.statements);
+        for (Stmt statement : module.statements) {
+            origins.put(statement, path);
+        }
+    }
+
+    /**
+     * Finds the module a top level statement linked by this loader comes from.
+     *
+     * @param statement a top level statement returned by link
+     * @return the path of the module, null if the statement isn't from one
+     */
+    Path originOf(Stmt statement) {
+        return origins.get(statement);
+    }
+
+    /**
+     * Starts loading a module unless it's loaded or being loaded already.
+     *
+     * @param path the normalized path of the module
+     * @return the task producing the module
+     */
+    private static ForkJoinTask<Module> load(Path path) {
+        ForkJoinTask<Module> task = cache.get(path);
+        if (task != null) {
+            cacheHits.increment();
+            return task;
+        }
+        cacheMisses.increment();
+        return cache.computeIfAbsent(path, key -> pool.submit(() -> parse(key)));
+    }
+
+    static long cacheHits() {
+        return cacheHits.sum();
+    }
+
+    static long cacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    private static Module parse(Path path) {
+        String source;
+        try {
+            source = new String(Files.readAllBytes(path), Charset.defaultCharset());
+        } catch (IOException e) {
+            return new Module(path, e);
+        }
+
+        // errors are collected per thread, modules are parsed concurrently
+        List<String> errors = new ArrayList<>();
+        String file = display(path);
+        ErrorReporter previousReporter = Lox.reporter.get();
+        Lox.reporter.set((line, token, where, message) ->
+                errors.add("[" + file + ", line " + line + "] Error" + where + ": " + message));
+
+        Module module;
+        try {
+            LoxEvents.Phase phase = new LoxEvents.Phase("scan", file);
+            List<Token> tokens = new Scanner(source).scanTokens();
+            phase.finish();
+
+            phase = new LoxEvents.Phase("parse", file);
+            module = new Module(path, new Parser(tokens).parse(), errors);
+            phase.finish();
+        } finally {
+            Lox.reporter.set(previousReporter);
+        }
+
+        // parse the imports of this module while it waits to be linked
+        for (Stmt.Import declaration : module.imports) {
+            load(resolve(path.getParent(), declaration));
+        }
+        return module;
+    }
+
+    private static List<Stmt.Import> importsOf(List<Stmt> statements) {
+        List<Stmt.Import> imports = new ArrayList<>();
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Import)
+                imports.add((Stmt.Import) statement);
+        }
+        return imports;
+    }
+
+    private static Path resolve(Path directory, Stmt.Import declaration) {
+        return normalize(directory.resolve((String) declaration.path.literal));
+    }
+
+    private static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    private static String display(Path path) {
+        Path workingDirectory = normalize(Paths.get(""));
+        return path.startsWith(workingDirectory) ? workingDirectory.relativize(path).toString() : path.toString();
+    }
+
+    private static void error(Module importer, Token token, String message) {
+        if (importer == null) {
+            Lox.error(token, message);
+        } else {
+            Lox.moduleError("[" + display(importer.path) + ", line " + token.line + "] Error at '"
+                    + token.lexeme + "': " + message);
+        }
+    }
+}
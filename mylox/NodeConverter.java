@@ -0,0 +1,201 @@
+package mylox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class converts the classic visitor based AST produced by the Parser into
+ * the sealed record hierarchy (ExprNode and StmtNode). The scope distances the
+ * resolver recorded for the classic nodes are carried over to the new nodes.
+ */
+class NodeConverter implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+
+    // distances recorded by the resolver for the classic nodes
+    private final Map<Expr, Integer> classicLocals;
+    // distances for the converted nodes, keyed by identity
+    private final Map<ExprNode, Integer> nodeLocals;
+
+    NodeConverter(Map<Expr, Integer> classicLocals, Map<ExprNode, Integer> nodeLocals) {
+        this.classicLocals = classicLocals;
+        this.nodeLocals = nodeLocals;
+    }
+
+    List<StmtNode> convert(List<Stmt> statements) {
+        List<StmtNode> nodes = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            nodes.add(convert(statement));
+        }
+        return nodes;
+    }
+
+    StmtNode convert(Stmt stmt) {
+        // optional statements (else branches, for initializers) stay null
+        if (stmt == null)
+            return null;
+        return stmt.accept(this);
+    }
+
+    ExprNode convert(Expr expr) {
+        if (expr == null)
+            return null;
+        return expr.accept(this);
+    }
+
+    private List<ExprNode> convertAll(List<Expr> exprs) {
+        List<ExprNode> nodes = new ArrayList<>(exprs.size());
+        for (Expr expr : exprs) {
+            nodes.add(convert(expr));
+        }
+        return nodes;
+    }
+
+    // copies the resolved distance of a classic node onto its converted node
+    private <T extends ExprNode> T resolved(Expr classic, T node) {
+        Integer distance = classicLocals.get(classic);
+        if (distance != null) {
+            nodeLocals.put(node, distance);
+        }
+        return node;
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr) {
+        return new ExprNode.Binary(convert(expr.left), expr.operator, convert(expr.right));
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Expr.Call expr) {
+        return new ExprNode.Call(convert(expr.callee), expr.paren, convertAll(expr.arguments));
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+        return new ExprNode.Grouping(convert(expr.expression));
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr) {
+        return new ExprNode.Literal(expr.value);
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Expr.Logical expr) {
+        return new ExprNode.Logical(convert(expr.left), expr.operator, convert(expr.right));
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr) {
+        return new ExprNode.Unary(expr.operator, convert(expr.right));
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Expr.Variable expr) {
+        return resolved(expr, new ExprNode.Variable(expr.name));
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr) {
+        return resolved(expr, new ExprNode.Assign(expr.name, convert(expr.value)));
+    }
+
+    @Override
+    public ExprNode visitAnonFunctionExpr(Expr.AnonFunction expr) {
+        return new ExprNode.AnonFunction(expr.keyword, expr.params, convert(expr.body));
+    }
+
+    @Override
+    public ExprNode visitGetExpr(Expr.Get expr) {
+        return new ExprNode.Get(convert(expr.object), expr.name);
+    }
+
+    @Override
+    public ExprNode visitSetExpr(Expr.Set expr) {
+        return new ExprNode.Set(convert(expr.object), expr.name, convert(expr.value));
+    }
+
+    @Override
+    public ExprNode visitThisExpr(Expr.This expr) {
+        return resolved(expr, new ExprNode.This(expr.keyword));
+    }
+
+    @Override
+    public ExprNode visitSuperExpr(Expr.Super expr) {
+        return resolved(expr, new ExprNode.Super(expr.keyword, expr.method));
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt) {
+        return new StmtNode.If(stmt.keyword, convert(stmt.condition), convert(stmt.thenBranch), convert(stmt.elseBranch));
+    }
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt) {
+        return new StmtNode.Block(convert(stmt.statements));
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt) {
+        return new StmtNode.While(stmt.keyword, convert(stmt.condition), convert(stmt.body));
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+        return new StmtNode.Expression(convert(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitFunctionStmt(Stmt.Function stmt) {
+        return convertFunction(stmt);
+    }
+
+    private StmtNode.Function convertFunction(Stmt.Function stmt) {
+        return new StmtNode.Function(stmt.name, stmt.params, convert(stmt.body));
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Stmt.Print stmt) {
+        return new StmtNode.Print(stmt.keyword, convert(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Stmt.Var stmt) {
+        return new StmtNode.Var(stmt.name, convert(stmt.initializer));
+    }
+
+    @Override
+    public StmtNode visitBreakStmt(Stmt.Break stmt) {
+        return new StmtNode.Break(stmt.breakToken);
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(Stmt.Return stmt) {
+        return new StmtNode.Return(stmt.keyword, convert(stmt.value));
+    }
+
+    @Override
+    public StmtNode visitForStmt(Stmt.For stmt) {
+        return new StmtNode.For(stmt.keyword, convert(stmt.initializer), convert(stmt.condition), convert(stmt.increment),
+                convert(stmt.body));
+    }
+
+    @Override
+    public StmtNode visitClassStmt(Stmt.Class stmt) {
+        ExprNode.Variable superclass = null;
+        if (stmt.superclass != null) {
+            superclass = (ExprNode.Variable) convert(stmt.superclass);
+        }
+
+        List<StmtNode.Function> methods = new ArrayList<>(stmt.methods.size());
+        for (Stmt.Function method : stmt.methods) {
+            methods.add(convertFunction(method));
+        }
+
+        return new StmtNode.Class(stmt.name, superclass, methods);
+    }
+
+    @Override
+    public StmtNode visitImportStmt(Stmt.Import stmt) {
+        return new StmtNode.Import(stmt.keyword, stmt.path);
+    }
+}
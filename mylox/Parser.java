@@ -3,6 +3,7 @@ package mylox;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Consumer;
 import static mylox.TokenType.*;
 
 public class Parser {
@@ -86,6 +87,7 @@ public class Parser {
                 case CLASS:
                 case FUN:
                 case VAR:
+                case IMPORT:
                 case FOR:
                 case IF:
                 case WHILE:
@@ -179,11 +181,33 @@ public class Parser {
 
     List<Stmt> parse() {
         List<Stmt> statements = new ArrayList<>();
+        parse(statements::add);
+
+        return statements;
+    }
+
+    /**
+     * Parses the tokens one top level declaration at a time and hands each
+     * declaration to the sink as soon as it is complete, so callers don't have to
+     * keep the whole program in memory. Declarations with syntax errors are
+     * passed on as null like in the list returned by parse().
+     * 
+     * @param sink the consumer of the top level declarations
+     */
+    void parse(Consumer<Stmt> sink) {
         while (!isAtEnd()) {
-            statements.add(declaration());
+            sink.accept(declaration());
         }
+    }
 
-        return statements;
+    /**
+     * Returns the index of the next token to be parsed. Between two top level
+     * declarations this is the index of the first token of the next one.
+     * 
+     * @return the index of the current token
+     */
+    int position() {
+        return current;
     }
 
     /////////////////////////////////////////////////
@@ -207,6 +231,8 @@ public class Parser {
                 }
             if (match(VAR))
                 return varDeclaration();
+            if (match(IMPORT))
+                return importDeclaration();
 
             return statement();
         } catch (ParseError error) {
@@ -248,6 +274,13 @@ public class Parser {
         return new Stmt.Var(name, initializer);
     }
 
+    private Stmt importDeclaration() {
+        Token keyword = previous();
+        Token path = consume(STRING, "Expect module path string after 'import'.");
+        consume(SEMICOLON, "Expect ';' after import.");
+        return new Stmt.Import(keyword, path);
+    }
+
     /////////////////////////////////////////////////
     //
     // Statements below
@@ -292,6 +325,7 @@ public class Parser {
     }
 
     private Stmt forStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Expect '(' after 'for'.");
 
         // parse initialization
@@ -341,7 +375,7 @@ public class Parser {
         // wrap the body in a while loop with condition expression
         if (condition == null)
             condition = new Expr.Literal(true);
-        forNode = new Stmt.For(initializer, condition, increment, body);
+        forNode = new Stmt.For(keyword, initializer, condition, increment, body);
 
         // the initializer if present wraps the while loop since
         // it is executed once at the beginning of the loop
@@ -353,6 +387,7 @@ public class Parser {
     }
 
     private Stmt ifStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Expect '(' after 'if'.");
         Expr condition = expression();
         consume(RIGHT_PAREN, "Expect ')' after if condition.");
@@ -366,16 +401,17 @@ public class Parser {
             elseBranch = statement();
         }
 
-        return new Stmt.If(condition, thenBranch, elseBranch);
+        return new Stmt.If(keyword, condition, thenBranch, elseBranch);
     }
 
     private Stmt whileStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Expect '(' after 'while'.");
         Expr condition = expression();
         consume(RIGHT_PAREN, "Expect ')' after condition.");
         Stmt body = statement();
 
-        return new Stmt.While(condition, body);
+        return new Stmt.While(keyword, condition, body);
     }
 
     private List<Stmt> block() {
@@ -392,9 +428,10 @@ public class Parser {
     }
 
     private Stmt printStatement() {
+        Token keyword = previous();
         Expr value = expression();
         consume(SEMICOLON, "Expect ';' after value.");
-        return new Stmt.Print(value);
+        return new Stmt.Print(keyword, value);
     }
 
     private Stmt expressionStatement() {
@@ -427,6 +464,9 @@ public class Parser {
     }
 
     private Expr.AnonFunction functionExpression() {
+        // the fun keyword, it gives the function a line for runtime tools
+        Token keyword = previous();
+
         // parse function parameters
         consume(LEFT_PAREN, "Expect '(' after anonymous function declarator.");
         List<Token> parameters = new ArrayList<>();
@@ -443,7 +483,7 @@ public class Parser {
         // parse function body
         consume(LEFT_BRACE, "Expect '{' before anonymous function body.");
         List<Stmt> body = block();
-        return new Expr.AnonFunction(parameters, body);
+        return new Expr.AnonFunction(keyword, parameters, body);
     }
 
     /////////////////////////////////////////////////
@@ -0,0 +1,439 @@
+package mylox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is an alternative interpreter that runs the sealed record AST
+ * (ExprNode and StmtNode) instead of the classic visitor AST. Every node is
+ * dispatched on with instanceof type patterns over the sealed hierarchy, so
+ * evaluation never goes through a megamorphic accept call.
+ *
+ * Statements are converted from the classic AST right after they have been
+ * resolved, the operator semantics and the natives are shared with the
+ * visitor based Interpreter.
+ */
+class PatternInterpreter extends Interpreter {
+
+    private Environment environment = globals;
+    // distances recorded by the resolver until the statements are converted
+    private final Map<Expr, Integer> classicLocals = new HashMap<>();
+    // records have structural equality, so the side table is keyed by identity
+    private Map<ExprNode, Integer> locals = new IdentityHashMap<>();
+    // set while locals is shared with another interpreter, the next
+    // conversion copies it
+    private boolean sharedLocals = false;
+
+    PatternInterpreter() {
+    }
+
+    PatternInterpreter(Globals globals) {
+        super(globals);
+    }
+
+    @Override
+    Interpreter fork(Globals globals) {
+        // the converted nodes never change, so the fork shares them with the
+        // functions defined so far
+        PatternInterpreter fork = new PatternInterpreter(globals);
+        fork.out = out;
+        fork.errors = errors;
+        fork.runtime = runtime;
+        fork.locals = locals;
+        fork.sharedLocals = true;
+        if (!sharedLocals)
+            sharedLocals = true;
+        return fork;
+    }
+
+    @Override
+    void resolve(Expr expr, int depth) {
+        classicLocals.put(expr, depth);
+    }
+
+    /**
+     * The statements of a prepared script converted to nodes, with the
+     * distances of their variables. Shared by every run of the script.
+     */
+    record Converted(List<StmtNode> nodes, Map<ExprNode, Integer> locals) {
+    }
+
+    static Converted convert(List<Stmt> statements, Map<Expr, Integer> resolved) {
+        Map<ExprNode, Integer> locals = new IdentityHashMap<>();
+        List<StmtNode> nodes = new NodeConverter(resolved, locals).convert(statements);
+        return new Converted(nodes, locals);
+    }
+
+    @Override
+    void interpret(PreparedScript script) {
+        Converted converted = script.converted();
+        // like the visitor interpreter, the script runs with its own table
+        // and leaves the table of the interpreter as it was
+        Map<ExprNode, Integer> previous = locals;
+        locals = converted.locals();
+        try {
+            interpretNodes(converted.nodes());
+        } finally {
+            locals = previous;
+        }
+    }
+
+    @Override
+    void interpret(List<Stmt> statements) {
+        if (sharedLocals) {
+            locals = new IdentityHashMap<>(locals);
+            sharedLocals = false;
+        }
+        List<StmtNode> nodes = new NodeConverter(classicLocals, locals).convert(statements);
+        // the classic nodes are not needed anymore once converted
+        classicLocals.clear();
+        interpretNodes(nodes);
+    }
+
+    private void interpretNodes(List<StmtNode> nodes) {
+        try {
+            for (StmtNode statement : nodes) {
+                execute(statement);
+            }
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        } catch (BreakException breakExcpt) {
+            Lox.error(breakExcpt.getBreakToken().line, "Error found break exception outside of control flow.");
+        }
+    }
+
+    /**
+     * Evaluates an expression node. The checks are ordered by how often each
+     * node type shows up in typical programs.
+     *
+     * @param expr the expression node to be evaluated
+     * @return the value of the expression
+     */
+    Object evaluate(ExprNode expr) {
+        if (expr instanceof ExprNode.Variable variable) {
+            return lookupVariable(variable.name(), variable);
+        } else if (expr instanceof ExprNode.Literal literal) {
+            return literal.value();
+        } else if (expr instanceof ExprNode.Binary binary) {
+            // left to right evaluation
+            Object left = evaluate(binary.left());
+            Object right = evaluate(binary.right());
+            return binaryOp(binary.operator(), left, right);
+        } else if (expr instanceof ExprNode.Call call) {
+            return evaluateCall(call);
+        } else if (expr instanceof ExprNode.Get get) {
+            return evaluateGet(get);
+        } else if (expr instanceof ExprNode.Assign assign) {
+            return evaluateAssign(assign);
+        } else if (expr instanceof ExprNode.Logical logical) {
+            return evaluateLogical(logical);
+        } else if (expr instanceof ExprNode.Grouping grouping) {
+            return evaluate(grouping.expression());
+        } else if (expr instanceof ExprNode.Unary unary) {
+            return unaryOp(unary.operator(), evaluate(unary.right()));
+        } else if (expr instanceof ExprNode.This thisExpr) {
+            return lookupVariable(thisExpr.keyword(), thisExpr);
+        } else if (expr instanceof ExprNode.Set set) {
+            return evaluateSet(set);
+        } else if (expr instanceof ExprNode.Super superExpr) {
+            return evaluateSuper(superExpr);
+        } else if (expr instanceof ExprNode.AnonFunction function) {
+            closureCreated();
+            return new NodeFunction(function.keyword(), function.params(), function.body(), environment, false, locals);
+        }
+
+        // unreachable, the hierarchy is sealed
+        throw new IllegalStateException("Unknown expression node " + expr);
+    }
+
+    /**
+     * Executes a statement node.
+     *
+     * @param stmt the statement node to be executed
+     */
+    void execute(StmtNode stmt) {
+        if (stmt instanceof StmtNode.Expression expression) {
+            evaluate(expression.expression());
+        } else if (stmt instanceof StmtNode.Var var) {
+            Object value = null;
+            if (var.initializer() != null) {
+                value = evaluate(var.initializer());
+            }
+            environment.define(var.name().lexeme, value);
+        } else if (stmt instanceof StmtNode.If ifStmt) {
+            if (isTruthy(evaluate(ifStmt.condition()))) {
+                execute(ifStmt.thenBranch());
+            } else if (ifStmt.elseBranch() != null) {
+                execute(ifStmt.elseBranch());
+            }
+        } else if (stmt instanceof StmtNode.Return returnStmt) {
+            Object value = null;
+            if (returnStmt.value() != null)
+                value = evaluate(returnStmt.value());
+            throw new mylox.Return(value);
+        } else if (stmt instanceof StmtNode.Block block) {
+            executeNodes(block.statements(), new Environment(environment));
+        } else if (stmt instanceof StmtNode.Print print) {
+            out.println(stringify(evaluate(print.expression())));
+        } else if (stmt instanceof StmtNode.For forStmt) {
+            executeFor(forStmt);
+        } else if (stmt instanceof StmtNode.While whileStmt) {
+            executeWhile(whileStmt);
+        } else if (stmt instanceof StmtNode.Function function) {
+            closureCreated();
+            environment.define(function.name().lexeme,
+                    new NodeFunction(function.name(), function.params(), function.body(), environment, false, locals));
+        } else if (stmt instanceof StmtNode.Break breakStmt) {
+            throw new BreakException(breakStmt.breakToken());
+        } else if (stmt instanceof StmtNode.Class classStmt) {
+            executeClass(classStmt);
+        } else if (stmt instanceof StmtNode.Import) {
+            // the module loader places the imported module before this statement
+        } else {
+            // unreachable, the hierarchy is sealed
+            throw new IllegalStateException("Unknown statement node " + stmt);
+        }
+    }
+
+    void executeNodes(List<StmtNode> statements, Environment environment) {
+        // save the previous environment
+        Environment previous = this.environment;
+
+        try {
+            this.environment = environment;
+            for (StmtNode statement : statements) {
+                execute(statement);
+            }
+        } finally {
+            this.environment = previous;
+        }
+    }
+
+    private Object lookupVariable(Token name, ExprNode expr) {
+        Integer distance = locals.get(expr);
+        if (distance != null) {
+            return environment.getAt(distance, name.lexeme);
+        } else if (expr instanceof ExprNode.Variable variable) {
+            // the site keeps the cell of the global
+            return globals.cell(variable.global(), 0, name.lexeme, name.line).value;
+        } else {
+            return globals.get(name);
+        }
+    }
+
+    private Object evaluateAssign(ExprNode.Assign expr) {
+        Object value = evaluate(expr.value());
+        Integer distance = locals.get(expr);
+        if (distance != null) {
+            environment.assignAt(distance, expr.name(), value);
+        } else {
+            Token name = expr.name();
+            globals.store(globals.cell(expr.global(), 0, name.lexeme, name.line), name.lexeme, name.line, value);
+        }
+        return value;
+    }
+
+    private Object evaluateLogical(ExprNode.Logical expr) {
+        Object left = evaluate(expr.left());
+
+        // or can short circuit if left evaluates to true
+        if (expr.operator().type == TokenType.OR) {
+            if (isTruthy(left))
+                return left;
+        } else {
+            // and short circuits if false
+            if (!isTruthy(left))
+                return left;
+        }
+
+        return evaluate(expr.right());
+    }
+
+    private Object evaluateCall(ExprNode.Call expr) {
+        Object callee = evaluate(expr.callee());
+
+        List<Object> arguments = new ArrayList<>(expr.arguments().size());
+        for (ExprNode argument : expr.arguments()) {
+            arguments.add(evaluate(argument));
+        }
+
+        return callFunction(callee, expr.paren(), arguments);
+    }
+
+    private Object evaluateGet(ExprNode.Get expr) {
+        Object object = evaluate(expr.object());
+        if (object instanceof LoxInstance instance) {
+            return instance.get(expr.name());
+        }
+        if (object instanceof LoxActor actor) {
+            return actor.get(expr.name());
+        }
+
+        throw new RuntimeError(expr.name(), "Only instances have properties");
+    }
+
+    private Object evaluateSet(ExprNode.Set expr) {
+        Object object = evaluate(expr.object());
+
+        if (!(object instanceof LoxInstance instance)) {
+            throw new RuntimeError(expr.name(), "Only instances have fields.");
+        }
+
+        Object value = evaluate(expr.value());
+        instance.set(expr.name(), value);
+        return value;
+    }
+
+    private Object evaluateSuper(ExprNode.Super expr) {
+        int distance = locals.get(expr);
+        LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
+
+        LoxInstance object = (LoxInstance) environment.getAt(distance - 1, "this");
+
+        LoxFunction method = superclass.findMethod(expr.method().lexeme);
+
+        if (method == null) {
+            throw new RuntimeError(expr.method(), "Undefined property '" + expr.method().lexeme + "'.");
+        }
+
+        return method.bind(object);
+    }
+
+    private void executeWhile(StmtNode.While stmt) {
+        while (isTruthy(evaluate(stmt.condition()))) {
+            try {
+                execute(stmt.body());
+            } catch (BreakException be) {
+                break;
+            }
+        }
+    }
+
+    private void executeFor(StmtNode.For stmt) {
+        // the initializer is executed by the block the parser wraps around the
+        // loop and the increment is already the last statement of the body
+        while (isTruthy(evaluate(stmt.condition()))) {
+            try {
+                for (StmtNode thisStmt : stmt.body()) {
+                    execute(thisStmt);
+                }
+            } catch (BreakException be) {
+                break;
+            }
+        }
+    }
+
+    private void executeClass(StmtNode.Class stmt) {
+        Object superclass = null;
+        if (stmt.superclass() != null) {
+            superclass = evaluate(stmt.superclass());
+            if (!(superclass instanceof LoxClass)) {
+                throw new RuntimeError(stmt.superclass().name(), "Superclass must be a class");
+            }
+        }
+
+        environment.define(stmt.name().lexeme, null);
+
+        if (stmt.superclass() != null) {
+            environment = new Environment(environment);
+            environment.define("super", superclass);
+        }
+
+        Map<String, LoxFunction> methods = new HashMap<>();
+        for (StmtNode.Function method : stmt.methods()) {
+            boolean isInitializer = method.name().lexeme.equals("init");
+            methods.put(method.name().lexeme,
+                    new NodeFunction(method.name(), method.params(), method.body(), environment, isInitializer,
+                            locals));
+        }
+
+        LoxClass klass = new LoxClass(stmt.name().lexeme, (LoxClass) superclass, methods);
+        if (superclass != null) {
+            environment = environment.enclosing;
+        }
+
+        environment.assign(stmt.name(), klass);
+    }
+
+    /**
+     * Function object for both function declarations and anonymous function
+     * expressions of the record AST. It extends LoxFunction so methods can be
+     * stored in and bound by LoxClass like the classic ones.
+     */
+    static class NodeFunction extends LoxFunction {
+        // the fun keyword for anonymous functions
+        private final Token name;
+        private final List<Token> params;
+        private final List<StmtNode> body;
+        // the scope distances of the script the function was declared in
+        private final Map<ExprNode, Integer> locals;
+
+        NodeFunction(Token name, List<Token> params, List<StmtNode> body, Environment closure,
+                boolean isInitializer, Map<ExprNode, Integer> locals) {
+            super(null, closure, isInitializer, null);
+            this.name = name;
+            this.params = params;
+            this.body = body;
+            this.locals = locals;
+        }
+
+        @Override
+        LoxFunction withClosure(Environment closure) {
+            return new NodeFunction(name, params, body, closure, isInitializer, locals);
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            Environment environment = new Environment(closure);
+            int size = params.size();
+
+            for (int i = 0; i < size; i++) {
+                environment.define(params.get(i).lexeme, arguments.get(i));
+            }
+
+            PatternInterpreter patternInterpreter = (PatternInterpreter) interpreter;
+            Map<ExprNode, Integer> caller = patternInterpreter.locals;
+            // like the arena functions, the function runs with the table of
+            // the script it was declared in
+            patternInterpreter.locals = locals;
+            try {
+                patternInterpreter.executeNodes(body, environment);
+            } catch (Return returnValue) {
+                if (isInitializer) return closure.getAt(0, "this");
+                return returnValue.value;
+            } finally {
+                patternInterpreter.locals = caller;
+            }
+
+            if (isInitializer) return closure.getAt(0, "this");
+            return null;
+        }
+
+        @Override
+        public int arity() {
+            return params.size();
+        }
+
+        @Override
+        public String frameName() {
+            if (name.type == TokenType.FUN)
+                return "<anon>:" + name.line;
+            return name.lexeme;
+        }
+
+        @Override
+        public int declarationLine() {
+            return name.line;
+        }
+
+        @Override
+        public String toString() {
+            if (name.type == TokenType.FUN)
+                return "<anon fn expr>";
+            return "<fn " + name.lexeme + ">";
+        }
+    }
+}
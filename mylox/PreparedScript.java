@@ -0,0 +1,150 @@
+package mylox;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is a script that was scanned, parsed, linked and resolved once,
+ * to be run any number of times by LoxEngine. The statements, with the
+ * modules they import in front, and the scope distances the resolver found
+ * never change after preparing, so any number of interpreters on any threads
+ * can run one prepared script at the same time.
+ *
+ * The visitor interpreter looks the distances up in the table of the script
+ * directly. The other engines lower the statements the first time the script
+ * runs on one of them and keep the result here, so every later run on that
+ * kind of engine starts right away.
+ */
+public final class PreparedScript {
+
+    private final String hash;
+    private final List<Stmt> statements;
+    private final Map<Expr, Integer> locals;
+    // the statements lowered for the pattern and the arena engine, null
+    // until the script first runs on one
+    private volatile PatternInterpreter.Converted converted = null;
+    private volatile ArenaInterpreter.Lowered lowered = null;
+
+    private PreparedScript(String hash, List<Stmt> statements, Map<Expr, Integer> locals) {
+        this.hash = hash;
+        this.statements = Collections.unmodifiableList(statements);
+        this.locals = Collections.unmodifiableMap(locals);
+    }
+
+    /**
+     * Prepares a script. Imports are resolved against the path, or the working
+     * directory if there is none, and linked into the script, so later
+     * changes to the modules don't affect it.
+     *
+     * @param source the source text of the script
+     * @param path   the file of the script, or null
+     * @param errors receives the static errors of the script
+     * @return the prepared script, null if the script has errors
+     */
+    public static PreparedScript prepare(String source, Path path, ErrorReporter errors) {
+        boolean[] failed = { false };
+        ErrorReporter previousReporter = Lox.reporter.get();
+        Lox.reporter.set(new ErrorReporter() {
+            @Override
+            public void report(int line, Token token, String where, String message) {
+                failed[0] = true;
+                errors.report(line, token, where, message);
+            }
+
+            @Override
+            public void moduleError(String error) {
+                failed[0] = true;
+                errors.moduleError(error);
+            }
+        });
+
+        try {
+            List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+            if (failed[0]) return null;
+
+            Path directory = path == null ? Paths.get("") : path.toAbsolutePath().getParent();
+            statements = new ModuleLoader().link(statements, directory, path);
+            if (failed[0]) return null;
+
+            Map<Expr, Integer> locals = new HashMap<>();
+            new Resolver(locals::put).resolve(statements);
+            if (failed[0]) return null;
+
+            return new PreparedScript(hash(source), statements, locals);
+        } finally {
+            Lox.reporter.set(previousReporter);
+        }
+    }
+
+    /**
+     * @return the SHA-256 of the source text, in hex
+     */
+    public String hash() {
+        return hash;
+    }
+
+    List<Stmt> statements() {
+        return statements;
+    }
+
+    Map<Expr, Integer> locals() {
+        return locals;
+    }
+
+    /**
+     * @return the statements converted for the pattern engine, converted on
+     *         the first call
+     */
+    PatternInterpreter.Converted converted() {
+        PatternInterpreter.Converted result = converted;
+        if (result == null) {
+            synchronized (this) {
+                result = converted;
+                if (result == null)
+                    converted = result = PatternInterpreter.convert(statements, locals);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the statements lowered into an arena of their own for the arena
+     *         engine, lowered on the first call
+     */
+    ArenaInterpreter.Lowered lowered() {
+        ArenaInterpreter.Lowered result = lowered;
+        if (result == null) {
+            synchronized (this) {
+                result = lowered;
+                if (result == null)
+                    lowered = result = ArenaInterpreter.lower(statements, locals);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Hashes a source text the way scripts are identified across runs and in
+     * caches.
+     *
+     * @param source the source text
+     * @return the SHA-256 of the source text, in hex
+     */
+    static String hash(String source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(source.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package mylox;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps the most recently used prepared scripts, keyed by the hash
+ * of their source and the path their imports were resolved against, the same
+ * source at another path may import other modules. Threads share one cache:
+ * a script missing from it is prepared outside the lock, so a slow script
+ * doesn't hold up lookups of others, and two threads missing the same script
+ * at once both prepare it. Scripts with errors aren't cached, their errors
+ * are reported on every get.
+ */
+public class PreparedScriptCache {
+
+    private final int capacity;
+    // in access order, the eldest entry is the least recently used
+    private final Map<String, PreparedScript> scripts;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param capacity the number of scripts kept at most
+     */
+    public PreparedScriptCache(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive");
+        this.capacity = capacity;
+        this.scripts = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedScript> eldest) {
+                return size() > PreparedScriptCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Finds the prepared script for the source or prepares it.
+     *
+     * @param source the source text of the script
+     * @param path   the file of the script, or null, imports are relative to it
+     * @param errors receives the static errors if the script is prepared
+     * @return the prepared script, null if the script has errors
+     */
+    public PreparedScript get(String source, Path path, ErrorReporter errors) {
+        String key = key(source, path);
+        synchronized (scripts) {
+            PreparedScript script = scripts.get(key);
+            if (script != null) {
+                hits++;
+                return script;
+            }
+            misses++;
+        }
+
+        PreparedScript script = PreparedScript.prepare(source, path, errors);
+        if (script != null) {
+            synchronized (scripts) {
+                scripts.put(key, script);
+            }
+        }
+        return script;
+    }
+
+    // the hash can't contain a newline, so it separates it from the path
+    private static String key(String source, Path path) {
+        String hash = PreparedScript.hash(source);
+        if (path == null)
+            return hash;
+        return hash + "\n" + path.toAbsolutePath().normalize();
+    }
+
+    public int size() {
+        synchronized (scripts) {
+            return scripts.size();
+        }
+    }
+
+    public long hits() {
+        synchronized (scripts) {
+            return hits;
+        }
+    }
+
+    public long misses() {
+        synchronized (scripts) {
+            return misses;
+        }
+    }
+}
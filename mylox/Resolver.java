@@ -4,15 +4,54 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.function.ObjIntConsumer;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
+    // receives the scope distance of every local variable use
+    private final ObjIntConsumer<Expr> locals;
     private final Stack<Map<String, Boolean>> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
     private ClassType currentClass = ClassType.NONE;
+    // scope of the innermost function literal passed to a parallel loop, the
+    // body can't assign variables from the scopes below it, -1 outside of one
+    private int parallelBody = -1;
+    // scope of the innermost function literal passed to spawn, the task can't
+    // assign local variables from the scopes below it, -1 outside of one
+    private int spawnBody = -1;
+    // the functions declared by name in every scope, the globals first, and
+    // the ones being resolved, to check the functions a parallel loop or a
+    // task calls
+    private final Stack<Map<String, FunctionInfo>> declaredFunctions = new Stack<>();
+    private final Stack<FunctionInfo> enclosingFunctions = new Stack<>();
 
     Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+        this(interpreter::resolve);
+    }
+
+    /**
+     * Resolves without an interpreter, for tools that keep the distances
+     * themselves or only want the errors.
+     */
+    Resolver(ObjIntConsumer<Expr> locals) {
+        this.locals = locals;
+        declaredFunctions.push(new HashMap<>());
+    }
+
+    // what a function declared by name assigns outside of itself
+    private static final class FunctionInfo {
+        // index of the scope of its parameters
+        final int scope;
+        // the assignment of the variable declared in the lowest scope, -1
+        // for a global, null if it assigns only its own variables
+        Token assigned = null;
+        int assignedScope = Integer.MAX_VALUE;
+        // the same for local variables alone, which tasks can't assign
+        Token assignedLocal = null;
+        int assignedLocalScope = Integer.MAX_VALUE;
+
+        FunctionInfo(int scope) {
+            this.scope = scope;
+        }
     }
 
     private enum FunctionType {
@@ -50,6 +89,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
      */
     private void beginScope() {
         scopes.push(new HashMap<String, Boolean>());
+        declaredFunctions.push(new HashMap<>());
     }
 
     /**
@@ -57,10 +97,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
      */
     private void endScope() {
         scopes.pop();
+        declaredFunctions.pop();
     }
 
     // variable is declared but not ready for use yet
     private void declare(Token name) {
+        // a function declared before under the name is hidden now
+        declaredFunctions.peek().remove(name.lexeme);
         if (scopes.isEmpty())
             return;
 
@@ -85,7 +128,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             if (scopes.get(i).containsKey(name.lexeme)) {
                 // start at innermost scope and work outwards
                 // to resolve local variables
-                interpreter.resolve(expr, scopes.size() - 1 - i);
+                locals.accept(expr, scopes.size() - 1 - i);
                 return;
             }
         }
@@ -234,7 +277,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitFunctionStmt(Stmt.Function stmt) {
         declare(stmt.name);
         define(stmt.name);
+        FunctionInfo info = new FunctionInfo(scopes.size());
+        declaredFunctions.peek().put(stmt.name.lexeme, info);
+        enclosingFunctions.push(info);
         resolveFunction(stmt, FunctionType.FUNCTION);
+        enclosingFunctions.pop();
         return null;
     }
 
@@ -304,6 +351,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
+        checkAssign(expr.name, scopeOf(expr.name));
         resolveLocal(expr, expr.name);
         return null;
     }
@@ -318,12 +366,105 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitCallExpr(Expr.Call expr) {
         resolve(expr.callee);
+        // calling a function is doing what it assigns
+        FunctionInfo callee = functionOf(expr.callee);
+        if (callee != null && callee.assigned != null)
+            checkAssign(callee.assigned, callee.assignedScope);
+        if (callee != null && callee.assignedLocal != null && callee.assignedLocal != callee.assigned)
+            checkAssign(callee.assignedLocal, callee.assignedLocalScope);
+
+        boolean parallel = isParallelLoop(expr.callee);
+        boolean spawn = isNative(expr.callee, LoxTask.SPAWN);
         for (Expr arg : expr.arguments) {
-            resolve(arg);
+            if (parallel && arg instanceof Expr.AnonFunction) {
+                int enclosingBody = parallelBody;
+                parallelBody = scopes.size();
+                resolve(arg);
+                parallelBody = enclosingBody;
+            } else if (spawn && arg instanceof Expr.AnonFunction) {
+                int enclosingBody = spawnBody;
+                spawnBody = scopes.size();
+                resolve(arg);
+                spawnBody = enclosingBody;
+            } else if (spawn) {
+                resolve(arg);
+                FunctionInfo task = functionOf(arg);
+                if (task != null && task.assignedLocal != null) {
+                    int enclosingBody = spawnBody;
+                    spawnBody = scopes.size();
+                    checkAssign(task.assignedLocal, task.assignedLocalScope);
+                    spawnBody = enclosingBody;
+                }
+            } else {
+                resolve(arg);
+                FunctionInfo body = parallel ? functionOf(arg) : null;
+                if (body != null && body.assigned != null) {
+                    int enclosingBody = parallelBody;
+                    parallelBody = scopes.size();
+                    checkAssign(body.assigned, body.assignedScope);
+                    parallelBody = enclosingBody;
+                }
+            }
         }
         return null;
     }
 
+    // a call of the parallelFor or parallelReduce natives
+    private boolean isParallelLoop(Expr callee) {
+        return isNative(callee, LoxParallel.FOR) || isNative(callee, LoxParallel.REDUCE);
+    }
+
+    // a call of the native of that name, unless a local variable hides it
+    private boolean isNative(Expr callee, String name) {
+        if (!(callee instanceof Expr.Variable) || !((Expr.Variable) callee).name.lexeme.equals(name))
+            return false;
+        for (Map<String, Boolean> scope : scopes) {
+            if (scope.containsKey(name))
+                return false;
+        }
+        return true;
+    }
+
+    // index of the innermost scope that declares a name, -1 for a global
+    private int scopeOf(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            if (scopes.get(i).containsKey(name.lexeme))
+                return i;
+        }
+        return -1;
+    }
+
+    // the function declared by name a variable refers to, if it is one
+    private FunctionInfo functionOf(Expr expr) {
+        if (!(expr instanceof Expr.Variable))
+            return null;
+        Token name = ((Expr.Variable) expr).name;
+        return declaredFunctions.get(scopeOf(name) + 1).get(name.lexeme);
+    }
+
+    // the pieces of a parallel loop run at the same time on copies of the
+    // globals, so what they assign outside of the body would be lost or raced.
+    // A task has its own globals too, but the locals it captured are shared
+    // with the thread that spawned it
+    private void checkAssign(Token name, int scope) {
+        if (parallelBody >= 0 && scope < parallelBody) {
+            Lox.error(name, "Can't assign a variable declared outside of a parallel loop body, return the value instead.");
+        }
+        if (spawnBody >= 0 && scope >= 0 && scope < spawnBody) {
+            Lox.error(name, "Can't assign a local variable captured by a spawned function, return the value instead.");
+        }
+        for (FunctionInfo function : enclosingFunctions) {
+            if (scope < function.scope && scope < function.assignedScope) {
+                function.assigned = name;
+                function.assignedScope = scope;
+            }
+            if (scope >= 0 && scope < function.scope && scope < function.assignedLocalScope) {
+                function.assignedLocal = name;
+                function.assignedLocalScope = scope;
+            }
+        }
+    }
+
     @Override
     public Void visitGroupingExpr(Expr.Grouping expr) {
         resolve(expr.expression);
@@ -347,4 +488,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         resolve(expr.right);
         return null;
     }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        // modules define globals, so they can only be imported at the top level
+        if (!scopes.isEmpty()) {
+            Lox.error(stmt.keyword, "Can't import a module inside a block or function.");
+        }
+        return null;
+    }
 }
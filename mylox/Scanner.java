@@ -36,6 +36,7 @@ public class Scanner {
         keywords.put("while",  WHILE);
         keywords.put("break", BREAK);
         keywords.put("continue", CONTINUE); // TODO -- could implement continue statements
+        keywords.put("import", IMPORT);
     }
 
     Scanner(String source) {
@@ -56,7 +57,7 @@ public class Scanner {
         }
 
         // add final EOF token before finishing
-        tokens.add(new Token(TokenType.EOF, "", null, line));
+        tokens.add(new Token(TokenType.EOF, "", null, line, current));
         return tokens;
     }
 
@@ -225,7 +226,7 @@ public class Scanner {
      */
     private void addToken(TokenType type, Object literal) {
         String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        tokens.add(new Token(type, text, literal, line, start));
     }
 
     /**
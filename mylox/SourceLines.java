@@ -0,0 +1,51 @@
+package mylox;
+
+/**
+ * This class finds the source line of a node of the classic syntax tree from
+ * the tokens it keeps. Tools that map what the interpreter does back to the
+ * source use it, the interpreter itself only looks at lines to report errors.
+ */
+final class SourceLines {
+
+    private SourceLines() {
+    }
+
+    /**
+     * @return the line of the expression, 0 for literals and groupings, which
+     *         keep no token
+     */
+    static int of(Expr expr) {
+        if (expr instanceof Expr.Binary) return ((Expr.Binary) expr).operator.line;
+        if (expr instanceof Expr.Call) return ((Expr.Call) expr).paren.line;
+        if (expr instanceof Expr.Variable) return ((Expr.Variable) expr).name.line;
+        if (expr instanceof Expr.Assign) return ((Expr.Assign) expr).name.line;
+        if (expr instanceof Expr.Get) return ((Expr.Get) expr).name.line;
+        if (expr instanceof Expr.Set) return ((Expr.Set) expr).name.line;
+        if (expr instanceof Expr.Logical) return ((Expr.Logical) expr).operator.line;
+        if (expr instanceof Expr.Unary) return ((Expr.Unary) expr).operator.line;
+        if (expr instanceof Expr.This) return ((Expr.This) expr).keyword.line;
+        if (expr instanceof Expr.Super) return ((Expr.Super) expr).keyword.line;
+        if (expr instanceof Expr.AnonFunction) return ((Expr.AnonFunction) expr).keyword.line;
+        if (expr instanceof Expr.Grouping) return of(((Expr.Grouping) expr).expression);
+        return 0;
+    }
+
+    /**
+     * @return the line of the statement, 0 for blocks and for expression
+     *         statements without a token
+     */
+    static int of(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression) return of(((Stmt.Expression) stmt).expression);
+        if (stmt instanceof Stmt.Var) return ((Stmt.Var) stmt).name.line;
+        if (stmt instanceof Stmt.Print) return ((Stmt.Print) stmt).keyword.line;
+        if (stmt instanceof Stmt.If) return ((Stmt.If) stmt).keyword.line;
+        if (stmt instanceof Stmt.While) return ((Stmt.While) stmt).keyword.line;
+        if (stmt instanceof Stmt.For) return ((Stmt.For) stmt).keyword.line;
+        if (stmt instanceof Stmt.Return) return ((Stmt.Return) stmt).keyword.line;
+        if (stmt instanceof Stmt.Break) return ((Stmt.Break) stmt).breakToken.line;
+        if (stmt instanceof Stmt.Function) return ((Stmt.Function) stmt).name.line;
+        if (stmt instanceof Stmt.Class) return ((Stmt.Class) stmt).name.line;
+        if (stmt instanceof Stmt.Import) return ((Stmt.Import) stmt).keyword.line;
+        return 0;
+    }
+}
@@ -0,0 +1,213 @@
+package mylox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is the interpreter behind --stats. It counts what the program
+ * makes the tree walking interpreter do: the nodes evaluated per type, the
+ * environments created, the numbers boxed by arithmetic, the exceptions
+ * thrown for control flow, and how methods are bound and looked up. Lox adds
+ * the time spent in every phase.
+ *
+ * All counting lives in this subclass and the function and class objects it
+ * creates, so the plain interpreter doesn't pay for any of it.
+ */
+class StatsInterpreter extends Interpreter {
+
+    // evaluations per node class, in the order the classes were first seen
+    private final Map<Class<?>, long[]> nodes = new LinkedHashMap<>();
+    // nanoseconds per phase, in the order the phases ran first
+    private final Map<String, long[]> phases = new LinkedHashMap<>();
+
+    // the globals are the first environment
+    private long environments = 1;
+    private long boxedDoubles = 0;
+    private long returnThrows = 0;
+    private long breakThrows = 0;
+    private long binds = 0;
+
+    private long methodLookups = 0;
+    // classes searched by all lookups together, and by the longest one
+    private long lookupSteps = 0;
+    private int deepestLookup = 0;
+    // classes searched by the lookup in progress
+    private int lookupDepth = 0;
+
+    /**
+     * Adds the time of a phase, phases that run more than once, like in the
+     * prompt, add up.
+     */
+    void phase(String name, long nanos) {
+        phases.computeIfAbsent(name, key -> new long[1])[0] += nanos;
+    }
+
+    @Override
+    Object evaluate(Expr expr) {
+        nodes.computeIfAbsent(expr.getClass(), key -> new long[1])[0]++;
+        return super.evaluate(expr);
+    }
+
+    @Override
+    void execute(Stmt stmt) {
+        nodes.computeIfAbsent(stmt.getClass(), key -> new long[1])[0]++;
+        super.execute(stmt);
+    }
+
+    @Override
+    void executeBlock(List<Stmt> statements, Environment environment) {
+        // blocks and calls both hand a fresh environment in here
+        environments++;
+        super.executeBlock(statements, environment);
+    }
+
+    @Override
+    Object binaryOp(Token operator, Object left, Object right) {
+        Object value = super.binaryOp(operator, left, right);
+        if (value instanceof Double)
+            boxedDoubles++;
+        return value;
+    }
+
+    @Override
+    Object unaryOp(Token operator, Object right) {
+        Object value = super.unaryOp(operator, right);
+        if (value instanceof Double)
+            boxedDoubles++;
+        return value;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        returnThrows++;
+        return super.visitReturnStmt(stmt);
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        breakThrows++;
+        return super.visitBreakStmt(stmt);
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        // the scope holding super
+        if (stmt.superclass != null)
+            environments++;
+        return super.visitClassStmt(stmt);
+    }
+
+    @Override
+    LoxFunction newFunction(Stmt.Function declaration, Environment closure, boolean isInitializer,
+            Map<Expr, Integer> locals) {
+        return new CountingFunction(declaration, closure, isInitializer, locals);
+    }
+
+    @Override
+    LoxClass newClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
+        return new CountingClass(name, superclass, methods);
+    }
+
+    /**
+     * A function that counts how often it's bound to an instance.
+     */
+    private final class CountingFunction extends LoxFunction {
+        private final Stmt.Function declaration;
+        private final Map<Expr, Integer> locals;
+
+        CountingFunction(Stmt.Function declaration, Environment closure, boolean isInitializer,
+                Map<Expr, Integer> locals) {
+            super(declaration, closure, isInitializer, locals);
+            this.declaration = declaration;
+            this.locals = locals;
+        }
+
+        @Override
+        LoxFunction bind(LoxInstance instance) {
+            // binding creates the environment holding this
+            binds++;
+            environments++;
+            return super.bind(instance);
+        }
+
+        @Override
+        LoxFunction withClosure(Environment closure) {
+            return new CountingFunction(declaration, closure, isInitializer, locals);
+        }
+    }
+
+    /**
+     * A class that measures how far method lookups walk up the superclass
+     * chain. The lookup asks the superclass when a class doesn't declare the
+     * method, so every nested call is one more class searched.
+     */
+    private final class CountingClass extends LoxClass {
+
+        CountingClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
+            super(name, superclass, methods);
+        }
+
+        @Override
+        LoxFunction findMethod(String name) {
+            if (lookupDepth == 0)
+                methodLookups++;
+            lookupSteps++;
+            lookupDepth++;
+            deepestLookup = Math.max(deepestLookup, lookupDepth);
+            try {
+                return super.findMethod(name);
+            } finally {
+                lookupDepth--;
+            }
+        }
+    }
+
+    /**
+     * Prints the collected statistics.
+     *
+     * @param out the stream to print to
+     */
+    void report(PrintStream out) {
+        out.println("== execution statistics ==");
+
+        out.println("phases:");
+        for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+            out.printf("  %-22s %12.3f ms%n", phase.getKey(), phase.getValue()[0] / 1e6);
+        }
+
+        out.println("nodes evaluated:");
+        List<Map.Entry<Class<?>, long[]>> counts = new ArrayList<>(nodes.entrySet());
+        counts.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        long total = 0;
+        for (Map.Entry<Class<?>, long[]> count : counts) {
+            out.printf("  %-22s %12d%n", nodeName(count.getKey()), count.getValue()[0]);
+            total += count.getValue()[0];
+        }
+        out.printf("  %-22s %12d%n", "total", total);
+
+        Map<String, Object> runtime = new LinkedHashMap<>();
+        runtime.put("environments created", environments);
+        runtime.put("boxed doubles", boxedDoubles);
+        runtime.put("Return thrown", returnThrows);
+        runtime.put("BreakException thrown", breakThrows);
+        runtime.put("bind calls", binds);
+        runtime.put("method lookups", methodLookups);
+        runtime.put("classes searched", lookupSteps);
+        runtime.put("average lookup depth",
+                String.format("%.2f", methodLookups == 0 ? 0.0 : (double) lookupSteps / methodLookups));
+        runtime.put("deepest lookup", deepestLookup);
+
+        out.println("runtime:");
+        for (Map.Entry<String, Object> entry : runtime.entrySet()) {
+            out.printf("  %-22s %12s%n", entry.getKey(), entry.getValue());
+        }
+    }
+
+    // Expr.Binary instead of the binary name Expr$Binary
+    private static String nodeName(Class<?> node) {
+        return node.getEnclosingClass().getSimpleName() + "." + node.getSimpleName();
+    }
+}
@@ -15,9 +15,11 @@ abstract class Stmt {
     R visitReturnStmt(Return stmt);
     R visitForStmt(For stmt);
     R visitClassStmt(Class stmt);
+    R visitImportStmt(Import stmt);
   }
   static class If extends Stmt {
-    If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
+    If(Token keyword, Expr condition, Stmt thenBranch, Stmt elseBranch) {
+      this.keyword = keyword;
       this.condition = condition;
       this.thenBranch = thenBranch;
       this.elseBranch = elseBranch;
@@ -28,6 +30,7 @@ abstract class Stmt {
       return visitor.visitIfStmt(this);
     }
 
+    final Token keyword;
     final Expr condition;
     final Stmt thenBranch;
     final Stmt elseBranch;
@@ -45,7 +48,8 @@ abstract class Stmt {
     final List<Stmt> statements;
   }
   static class While extends Stmt {
-    While(Expr condition, Stmt body) {
+    While(Token keyword, Expr condition, Stmt body) {
+      this.keyword = keyword;
       this.condition = condition;
       this.body = body;
     }
@@ -55,6 +59,7 @@ abstract class Stmt {
       return visitor.visitWhileStmt(this);
     }
 
+    final Token keyword;
     final Expr condition;
     final Stmt body;
   }
@@ -87,7 +92,8 @@ abstract class Stmt {
     final List<Stmt> body;
   }
   static class Print extends Stmt {
-    Print(Expr expression) {
+    Print(Token keyword, Expr expression) {
+      this.keyword = keyword;
       this.expression = expression;
     }
 
@@ -96,6 +102,7 @@ abstract class Stmt {
       return visitor.visitPrintStmt(this);
     }
 
+    final Token keyword;
     final Expr expression;
   }
   static class Var extends Stmt {
@@ -139,7 +146,8 @@ abstract class Stmt {
     final Expr value;
   }
   static class For extends Stmt {
-    For(Stmt initializer, Expr condition, Expr increment, List<Stmt> body) {
+    For(Token keyword, Stmt initializer, Expr condition, Expr increment, List<Stmt> body) {
+      this.keyword = keyword;
       this.initializer = initializer;
       this.condition = condition;
       this.increment = increment;
@@ -151,6 +159,7 @@ abstract class Stmt {
       return visitor.visitForStmt(this);
     }
 
+    final Token keyword;
     final Stmt initializer;
     final Expr condition;
     final Expr increment;
@@ -172,6 +181,20 @@ abstract class Stmt {
     final Expr.Variable superclass;
     final List<Stmt.Function> methods;
   }
+  static class Import extends Stmt {
+    Import(Token keyword, Token path) {
+      this.keyword = keyword;
+      this.path = path;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitImportStmt(this);
+    }
+
+    final Token keyword;
+    final Token path;
+  }
 
   abstract <R> R accept(Visitor<R> visitor);
 }
@@ -0,0 +1,30 @@
+package mylox;
+
+import java.util.List;
+
+sealed interface StmtNode {
+  record If(Token keyword, ExprNode condition, StmtNode thenBranch, StmtNode elseBranch) implements StmtNode {
+  }
+  record Block(List<StmtNode> statements) implements StmtNode {
+  }
+  record While(Token keyword, ExprNode condition, StmtNode body) implements StmtNode {
+  }
+  record Expression(ExprNode expression) implements StmtNode {
+  }
+  record Function(Token name, List<Token> params, List<StmtNode> body) implements StmtNode {
+  }
+  record Print(Token keyword, ExprNode expression) implements StmtNode {
+  }
+  record Var(Token name, ExprNode initializer) implements StmtNode {
+  }
+  record Break(Token breakToken) implements StmtNode {
+  }
+  record Return(Token keyword, ExprNode value) implements StmtNode {
+  }
+  record For(Token keyword, StmtNode initializer, ExprNode condition, ExprNode increment, List<StmtNode> body) implements StmtNode {
+  }
+  record Class(Token name, ExprNode.Variable superclass, List<StmtNode.Function> methods) implements StmtNode {
+  }
+  record Import(Token keyword, Token path) implements StmtNode {
+  }
+}
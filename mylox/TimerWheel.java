@@ -0,0 +1,342 @@
+package mylox;
+
+import java.util.List;
+
+/**
+ * This class holds the timers of an event loop in a hierarchical timing
+ * wheel. A tick is a millisecond, and the wheel has five levels of 64 slots:
+ * a slot of level 0 holds the timers due in one tick, a slot of level 1 the
+ * timers due in 64 ticks, and so on up to about twelve days, timers further
+ * out wait in the last level. Every slot is a doubly linked list, so adding
+ * and cancelling a timer is O(1) however many timers are pending, and a bit
+ * per slot tells which slots hold timers.
+ *
+ * When the wheel gets to the first slot of a level it cascades the next slot
+ * of the level above, moving its timers down to the slots they are due in, so
+ * a timer is moved at most once per level before it fires. The loop sleeps
+ * until the next slot that fires or cascades, and the wheel skips the empty
+ * ticks in between, so idle timers cost nothing.
+ */
+final class TimerWheel {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 5;
+    // ticks a timer can be ahead before it has to wait in the last level
+    private static final long SPAN = 1L << (SLOT_BITS * LEVELS);
+    private static final long NANOS_PER_TICK = 1_000_000;
+
+    private final LoxEventLoop loop;
+    private final long origin = System.nanoTime();
+    // first and last timer of every slot, level by level
+    private final Timer[] heads = new Timer[LEVELS * SLOTS];
+    private final Timer[] tails = new Timer[LEVELS * SLOTS];
+    // a bit for every slot that holds a timer
+    private final long[] occupied = new long[LEVELS];
+    // the next tick to expire, every tick before it is done
+    private long tick = 0;
+
+    /**
+     * A timer started by setTimeout or setInterval, the handle cancel takes.
+     */
+    static final class Timer {
+        private final LoxCallable callback;
+        // 0 for a timeout
+        private final long period;
+        private long deadline;
+        private boolean cancelled = false;
+        // set when the callback of a timeout ran
+        private boolean done = false;
+
+        // the slot it's linked into, -1 while it's not in the wheel
+        private int slot = -1;
+        private Timer previous = null;
+        private Timer next = null;
+
+        private Timer(LoxCallable callback, long deadline, long period) {
+            this.callback = callback;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        @Override
+        public String toString() {
+            return period == 0 ? "<timeout>" : "<interval>";
+        }
+    }
+
+    TimerWheel(LoxEventLoop loop) {
+        this.loop = loop;
+    }
+
+    /**
+     * Defines the natives setTimeout, setInterval and cancel.
+     *
+     * @param globals the global environment of an interpreter
+     */
+    static void defineNatives(Environment globals) {
+        globals.define("setTimeout", new LoxCallable() {
+            public int arity() {
+                return 2;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                LoxCallable callback = callback(arguments.get(0));
+                double millis = millis(arguments.get(1));
+                return interpreter.eventLoop().timers().start(callback, millis, 0);
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+
+        globals.define("setInterval", new LoxCallable() {
+            public int arity() {
+                return 2;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                LoxCallable callback = callback(arguments.get(0));
+                double millis = millis(arguments.get(1));
+                if (millis < 1)
+                    throw new RuntimeError(null, "An interval must be at least 1 millisecond.");
+                return interpreter.eventLoop().timers().start(callback, millis, (long) Math.ceil(millis));
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+
+        globals.define("cancel", new LoxCallable() {
+            public int arity() {
+                return 1;
+            }
+
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                if (!(arguments.get(0) instanceof Timer))
+                    throw new RuntimeError(null, "Expected a timer.");
+                return interpreter.eventLoop().timers().cancel((Timer) arguments.get(0));
+            }
+
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+    }
+
+    private static LoxCallable callback(Object value) {
+        if (!(value instanceof LoxCallable) || ((LoxCallable) value).arity() != 0)
+            throw new RuntimeError(null, "The timer callback must take no arguments.");
+        return (LoxCallable) value;
+    }
+
+    private static double millis(Object value) {
+        if (!(value instanceof Double) || (double) value < 0 || Double.isNaN((double) value))
+            throw new RuntimeError(null, "Expected a number of milliseconds.");
+        return (double) value;
+    }
+
+    // the tick it is now, counted from the creation of the wheel
+    private long now() {
+        return (System.nanoTime() - origin) / NANOS_PER_TICK;
+    }
+
+    private Timer start(LoxCallable callback, double millis, long period) {
+        // rounded up, so a timer never fires before its time has passed
+        double nanos = System.nanoTime() - origin + millis * NANOS_PER_TICK;
+        long deadline = (long) Math.ceil(Math.min(nanos, Long.MAX_VALUE / 2.0) / NANOS_PER_TICK);
+        Timer timer = new Timer(callback, deadline, period);
+        loop.begin();
+        add(timer);
+        return timer;
+    }
+
+    /**
+     * Stops a timer. A timeout whose callback ran and a timer that was
+     * already cancelled are left alone.
+     *
+     * @return true if this kept the callback from running again
+     */
+    private boolean cancel(Timer timer) {
+        if (timer.cancelled || timer.done)
+            return false;
+
+        timer.cancelled = true;
+        boolean linked = timer.slot >= 0;
+        if (linked)
+            unlink(timer);
+        // an interval is pending until it's cancelled, a timeout until it
+        // fires, which one that is still in the wheel hasn't
+        if (linked || timer.period != 0)
+            loop.end();
+        return true;
+    }
+
+    private void add(Timer timer) {
+        // a deadline that passed is due at the next tick
+        long deadline = Math.max(timer.deadline, tick);
+        // a timer further out than the wheel reaches waits in the last level
+        // and is added again when its slot cascades
+        deadline = Math.min(deadline, tick + SPAN - 1);
+        long delta = deadline - tick;
+
+        int level = 0;
+        while (delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        int index = (int) ((deadline >>> (SLOT_BITS * level)) & SLOT_MASK);
+        link(timer, level * SLOTS + index);
+    }
+
+    private void link(Timer timer, int slot) {
+        timer.slot = slot;
+        timer.next = null;
+        timer.previous = tails[slot];
+        if (tails[slot] == null) {
+            heads[slot] = timer;
+            occupied[slot / SLOTS] |= 1L << (slot & SLOT_MASK);
+        } else {
+            tails[slot].next = timer;
+        }
+        tails[slot] = timer;
+    }
+
+    private void unlink(Timer timer) {
+        int slot = timer.slot;
+        if (timer.previous == null)
+            heads[slot] = timer.next;
+        else
+            timer.previous.next = timer.next;
+        if (timer.next == null)
+            tails[slot] = timer.previous;
+        else
+            timer.next.previous = timer.previous;
+        if (heads[slot] == null)
+            occupied[slot / SLOTS] &= ~(1L << (slot & SLOT_MASK));
+
+        timer.slot = -1;
+        timer.previous = null;
+        timer.next = null;
+    }
+
+    // takes all timers out of a slot, in the order they were added
+    private Timer detach(int slot) {
+        Timer first = heads[slot];
+        heads[slot] = null;
+        tails[slot] = null;
+        occupied[slot / SLOTS] &= ~(1L << (slot & SLOT_MASK));
+        return first;
+    }
+
+    /**
+     * The first tick at which a slot fires or cascades. A slot of a higher
+     * level cascades at the start of its range, at or before the deadlines of
+     * its timers, so sleeping until this tick never misses one.
+     *
+     * @return the tick, or -1 if the wheel is empty
+     */
+    private long nextTick() {
+        long next = -1;
+        for (int level = 0; level < LEVELS; level++) {
+            if (occupied[level] == 0)
+                continue;
+            int shift = SLOT_BITS * level;
+            long range = tick >>> shift;
+            // the slot of a range that started already has been cascaded
+            if ((tick & ((1L << shift) - 1)) != 0)
+                range++;
+            long offset = Long.numberOfTrailingZeros(Long.rotateRight(occupied[level], (int) (range & SLOT_MASK)));
+            long at = (range + offset) << shift;
+            if (next < 0 || at < next)
+                next = at;
+        }
+        return next;
+    }
+
+    /**
+     * How long the loop may sleep before the next timer is due.
+     *
+     * @return milliseconds, 0 if a timer is due, or -1 if there is none
+     */
+    long timeout() {
+        long next = nextTick();
+        if (next < 0)
+            return -1;
+        return Math.max(0, next - now());
+    }
+
+    /**
+     * Expires every tick up to now and schedules the callbacks of the timers
+     * that are due on the loop, in the order of their deadlines.
+     */
+    void advance() {
+        long now = now();
+        while (tick <= now) {
+            long next = nextTick();
+            if (next < 0 || next > now) {
+                // nothing fires or cascades before then
+                tick = now + 1;
+                return;
+            }
+            tick = next;
+            expire();
+            tick++;
+        }
+    }
+
+    private void expire() {
+        int index = (int) (tick & SLOT_MASK);
+        // at the first slot of a level the next slot of the level above comes
+        // down, and so on while those are first slots too
+        if (index == 0) {
+            for (int level = 1; level < LEVELS; level++) {
+                int above = (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+                cascade(level * SLOTS + above);
+                if (above != 0)
+                    break;
+            }
+        }
+
+        Timer timer = detach(index);
+        while (timer != null) {
+            Timer next = timer.next;
+            timer.slot = -1;
+            timer.previous = null;
+            timer.next = null;
+            fire(timer);
+            timer = next;
+        }
+    }
+
+    private void cascade(int slot) {
+        Timer timer = detach(slot);
+        while (timer != null) {
+            Timer next = timer.next;
+            add(timer);
+            timer = next;
+        }
+    }
+
+    private void fire(Timer timer) {
+        // a timeout stops being pending when it fires, the job keeps the loop
+        // going until the callback ran
+        if (timer.period == 0)
+            loop.end();
+        loop.schedule(() -> {
+            if (timer.cancelled)
+                return;
+            if (timer.period == 0) {
+                timer.done = true;
+            } else {
+                // the next deadline counts from this one so the interval
+                // doesn't drift, but a loop that fell behind doesn't catch up
+                timer.deadline = Math.max(timer.deadline + timer.period, now());
+                add(timer);
+            }
+            loop.call(timer.callback);
+        });
+    }
+}
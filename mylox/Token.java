@@ -5,12 +5,20 @@ public class Token {
     final String lexeme;
     final Object literal;
     final int line;
+    // offset of the first character of the lexeme in the source, -1 for
+    // tokens that were not produced by the scanner
+    final int offset;
 
     public Token(TokenType type, String lexeme, Object literal, int line) {
+        this(type, lexeme, literal, line, -1);
+    }
+
+    public Token(TokenType type, String lexeme, Object literal, int line, int offset) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.offset = offset;
     }
 
     public String toString() {
@@ -0,0 +1,273 @@
+package mylox;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is the interpreter behind --type-profile. It runs on the arena and
+ * records the types of the values every expression node produces, the class of
+ * the instances among them, and how often every function was called. At exit
+ * the feedback is written to the profile file, keyed by a hash of the script
+ * and the node numbers. The call counts add up over the runs, they tell which
+ * functions are hot for a tier that compiles them.
+ *
+ * When the profile of an earlier run of the same script is found, nodes are
+ * specialized as they are lowered, before they run for the first time: binary
+ * nodes whose operands were only numbers become NUMBER_BINARY, get nodes
+ * whose object was always of one class and produced a method become
+ * METHOD_GET. Both check the types before their fast path, so a stale profile
+ * makes the program slower, never wrong. The feedback of both runs is merged
+ * into the new profile.
+ */
+class TypeFeedbackInterpreter extends ArenaInterpreter {
+
+    private static final String HEADER = "# mylox type profile";
+
+    // type bits of the values a node produced
+    private static final int NIL = 1;
+    private static final int BOOLEAN = 2;
+    private static final int NUMBER = 4;
+    private static final int STRING = 8;
+    private static final int INSTANCE = 16;
+    private static final int CALLABLE = 32;
+    private static final String[] TYPE_NAMES = { "nil", "boolean", "number", "string", "instance", "callable" };
+
+    // receiver of nodes that produced instances of more than one class
+    private static final String MEGAMORPHIC = "*";
+    private static final LoxClass SEVERAL_CLASSES = new LoxClass(MEGAMORPHIC, null, Collections.emptyMap());
+
+    private final Path path;
+    private String sourceHash = null;
+
+    // feedback of this run, by node
+    private byte[] types = new byte[0];
+    private LoxClass[] receivers = new LoxClass[0];
+    // calls of the functions created from a FUNCTION or ANON_FUNCTION node
+    private long[] calls = new long[0];
+
+    // feedback loaded from the profile, by node, kinds are -1 where the
+    // profile has nothing
+    private int[] profileKinds = new int[0];
+    private byte[] profileTypes = new byte[0];
+    private String[] profileReceivers = new String[0];
+    // calls by function node, with the kind of the node to check it
+    private final Map<Integer, long[]> profileCalls = new HashMap<>();
+
+    /**
+     * @param path the profile to read before the run, if there is one, and to
+     *             write after it
+     */
+    TypeFeedbackInterpreter(Path path) {
+        this.path = path;
+    }
+
+    @Override
+    void run(String source) {
+        sourceHash = PreparedScript.hash(source);
+        try {
+            read();
+        } catch (IOException e) {
+            System.err.println("Could not read type profile " + path + ": " + e.getMessage());
+        }
+        super.run(source);
+    }
+
+    @Override
+    void lowered(Stmt statement, int from, int to) {
+        ensureCapacity(to);
+        AstArena arena = arena();
+
+        for (int node = from; node < to && node < profileKinds.length; node++) {
+            int kind = arena.kinds[node];
+            if (profileKinds[node] != kind)
+                continue;
+
+            if (kind == AstArena.BINARY && isArithmetic(arena.c[node]) && onlyNumbers(arena.a[node])
+                    && onlyNumbers(arena.b[node])) {
+                arena.kinds[node] = AstArena.NUMBER_BINARY;
+            } else if (kind == AstArena.GET && profileTypes[node] == CALLABLE && isMonomorphic(arena.a[node])) {
+                arena.c[node] = arena.addConstant(new ArenaInterpreter.CachedMethod[1]);
+                arena.kinds[node] = AstArena.METHOD_GET;
+            }
+        }
+    }
+
+    // equality compares boxed values, so it isn't specialized
+    private static boolean isArithmetic(int operator) {
+        return operator != TokenType.EQUAL_EQUAL.ordinal() && operator != TokenType.BANG_EQUAL.ordinal();
+    }
+
+    private boolean onlyNumbers(int node) {
+        return node < profileKinds.length && profileKinds[node] == arena().kinds[node] && profileTypes[node] == NUMBER;
+    }
+
+    private boolean isMonomorphic(int node) {
+        return node < profileKinds.length && profileKinds[node] == arena().kinds[node]
+                && profileReceivers[node] != null && !profileReceivers[node].equals(MEGAMORPHIC);
+    }
+
+    @Override
+    Object evaluate(int node) {
+        Object value = super.evaluate(node);
+        types[node] |= typeOf(value);
+        if (value instanceof LoxInstance) {
+            LoxClass klass = ((LoxInstance) value).klass();
+            LoxClass seen = receivers[node];
+            if (seen == null) {
+                receivers[node] = klass;
+            } else if (seen != klass) {
+                receivers[node] = SEVERAL_CLASSES;
+            }
+        }
+        return value;
+    }
+
+    @Override
+    Object callFunction(Object callee, Token paren, List<Object> arguments) {
+        if (callee instanceof ArenaFunction) {
+            int node = ((ArenaFunction) callee).node();
+            if (node < calls.length)
+                calls[node]++;
+        }
+        return super.callFunction(callee, paren, arguments);
+    }
+
+    private static int typeOf(Object value) {
+        if (value == null) return NIL;
+        if (value instanceof Boolean) return BOOLEAN;
+        if (value instanceof Double) return NUMBER;
+        if (value instanceof String) return STRING;
+        if (value instanceof LoxInstance) return INSTANCE;
+        return CALLABLE;
+    }
+
+    private void ensureCapacity(int nodes) {
+        if (nodes > types.length) {
+            int capacity = Math.max(nodes, types.length * 2);
+            types = Arrays.copyOf(types, capacity);
+            receivers = Arrays.copyOf(receivers, capacity);
+            calls = Arrays.copyOf(calls, capacity);
+        }
+    }
+
+    // the kind a node was built as, specializing is not part of the feedback
+    private static int builtKind(int kind) {
+        switch (kind) {
+            case AstArena.NUMBER_BINARY: return AstArena.BINARY;
+            case AstArena.METHOD_GET: return AstArena.GET;
+            default: return kind;
+        }
+    }
+
+    /**
+     * Reads the profile if it belongs to the script. A missing profile or one
+     * of another version of the script is a cold start.
+     */
+    private void read() throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(in.readLine()) || !("source " + sourceHash).equals(in.readLine()))
+                return;
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                // node kind types [receiver], or calls node kind count
+                String[] fields = line.split(" ");
+                if (fields[0].equals("calls")) {
+                    profileCalls.put(Integer.parseInt(fields[1]),
+                            new long[] { Integer.parseInt(fields[2]), Long.parseLong(fields[3]) });
+                    continue;
+                }
+                int node = Integer.parseInt(fields[0]);
+                if (node >= profileKinds.length) {
+                    int capacity = Math.max(node + 1, profileKinds.length * 2);
+                    int length = profileKinds.length;
+                    profileKinds = Arrays.copyOf(profileKinds, capacity);
+                    Arrays.fill(profileKinds, length, capacity, -1);
+                    profileTypes = Arrays.copyOf(profileTypes, capacity);
+                    profileReceivers = Arrays.copyOf(profileReceivers, capacity);
+                }
+                profileKinds[node] = Integer.parseInt(fields[1]);
+                profileTypes[node] = parseTypes(fields[2]);
+                if (fields.length > 3)
+                    profileReceivers[node] = fields[3];
+            }
+        } catch (NoSuchFileException e) {
+            // the first run
+        } catch (RuntimeException e) {
+            throw new IOException("malformed profile", e);
+        }
+    }
+
+    /**
+     * Writes the feedback of this run merged with the profile it started from.
+     */
+    void write() throws IOException {
+        AstArena arena = arena();
+        int nodeCount = Math.min(arena.nodeCount(), types.length);
+
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8))) {
+            out.println(HEADER);
+            out.println("source " + sourceHash);
+            for (int node = 0; node < nodeCount; node++) {
+                int kind = builtKind(arena.kinds[node]);
+                boolean profiled = node < profileKinds.length && profileKinds[node] == kind;
+                int seen = types[node] | (profiled ? profileTypes[node] : 0);
+                if (seen == 0)
+                    continue;
+
+                String receiver = receivers[node] == null ? null : receivers[node].name;
+                if (profiled && profileReceivers[node] != null) {
+                    if (receiver == null) {
+                        receiver = profileReceivers[node];
+                    } else if (!receiver.equals(profileReceivers[node])) {
+                        receiver = MEGAMORPHIC;
+                    }
+                }
+
+                out.print(node + " " + kind + " " + formatTypes(seen));
+                out.println(receiver == null ? "" : " " + receiver);
+            }
+
+            for (int node = 0; node < nodeCount; node++) {
+                int kind = arena.kinds[node];
+                long[] profiled = profileCalls.get(node);
+                long count = calls[node] + (profiled != null && profiled[0] == kind ? profiled[1] : 0);
+                if (count > 0)
+                    out.println("calls " + node + " " + kind + " " + count);
+            }
+        }
+    }
+
+    private static String formatTypes(int bits) {
+        StringBuilder names = new StringBuilder();
+        for (int i = 0; i < TYPE_NAMES.length; i++) {
+            if ((bits & (1 << i)) != 0) {
+                if (names.length() > 0)
+                    names.append('|');
+                names.append(TYPE_NAMES[i]);
+            }
+        }
+        return names.toString();
+    }
+
+    private static byte parseTypes(String names) {
+        int bits = 0;
+        for (String name : names.split("\\|")) {
+            int i = Arrays.asList(TYPE_NAMES).indexOf(name);
+            if (i < 0)
+                throw new IllegalArgumentException("Unknown type " + name);
+            bits |= 1 << i;
+        }
+        return (byte) bits;
+    }
+}
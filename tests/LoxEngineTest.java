@@ -0,0 +1,167 @@
+package mylox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Drives LoxEngine the way an embedder does, on every engine: two threads
+ * running scripts at once each get their own errors and output, values go
+ * in and out with define and get, the functions of one prepared script
+ * can be called by the scripts that run after it, and engines started from
+ * a snapshot don't see what the others do.
+ */
+class LoxEngineTest {
+
+    private static final String[] ENGINES = { "visitor", "pattern", "arena" };
+    private static final int RUNS = 200;
+
+    // keeps the messages of the errors an engine reported
+    private static final class Errors implements ErrorReporter {
+        final List<String> messages = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void report(int line, Token token, String where, String message) {
+            messages.add(message);
+        }
+    }
+
+    // an engine with the output and the errors it produced
+    private static final class Embedding {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final Errors errors = new Errors();
+        final LoxEngine engine;
+
+        Embedding(String engine) {
+            this.engine = new LoxEngine(engine, new PrintStream(output, true), errors);
+        }
+
+        // the distinct lines of the output and the distinct errors
+        String summary() {
+            return new TreeSet<>(List.of(output.toString().split("\n"))) + " "
+                    + errors.messages.size() + " errors " + new TreeSet<>(errors.messages);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (String engine : ENGINES) {
+            System.out.println(engine);
+            isolatedErrors(engine);
+            defineAndGet(engine);
+            preparedScripts(engine);
+            snapshots(engine);
+        }
+    }
+
+    // every run fails on both threads, each engine sees only its own errors
+    private static void isolatedErrors(String engine) throws InterruptedException {
+        Embedding first = new Embedding(engine);
+        Embedding second = new Embedding(engine);
+        Thread a = runner(first, "print \"first\";\nvar x = 1 - \"first\";");
+        Thread b = runner(second, "print \"second\";\nmissing;");
+        a.start();
+        b.start();
+        a.join();
+        b.join();
+        System.out.println("first " + first.summary());
+        System.out.println("second " + second.summary());
+    }
+
+    // runs the source as a new script and prepared, turn by turn
+    private static Thread runner(Embedding embedding, String source) {
+        PreparedScript script = PreparedScript.prepare(source, null, embedding.errors);
+        return new Thread(() -> {
+            for (int i = 0; i < RUNS; i++) {
+                boolean ok = i % 2 == 0 ? embedding.engine.eval(source) : embedding.engine.run(script);
+                if (ok)
+                    embedding.errors.report(0, null, "", "run succeeded");
+            }
+        });
+    }
+
+    private static void defineAndGet(String engine) {
+        Embedding embedding = new Embedding(engine);
+        embedding.engine.define("scale", 3.0);
+        embedding.engine.define("twice", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 1;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return (double) arguments.get(0) * 2;
+            }
+        });
+        embedding.engine.eval("var result = twice(scale) + 1;");
+        System.out.println("result " + embedding.engine.get("result"));
+        System.out.println("undefined " + embedding.engine.get("undefined"));
+        // the globals of an engine are its own
+        System.out.println("other engine " + new Embedding(engine).engine.get("scale"));
+    }
+
+    // a closure of one prepared script still finds its variables when
+    // other scripts ran in between
+    private static void preparedScripts(String engine) {
+        Embedding embedding = new Embedding(engine);
+        Errors errors = new Errors();
+        PreparedScript counter = PreparedScript.prepare(
+                "fun counter() {\n var n = 0;\n fun inc() { n = n + 1; return n; }\n return inc; }\nvar c = counter();",
+                null, errors);
+        PreparedScript caller = PreparedScript.prepare(
+                "var d = 0;\n{ var local = c(); d = local + c(); }\nprint d;", null, errors);
+        embedding.engine.run(counter);
+        embedding.engine.run(caller);
+        embedding.engine.eval("{ var again = c(); print again * 10; }");
+        System.out.println("prepared " + embedding.summary());
+    }
+
+    // neither the engine the snapshot was taken from nor the engines started
+    // from it see what the others change later
+    private static void snapshots(String engine) {
+        Embedding source = new Embedding(engine);
+        source.engine.eval("var limit = 10;\nvar names = \"a\";\nfun describe() { return names + \" \" + limit; }");
+        LoxEngine.Snapshot snapshot = source.engine.snapshot();
+        source.engine.eval("limit = 20;\nnames = \"source\";\nvar added = true;");
+        Embedding first = new Embedding(engine);
+        LoxEngine one = snapshot.newEngine(new PrintStream(first.output, true), first.errors);
+        Embedding second = new Embedding(engine);
+        LoxEngine two = snapshot.newEngine(new PrintStream(second.output, true), second.errors);
+        one.eval("limit = limit + 1;\nnames = \"one\";\nvar own = 1;");
+        two.eval("print describe();\nlimit = 5;");
+        one.eval("print describe();");
+        System.out.println("snapshot " + first.summary() + " " + second.summary());
+        System.out.println("source " + source.engine.get("limit") + " " + source.engine.get("names")
+                + " siblings " + one.get("added") + " " + two.get("own") + " " + one.get("limit"));
+    }
+}
+// expect: visitor
+// expect: first [first] 200 errors [Operands must be numbers.]
+// expect: second [second] 200 errors [Undefined variable 'missing'.]
+// expect: result 7.0
+// expect: undefined null
+// expect: other engine null
+// expect: prepared [3, 30] 0 errors []
+// expect: snapshot [one 11] 0 errors [] [a 10] 0 errors []
+// expect: source 20.0 source siblings null null 11.0
+// expect: pattern
+// expect: first [first] 200 errors [Operands must be numbers.]
+// expect: second [second] 200 errors [Undefined variable 'missing'.]
+// expect: result 7.0
+// expect: undefined null
+// expect: other engine null
+// expect: prepared [3, 30] 0 errors []
+// expect: snapshot [one 11] 0 errors [] [a 10] 0 errors []
+// expect: source 20.0 source siblings null null 11.0
+// expect: arena
+// expect: first [first] 200 errors [Operands must be numbers.]
+// expect: second [second] 200 errors [Undefined variable 'missing'.]
+// expect: result 7.0
+// expect: undefined null
+// expect: other engine null
+// expect: prepared [3, 30] 0 errors []
+// expect: snapshot [one 11] 0 errors [] [a 10] 0 errors []
+// expect: source 20.0 source siblings null null 11.0
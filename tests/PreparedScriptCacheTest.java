@@ -0,0 +1,114 @@
+package mylox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+
+/**
+ * Checks how PreparedScriptCache finds scripts: by the SHA-256 of the source
+ * and the path, least recently used first out. Prepared scripts lower their
+ * statements for an engine kind only when they first run on one.
+ */
+class PreparedScriptCacheTest {
+
+    private static final ErrorReporter FAIL = (line, token, where, message) -> {
+        throw new AssertionError(message);
+    };
+
+    public static void main(String[] args) throws Exception {
+        hits();
+        eviction();
+        paths();
+        hashes();
+        lowering();
+    }
+
+    private static void hits() {
+        PreparedScriptCache cache = new PreparedScriptCache(4);
+        PreparedScript first = cache.get("print 1;", null, FAIL);
+        // an equal source text, not the same string
+        PreparedScript second = cache.get(new String("print 1;"), null, FAIL);
+        System.out.println("hit " + (first == second) + " " + cache.hits() + " " + cache.misses());
+    }
+
+    private static void eviction() {
+        PreparedScriptCache cache = new PreparedScriptCache(2);
+        PreparedScript a = cache.get("print \"a\";", null, FAIL);
+        cache.get("print \"b\";", null, FAIL);
+        // a is used again, so b is the least recently used one when c comes
+        cache.get("print \"a\";", null, FAIL);
+        cache.get("print \"c\";", null, FAIL);
+        long misses = cache.misses();
+        boolean aKept = cache.get("print \"a\";", null, FAIL) == a;
+        boolean aHit = cache.misses() == misses;
+        cache.get("print \"b\";", null, FAIL);
+        boolean bEvicted = cache.misses() == misses + 1;
+        System.out.println("evicted " + cache.size() + " " + (aKept && aHit) + " " + bEvicted);
+    }
+
+    private static void paths() {
+        PreparedScriptCache cache = new PreparedScriptCache(4);
+        String source = "print 2;";
+        PreparedScript here = cache.get(source, Paths.get("tests/one.lox"), FAIL);
+        PreparedScript there = cache.get(source, Paths.get("tests/modules/one.lox"), FAIL);
+        // the same file through another path
+        PreparedScript again = cache.get(source, Paths.get("tests/modules/../one.lox"), FAIL);
+        PreparedScript none = cache.get(source, null, FAIL);
+        System.out.println("paths " + (here != there) + " " + (here == again) + " " + (none != here)
+                + " " + cache.size());
+    }
+
+    private static void hashes() throws Exception {
+        String source = "var greeting = \"hello\";";
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        String expected = HexFormat.of().formatHex(digest.digest(source.getBytes(StandardCharsets.UTF_8)));
+        PreparedScript script = PreparedScript.prepare(source, null, FAIL);
+        PreparedScript other = PreparedScript.prepare(source + " ", null, FAIL);
+        System.out.println("hash " + script.hash().equals(expected) + " " + !script.hash().equals(other.hash()));
+    }
+
+    private static void lowering() throws Exception {
+        PreparedScript script = PreparedScript.prepare("var n = 1; print n + 1;", null, FAIL);
+        System.out.println("prepared " + lowered(script));
+        run("visitor", script);
+        System.out.println("visitor " + lowered(script));
+        run("pattern", script);
+        Object converted = field(script, "converted");
+        System.out.println("pattern " + lowered(script));
+        run("arena", script);
+        System.out.println("arena " + lowered(script));
+        // later runs use what the first one lowered
+        run("pattern", script);
+        System.out.println("again " + (field(script, "converted") == converted));
+    }
+
+    private static void run(String engine, PreparedScript script) {
+        new LoxEngine(engine, new PrintStream(new ByteArrayOutputStream()), FAIL).run(script);
+    }
+
+    // which engine kinds the script was lowered for so far
+    private static String lowered(PreparedScript script) throws Exception {
+        return (field(script, "converted") != null ? "converted" : "-") + " "
+                + (field(script, "lowered") != null ? "lowered" : "-");
+    }
+
+    private static Object field(PreparedScript script, String name) throws Exception {
+        Field field = PreparedScript.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(script);
+    }
+}
+// expect: hit true 1 1
+// expect: evicted 2 true true
+// expect: paths true true true 3
+// expect: hash true true
+// expect: prepared - -
+// expect: visitor - -
+// expect: pattern converted -
+// expect: arena converted lowered
+// expect: again true
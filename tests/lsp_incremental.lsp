@@ -0,0 +1,9 @@
+{"jsonrpc":"2.0","id":1,"method":"initialize","params":{}}
+{"jsonrpc":"2.0","method":"initialized","params":{}}
+{"jsonrpc":"2.0","method":"textDocument/didOpen","params":{"textDocument":{"uri":"file:///test.lox","languageId":"lox","version":1,"text":"fun a() {\n  return 1;\n}\nfun b() {\n  return 2;\n}\nfun c() {\n  return 3;\n}\n"}}}
+{"jsonrpc":"2.0","method":"textDocument/didChange","params":{"textDocument":{"uri":"file:///test.lox","version":2},"contentChanges":[{"range":{"start":{"line":4,"character":10},"end":{"line":4,"character":10}},"text":" +"}]}}
+{"jsonrpc":"2.0","method":"textDocument/didChange","params":{"textDocument":{"uri":"file:///test.lox","version":3},"contentChanges":[{"range":{"start":{"line":4,"character":10},"end":{"line":4,"character":12}},"text":""}]}}
+{"jsonrpc":"2.0","method":"textDocument/didChange","params":{"textDocument":{"uri":"file:///test.lox","version":4},"contentChanges":[{"range":{"start":{"line":7,"character":9},"end":{"line":7,"character":10}},"text":"this"}]}}
+{"jsonrpc":"2.0","method":"textDocument/didChange","params":{"textDocument":{"uri":"file:///test.lox","version":5},"contentChanges":[{"range":{"start":{"line":8,"character":1},"end":{"line":8,"character":1}},"text":"\nfun d() {\n  return a() + b();\n}"}]}}
+{"jsonrpc":"2.0","id":2,"method":"shutdown"}
+{"jsonrpc":"2.0","method":"exit"}
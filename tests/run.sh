@@ -0,0 +1,90 @@
+#!/bin/sh
+# Runs the behavior tests, from the root of the repository after make build.
+#
+# A .lox test states what it prints in comments: every "// expect: <text>"
+# is a line of stdout, in order, and "// expect runtime error: <message>"
+# is the message the script ends with on stderr. "// expect error: <message>"
+# is the first static error on stderr, the script doesn't run then. Every
+# .lox test runs on all engines.
+#
+# A .java test is a program in the mylox package that embeds the
+# interpreter, it states what it prints like a .lox test.
+#
+# A .lsp test is a language server session, one JSON message per line. The
+# messages the server sends and what it logs, without the timings, are
+# compared with the .expected file next to it.
+
+cd "$(dirname "$0")/.." || exit 1
+failed=0
+passed=0
+
+fail() {
+    echo "FAIL $1"
+    failed=$((failed + 1))
+}
+
+for test in tests/*.lox; do
+    grep -q "// expect" "$test" || continue
+    expected=$(sed -n 's|.*// expect: ||p' "$test")
+    error=$(sed -n 's|.*// expect runtime error: ||p' "$test")
+    status_expected=70
+    if [ -z "$error" ]; then
+        error=$(sed -n 's|.*// expect error: ||p' "$test")
+        status_expected=65
+    fi
+    for engine in visitor pattern arena; do
+        actual=$(timeout 60 java mylox.Lox --engine=$engine "$test" 2>/tmp/lox-test-err)
+        status=$?
+        if [ "$actual" != "$expected" ]; then
+            fail "$test on $engine"
+            printf 'expected:\n%s\nactual:\n%s\n' "$expected" "$actual"
+        elif [ -n "$error" ] && { [ "$(head -n 1 /tmp/lox-test-err)" != "$error" ] || [ "$status" -ne "$status_expected" ]; }; then
+            fail "$test on $engine"
+            printf 'expected the error %s and exit status %s, got %s:\n' "$error" "$status_expected" "$status"
+            cat /tmp/lox-test-err
+        elif [ -z "$error" ] && [ "$status" -ne 0 ]; then
+            fail "$test on $engine, exit status $status"
+            cat /tmp/lox-test-err
+        else
+            passed=$((passed + 1))
+        fi
+    done
+done
+
+mkdir -p /tmp/lox-test-classes
+for test in tests/*.java; do
+    [ -e "$test" ] || continue
+    expected=$(sed -n 's|.*// expect: ||p' "$test")
+    if ! javac -cp . -d /tmp/lox-test-classes "$test"; then
+        fail "$test, doesn't compile"
+        continue
+    fi
+    actual=$(timeout 60 java -cp .:/tmp/lox-test-classes "mylox.$(basename "$test" .java)" 2>/tmp/lox-test-err)
+    status=$?
+    if [ "$actual" != "$expected" ] || [ "$status" -ne 0 ]; then
+        fail "$test, exit status $status"
+        printf 'expected:\n%s\nactual:\n%s\n' "$expected" "$actual"
+        cat /tmp/lox-test-err
+    else
+        passed=$((passed + 1))
+    fi
+done
+
+for test in tests/*.lsp; do
+    [ -e "$test" ] || continue
+    actual=$(awk '{ printf "Content-Length: %d\r\n\r\n%s", length($0), $0 }' "$test" \
+        | timeout 60 java mylox.Lox --lsp 2>&1 \
+        | tr -d '\r' \
+        | sed -e 's/Content-Length: [0-9]*//g' -e 's/}\(file:\)/}\n\1/' -e 's/ in [0-9.]* ms$//' \
+        | sed -e '/^$/d')
+    if [ "$actual" != "$(cat "${test%.lsp}.expected")" ]; then
+        fail "$test"
+        printf 'actual:\n%s\n' "$actual"
+    else
+        passed=$((passed + 1))
+    fi
+done
+
+rm -rf /tmp/lox-test-err /tmp/lox-test-classes
+echo "$passed passed, $failed failed"
+[ "$failed" -eq 0 ]
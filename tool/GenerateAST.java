@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Arrays;
 import java.util.List;
+import java.util.regex.Pattern;
 
 public class GenerateAST {
 
@@ -16,24 +17,31 @@ public class GenerateAST {
 
         String outputDir = args[0];
 
-        defineAst(outputDir, "Expr", Arrays.asList("Binary   : Expr left, Token operator, Expr right",
+        List<String> exprTypes = Arrays.asList("Binary   : Expr left, Token operator, Expr right",
                 "Call     : Expr callee, Token paren, List<Expr> arguments", "Grouping : Expr expression",
                 "Literal  : Object value", "Logical  : Expr left, Token operator, Expr right",
-                "Unary    : Token operator, Expr right", "Variable : Token name", "Assign   : Token name, Expr value",
-                "AnonFunction : List<Token> params, List<Stmt> body",
+                "Unary    : Token operator, Expr right", "Variable : Token name | Globals.Cell[] global",
+                "Assign   : Token name, Expr value | Globals.Cell[] global",
+                "AnonFunction : Token keyword, List<Token> params, List<Stmt> body",
                 "Get      : Expr object, Token name", "Set    : Expr object, Token name, Expr value",
-                "This     : Token keyword", "Super : Token keyword, Token method"),
-                null);
-
-        defineAst(outputDir, "Stmt",
-                Arrays.asList("If         : Expr condition, Stmt thenBranch," + " Stmt elseBranch",
-                        "Block      : List<Stmt> statements", "While      : Expr condition, Stmt body",
-                        "Expression : Expr expression", "Function   : Token name, List<Token> params, List<Stmt> body",
-                        "Print      : Expr expression", "Var        : Token name, Expr initializer",
-                        "Break      : Token breakToken", "Return     : Token keyword, Expr value", 
-                        "For        : Stmt initializer, Expr condition, Expr increment, List<Stmt> body",
-                        "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods"),
-                null);
+                "This     : Token keyword", "Super : Token keyword, Token method");
+
+        List<String> stmtTypes = Arrays.asList("If         : Token keyword, Expr condition, Stmt thenBranch," + " Stmt elseBranch",
+                "Block      : List<Stmt> statements", "While      : Token keyword, Expr condition, Stmt body",
+                "Expression : Expr expression", "Function   : Token name, List<Token> params, List<Stmt> body",
+                "Print      : Token keyword, Expr expression", "Var        : Token name, Expr initializer",
+                "Break      : Token breakToken", "Return     : Token keyword, Expr value", 
+                "For        : Token keyword, Stmt initializer, Expr condition, Expr increment, List<Stmt> body",
+                "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+                "Import     : Token keyword, Token path");
+
+        defineAst(outputDir, "Expr", exprTypes, null);
+        defineAst(outputDir, "Stmt", stmtTypes, null);
+
+        // alternative sealed interface / record hierarchy for the pattern
+        // matching interpreter
+        defineSealedAst(outputDir, "Expr", exprTypes);
+        defineSealedAst(outputDir, "Stmt", stmtTypes);
     }
 
     private static void defineAst(String outputDir, String baseName, List<String> types,
@@ -72,6 +80,10 @@ public class GenerateAST {
     }
 
     private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+        // fields after a bar are caches the interpreters fill in, each a one
+        // element array created with the node
+        String caches = fieldList.contains("|") ? fieldList.split("\\|")[1].trim() : null;
+        fieldList = fieldList.split("\\|")[0].trim();
 
         writer.println("  static class " + className + " extends " + baseName + " {");
 
@@ -105,6 +117,11 @@ public class GenerateAST {
                 writer.println("    final " + field + ";");
             }
         }
+        if (caches != null) {
+            for (String cache : caches.split(", ")) {
+                writer.println("    final " + cache + " = " + newCache(cache) + ";");
+            }
+        }
         writer.println("  }");
     }
 
@@ -132,4 +149,71 @@ public class GenerateAST {
 
         writer.println();
     }
+
+    /**
+     * Writes the sealed interface version of an AST hierarchy. Every node type
+     * becomes a record nested in the interface, so the records are implicitly
+     * the only permitted subtypes and can be dispatched on with instanceof
+     * patterns instead of a visitor.
+     * 
+     * @param outputDir the directory to write the file into
+     * @param baseName  the name of the classic hierarchy (Expr or Stmt)
+     * @param types     the same type descriptions used for the classic hierarchy
+     * @throws IOException if the file can't be written
+     */
+    private static void defineSealedAst(String outputDir, String baseName, List<String> types) throws IOException {
+        String interfaceName = baseName + "Node";
+        String path = outputDir + "/" + interfaceName + ".java";
+        PrintWriter writer = new PrintWriter(path, "UTF-8");
+
+        writer.println("package mylox;");
+        writer.println();
+        writer.println("import java.util.List;");
+        writer.println();
+        writer.println("sealed interface " + interfaceName + " {");
+
+        for (String type : types) {
+            String className = type.split(":")[0].trim();
+            String[] parts = type.split(":")[1].split("\\|");
+            String fields = sealedFieldTypes(parts[0].trim());
+            if (parts.length == 1) {
+                writer.println("  record " + className + "(" + fields + ") implements " + interfaceName + " {");
+                writer.println("  }");
+                continue;
+            }
+
+            // records can't have fields of their own, the caches are
+            // components the shorter constructor creates
+            String caches = parts[1].trim();
+            writer.println("  record " + className + "(" + fields + ", " + caches + ") implements " + interfaceName
+                    + " {");
+            writer.println("    " + className + "(" + fields + ") {");
+            StringBuilder arguments = new StringBuilder();
+            for (String field : fields.split(", ")) {
+                arguments.append(field.split(" ")[1]).append(", ");
+            }
+            for (String cache : caches.split(", ")) {
+                arguments.append(newCache(cache)).append(", ");
+            }
+            writer.println("      this(" + arguments.substring(0, arguments.length() - 2) + ");");
+            writer.println("    }");
+            writer.println("  }");
+        }
+
+        writer.println("}");
+        writer.close();
+    }
+
+    // the expression creating a cache field, "Type[] name" becomes "new Type[1]"
+    private static String newCache(String field) {
+        String type = field.split(" ")[0];
+        return "new " + type.substring(0, type.length() - 2) + "[1]";
+    }
+
+    // maps the classic node types in a field list onto their sealed counterparts
+    private static String sealedFieldTypes(String fieldList) {
+        return NODE_TYPE.matcher(fieldList).replaceAll("$1Node");
+    }
+
+    private static final Pattern NODE_TYPE = Pattern.compile("\\b(Expr|Stmt)\\b");
 }